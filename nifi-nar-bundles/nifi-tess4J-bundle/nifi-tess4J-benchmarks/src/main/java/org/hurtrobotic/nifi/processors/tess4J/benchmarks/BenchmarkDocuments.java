@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J.benchmarks;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+
+/**
+ * Synthetic documents used by the benchmarks, replaced by fixture files when
+ * the corresponding system property is set:
+ * <ul>
+ * <li>{@value #PDF_FIXTURE} : PDF document split, converted and recognized
+ * instead of the synthetic one</li>
+ * <li>{@value #IMAGE_FIXTURE} : page image recognized instead of the synthetic
+ * one</li>
+ * </ul>
+ */
+final class BenchmarkDocuments {
+	static final String PDF_FIXTURE = "tess4j.benchmark.pdf";
+	static final String IMAGE_FIXTURE = "tess4j.benchmark.image";
+
+	static final String TEXT = "The quick brown fox jumps over the lazy dog. Pack my box with five dozen liquor jugs. "
+			+ "Sphinx of black quartz, judge my vow. How vexingly quick daft zebras jump.";
+
+	private BenchmarkDocuments() {
+	}
+
+	/**
+	 * @return the PDF fixture if configured, otherwise a PDF of the given number
+	 *         of pages, each with a text block and a scanned-like image.
+	 */
+	static byte[] pdf(int pages) throws IOException {
+		String fixture = System.getProperty(PDF_FIXTURE);
+		if (fixture != null) {
+			return Files.readAllBytes(new File(fixture).toPath());
+		}
+		try (PDDocument document = new PDDocument()) {
+			BufferedImage scan = page(TEXT, 100);
+			for (int i = 0; i < pages; i++) {
+				PDPage page = new PDPage(PDRectangle.A4);
+				document.addPage(page);
+				try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+					content.beginText();
+					content.setFont(PDType1Font.HELVETICA, 11);
+					content.setLeading(14);
+					content.newLineAtOffset(50, 780);
+					content.showText("Page " + (i + 1));
+					for (int line = 0; line < 20; line++) {
+						content.newLine();
+						content.showText(TEXT.substring(0, 90));
+					}
+					content.endText();
+					content.drawImage(LosslessFactory.createFromImage(document, scan), 50, 50, 495, 400);
+				}
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			document.save(out);
+			return out.toByteArray();
+		}
+	}
+
+	static int pageCount(byte[] pdf) throws IOException {
+		try (PDDocument document = PDDocument.load(pdf)) {
+			return document.getNumberOfPages();
+		}
+	}
+
+	/**
+	 * @return the image fixture if configured, otherwise an A4 page of text
+	 *         rendered at the given resolution and encoded as PNG.
+	 */
+	static byte[] image(int dpi) throws IOException {
+		String fixture = System.getProperty(IMAGE_FIXTURE);
+		if (fixture != null) {
+			return Files.readAllBytes(new File(fixture).toPath());
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(page(TEXT, dpi), "png", out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Draws lines of text on a gray A4 page.
+	 */
+	static BufferedImage page(String text, int dpi) {
+		int width = Math.round(8.27f * dpi);
+		int height = Math.round(11.69f * dpi);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D graphics = image.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			graphics.setColor(Color.WHITE);
+			graphics.fillRect(0, 0, width, height);
+			graphics.setColor(Color.BLACK);
+			graphics.setFont(new Font(Font.SERIF, Font.PLAIN, Math.round(12f * dpi / 72f)));
+			int lineHeight = Math.round(18f * dpi / 72f);
+			int margin = dpi;
+			int charsPerLine = 80;
+			int y = margin;
+			for (int line = 0; y < height - margin; line++, y += lineHeight) {
+				int start = (line * charsPerLine) % (text.length() - charsPerLine);
+				graphics.drawString(text.substring(start, start + charsPerLine), margin, y);
+			}
+		} finally {
+			graphics.dispose();
+		}
+		return image;
+	}
+}
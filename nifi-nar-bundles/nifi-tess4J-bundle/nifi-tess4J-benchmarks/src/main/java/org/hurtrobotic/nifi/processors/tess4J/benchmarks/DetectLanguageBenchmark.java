@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.util.TestRunners;
+import org.hurtrobotic.nifi.processors.tess4J.Tess4JOcr;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.cybozu.labs.langdetect.DetectorFactory;
+import com.cybozu.labs.langdetect.LangDetectException;
+
+/**
+ * Language detection of a filename and of OCR samples of several languages.
+ * The langdetect profiles and the iso mappings are read from the nifi-resources
+ * directory of the repository, or from the directory given by the
+ * {@value #RESOURCES} system property.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DetectLanguageBenchmark {
+	static final String RESOURCES = "tess4j.benchmark.resources";
+
+	@Param({ "filename", "eng", "fra", "deu" })
+	public String sample;
+
+	private String text;
+	private Detection detection;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, LangDetectException {
+		File resources = new File(System.getProperty(RESOURCES, "../../../nifi-resources"));
+		if (DetectorFactory.getLangList().isEmpty()) {
+			DetectorFactory.loadProfile(new File(resources, "profiles" + File.separator + "com.cybozu.labs"));
+		}
+		detection = new Detection();
+		TestRunners.newTestRunner(detection);
+		detection.setMappings(load(new File(resources, "mapping_iso639.properties")),
+				load(new File(resources, "supported_lgpack_iso639.properties")));
+		switch (sample) {
+		case "filename":
+			text = "scan_fr_00042.pdf";
+			break;
+		case "fra":
+			text = "Le vif renard brun saute par-dessus le chien paresseux. Portez ce vieux whisky au juge blond qui fume.";
+			break;
+		case "deu":
+			text = "Der schnelle braune Fuchs springt über den faulen Hund. Zwölf Boxkämpfer jagen Viktor quer über den großen Sylter Deich.";
+			break;
+		default:
+			text = BenchmarkDocuments.TEXT;
+		}
+	}
+
+	private static Properties load(File file) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			properties.load(in);
+		}
+		return properties;
+	}
+
+	@Benchmark
+	public String detectLanguage() throws LangDetectException {
+		return detection.detect(text);
+	}
+
+	/**
+	 * Gives access to the detection of the processor.
+	 */
+	public static class Detection extends Tess4JOcr {
+		void setMappings(Properties mapping, Properties supported) {
+			mappingIso639Part3 = mapping;
+			supportedLgPack = supported;
+		}
+
+		String detect(String text) throws LangDetectException {
+			return detectLanguage(text);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.hurtrobotic.nifi.processors.tess4J.MappedRandomAccessRead;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loads a document from a file stream, like the content of a FlowFile, with
+ * the split modes of PdfSplit and reads the content of every page. Unlike the
+ * processor benchmarks the document is never held in a byte array, so PDF
+ * fixtures of several GB can be measured, preferably with {@code -bm ss} and
+ * {@code -prof gc} to compare the heap allocated by each mode.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PdfLoadBenchmark {
+
+	@Param({ "200" })
+	public int pages;
+
+	@Param({ "streaming", "in-memory", "mapped" })
+	public String mode;
+
+	private File document;
+	private boolean temporary;
+	private final byte[] buffer = new byte[8192];
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		String fixture = System.getProperty(BenchmarkDocuments.PDF_FIXTURE);
+		if (fixture != null) {
+			document = new File(fixture);
+		} else {
+			document = File.createTempFile("benchmark", ".pdf");
+			temporary = true;
+			Files.write(document.toPath(), BenchmarkDocuments.pdf(pages));
+		}
+	}
+
+	@Benchmark
+	public long load(PageCounter counter) throws IOException {
+		long size = 0;
+		try (InputStream in = new FileInputStream(document); PDDocument pdf = load(in)) {
+			for (PDPage page : pdf.getPages()) {
+				try (InputStream content = page.getContents()) {
+					for (int read; (read = content.read(buffer)) != -1;) {
+						size += read;
+					}
+				}
+				counter.pages++;
+			}
+		}
+		return size;
+	}
+
+	private PDDocument load(InputStream in) throws IOException {
+		if ("mapped".equals(mode)) {
+			return MappedRandomAccessRead.load(in, MemoryUsageSetting.setupMixed(50 * 1024 * 1024));
+		} else if ("in-memory".equals(mode)) {
+			return PDDocument.load(in, MemoryUsageSetting.setupMainMemoryOnly());
+		}
+		return PDDocument.load(in, MemoryUsageSetting.setupMixed(50 * 1024 * 1024));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if (temporary) {
+			document.delete();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J.benchmarks;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.hurtrobotic.nifi.processors.tess4J.PdfSplit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Splits a document with {@link PdfSplit} through a {@link TestRunner}. The
+ * pages result is the split throughput in pages per second, run with
+ * {@code -prof gc} and divide gc.alloc.rate.norm by the page count to get the
+ * allocation per page.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PdfSplitBenchmark {
+
+	@Param({ "20" })
+	public int pages;
+
+	@Param({ "streaming", "in-memory", "mapped" })
+	public String mode;
+
+	@Param({ "page", "chunk" })
+	public String strategy;
+
+	private byte[] document;
+	private int documentPages;
+	private TestRunner runner;
+	private final Map<String, String> attributes = Collections.singletonMap(CoreAttributes.FILENAME.key(), "document.pdf");
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		document = BenchmarkDocuments.pdf(pages);
+		documentPages = BenchmarkDocuments.pageCount(document);
+		runner = TestRunners.newTestRunner(PdfSplit.class);
+		runner.setValidateExpressionUsage(false);
+		runner.setProperty(PdfSplit.PDF_SPLIT_MODE, mode);
+		runner.setProperty(PdfSplit.PDF_SPLIT_STRATEGY, strategy);
+		runner.run(1, false, true);
+	}
+
+	@Benchmark
+	public int split(PageCounter counter) {
+		runner.enqueue(document, attributes);
+		runner.run(1, false, false);
+		int splits = runner.getFlowFilesForRelationship(PdfSplit.REL_FILES).size();
+		runner.clearTransferState();
+		runner.clearProvenanceEvents();
+		counter.pages += documentPages;
+		return splits;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		runner.run(1, true, false);
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.MockProcessContext;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.hurtrobotic.nifi.processors.tess4J.Tess4JOcr;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Per FlowFile property resolution of {@link Tess4JOcr} : filename split, language
+ * extraction regex and the properties read for every FlowFile. The regex is
+ * either a static value or an Expression Language reference to an attribute.
+ * Run with {@code -prof gc}, gc.alloc.rate.norm is the allocation per FlowFile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PropertyResolutionBenchmark {
+	private static final String REGEX = ".*[-|_](\\w{2,3})[-|_]\\d{5}\\.\\w{3,4}";
+	private static final String FILENAME = "scan_fra_00042.tiff";
+
+	@Param({ "static", "expression" })
+	public String regex;
+
+	private Resolution resolution;
+	private ProcessContext context;
+	private FlowFile flowFile;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		resolution = new Resolution();
+		TestRunner runner = TestRunners.newTestRunner(resolution);
+		runner.setProperty(Tess4JOcr.FILENAME_LANGUAGE_EXTRACTION_MODE, "regex");
+		runner.setProperty(Tess4JOcr.FILENAME_LANGUAGE_EXTRACTION_REGEX,
+				"expression".equals(regex) ? "${language.regex}" : REGEX);
+		MockProcessContext mockContext = (MockProcessContext) runner.getProcessContext();
+		// as while the runner triggers the processor, else Expression Language is not detected
+		mockContext.enableExpressionValidation();
+		context = mockContext;
+		resolution.resolveProperties(context);
+		Map<String, String> attributes = new HashMap<>();
+		attributes.put(CoreAttributes.FILENAME.key(), FILENAME);
+		attributes.put("language.regex", REGEX);
+		MockFlowFile mockFlowFile = new MockFlowFile(1);
+		mockFlowFile.putAttributes(attributes);
+		flowFile = mockFlowFile;
+	}
+
+	@Benchmark
+	public String[] fileInfos() {
+		return resolution.getFileInfos(FILENAME);
+	}
+
+	@Benchmark
+	public String extractLanguage() {
+		return resolution.extract(context, flowFile);
+	}
+
+	@Benchmark
+	public void properties(Blackhole blackhole) {
+		resolution.resolve(context, flowFile, blackhole);
+	}
+
+	/**
+	 * Gives access to the property resolution of the processor.
+	 */
+	public static class Resolution extends Tess4JOcr {
+		String extract(ProcessContext context, FlowFile flowFile) {
+			return extractIsoFromFileName(context, flowFile, flowFile.getAttribute(CoreAttributes.FILENAME.key()));
+		}
+
+		void resolve(ProcessContext context, FlowFile flowFile, Blackhole blackhole) {
+			blackhole.consume(getPropertyValue(context, OCR_INPUT_MODE, flowFile));
+			blackhole.consume(getPropertyValue(context, RENDER_DPI, flowFile));
+			blackhole.consume(getPropertyValue(context, OCR_ZONES, flowFile));
+			blackhole.consume(getPropertyValue(context, TESSERACT_OUTPUT_FORMAT, flowFile));
+			blackhole.consume(getPropertyValue(context, TESSERACT_INSTALL_DIR, flowFile));
+			blackhole.consume(getPropertyValue(context, TESSERACT_ENGINE_MODE, flowFile));
+			blackhole.consume(getPropertyValue(context, TESSERACT_PAGE_SEG_MODE, flowFile));
+			blackhole.consume(getPropertyValue(context, FILENAME_LANGUAGE_EXTRACTION_MODE, flowFile));
+			blackhole.consume(getPropertyValue(context, DEFAULT_LANGUAGE, flowFile));
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J.benchmarks;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.hurtrobotic.nifi.processors.tess4J.Tess4JOcr;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per page latency of {@link Tess4JOcr} through a {@link TestRunner}, by
+ * language, page segmentation mode and engine mode. Requires Tesseract and the
+ * language packs, the tessdata directory is given by the
+ * {@value #TESSDATA} system property. The OCR result cache is disabled so that
+ * every page is recognized.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class Tess4JOcrBenchmark {
+	static final String TESSDATA = "tess4j.benchmark.tessdata";
+
+	@Param({ "eng" })
+	public String language;
+
+	@Param({ "3", "6" })
+	public String pageSegMode;
+
+	@Param({ "2" })
+	public String engineMode;
+
+	@Param({ "300" })
+	public int dpi;
+
+	private byte[] image;
+	private TestRunner runner;
+	private final Map<String, String> attributes = Collections.singletonMap(CoreAttributes.FILENAME.key(), "page.png");
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		image = BenchmarkDocuments.image(dpi);
+		runner = TestRunners.newTestRunner(Tess4JOcr.class);
+		runner.setValidateExpressionUsage(false);
+		runner.setProperty(Tess4JOcr.FILENAME_LANGUAGE_EXTRACTION_MODE, "none");
+		runner.setProperty(Tess4JOcr.DEFAULT_LANGUAGE, language);
+		runner.setProperty(Tess4JOcr.TESSERACT_PAGE_SEG_MODE, pageSegMode);
+		runner.setProperty(Tess4JOcr.TESSERACT_ENGINE_MODE, engineMode);
+		runner.setProperty(Tess4JOcr.OCR_CACHE_MAX_ENTRIES, "0");
+		runner.setProperty(Tess4JOcr.TESSERACT_OUTPUT_FORMAT, "TXT");
+		String tessdata = System.getProperty(TESSDATA);
+		if (tessdata != null) {
+			runner.setProperty(Tess4JOcr.TESSERACT_INSTALL_DIR, tessdata);
+		}
+		runner.run(1, false, true);
+	}
+
+	@Benchmark
+	public long recognize() {
+		runner.enqueue(image, attributes);
+		runner.run(1, false, false);
+		MockFlowFile text = runner.getFlowFilesForRelationship(Tess4JOcr.REL_OCR).get(0);
+		runner.clearTransferState();
+		runner.clearProvenanceEvents();
+		return text.getSize();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		runner.run(1, true, false);
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J.benchmarks;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.hurtrobotic.nifi.processors.tess4J.TiffConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Converts a document to a multi-page TIFF with {@link TiffConverter} through a
+ * {@link TestRunner}. The pages result is the render throughput in pages per
+ * second. The ghostscript engine requires Ghostscript on the path.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class TiffConverterBenchmark {
+
+	@Param({ "5" })
+	public int pages;
+
+	@Param({ "pdfbox" })
+	public String engine;
+
+	@Param({ "150", "300" })
+	public int dpi;
+
+	/**
+	 * bilevel pages are compressed with CCITT T.6, gray pages with LZW.
+	 */
+	@Param({ "bilevel", "gray" })
+	public String colorMode;
+
+	@Param({ "scratch" })
+	public String access;
+
+	private byte[] document;
+	private int documentPages;
+	private TestRunner runner;
+	private final Map<String, String> attributes = Collections.singletonMap(CoreAttributes.FILENAME.key(), "document.pdf");
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		document = BenchmarkDocuments.pdf(pages);
+		documentPages = BenchmarkDocuments.pageCount(document);
+		runner = TestRunners.newTestRunner(TiffConverter.class);
+		runner.setProperty(TiffConverter.TIFF_RENDERING_ENGINE, engine);
+		runner.setProperty(TiffConverter.TIFF_RENDER_DPI, String.valueOf(dpi));
+		runner.setProperty(TiffConverter.TIFF_COLOR_MODE, colorMode);
+		runner.setProperty(TiffConverter.TIFF_COMPRESSION, "gray".equals(colorMode) ? "LZW" : "CCITT T.6");
+		runner.setProperty(TiffConverter.TIFF_PDF_ACCESS, access);
+		runner.run(1, false, true);
+	}
+
+	@Benchmark
+	public long convert(PageCounter counter) {
+		runner.enqueue(document, attributes);
+		runner.run(1, false, false);
+		long size = runner.getFlowFilesForRelationship(TiffConverter.REL_FILES).get(0).getSize();
+		runner.clearTransferState();
+		runner.clearProvenanceEvents();
+		counter.pages += documentPages;
+		return size;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		runner.run(1, true, false);
+	}
+}
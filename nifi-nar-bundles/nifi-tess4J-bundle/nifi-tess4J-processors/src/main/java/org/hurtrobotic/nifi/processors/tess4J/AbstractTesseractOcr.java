@@ -1,20 +1,44 @@
 package org.hurtrobotic.nifi.processors.tess4J;
 
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.commons.lang.StringUtils;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 
 import com.cybozu.labs.langdetect.Detector;
@@ -23,13 +47,38 @@ import com.cybozu.labs.langdetect.LangDetectException;
 import com.cybozu.labs.langdetect.Language;
 
 
+
 public abstract class AbstractTesseractOcr extends AbstractProcessor {
 	protected static final String PROP_MAPPING_ISO639 = File.separatorChar +"mapping_iso639.properties";
 	protected static final String PROP_SUPPORTED_LGPACK = File.separatorChar +"supported_lgpack_iso639.properties";
+	protected static final int LANGUAGE_DETECTION_MAX_TEXT_LENGTH = 2000;
 	protected static final String PROPDIR_LANG_DETECT = File.separatorChar +"profiles" + File.separatorChar + "com.cybozu.labs";
+	protected static final String OUTPUT_FORMAT_PDF = "PDFDOC";
+	protected static final String OUTPUT_FORMAT_TXT = "TXT";
+	protected static final String OUTPUT_FORMAT_HOCR = "HOCR";
+	protected static final String OUTPUT_FORMAT_ALTO = "ALTO";
+	protected static final String OUTPUT_FORMAT_WORDS = "WORDS";
+	protected static final String WARMUP_NONE = "none";
+	protected static final String WARMUP_BACKGROUND = "background";
+	protected static final String WARMUP_BLOCKING = "blocking";
+	private static final String WARMUP_TEXT = "The quick brown fox jumps over the lazy dog 0123456789";
+	private static final String COUNTER_WARMUP_TIME = "Tesseract warm-up time (ms)";
+	private static final Pattern FILE_NAME_PATTERN = Pattern.compile("^(.*)\\.([^.]*)$");
+	private static final int PATTERN_CACHE_SIZE = 32;
 	protected Properties mappingIso639Part3;
 	protected Properties supportedLgPack;
-	protected Detector detector;
+	protected final StageMetrics stageMetrics = new StageMetrics();
+	/**
+	 * Values of the properties without Expression Language, resolved once when
+	 * the processor is scheduled.
+	 */
+	private volatile Map<PropertyDescriptor, String> scheduledValues = Collections.emptyMap();
+	private volatile Pattern languageExtractionPattern;
+	private final PatternCache languageExtractionPatterns = new PatternCache(PATTERN_CACHE_SIZE);
+	private volatile int detectionMaxLanguages = 1;
+	private volatile double detectionMinProbability = 0;
+	private volatile Thread warmUpThread;
+	private final AtomicLong warmUpMillis = new AtomicLong(-1);
 
 	protected static final Set<String>allowedLanguages = new HashSet<String>( Arrays.asList("afr", "ara", "aze", "bel", "ben", "bul", "cat", "ces", "chi-sim", "chi-tra", "chr", "dan",
 			"deu", "deu-frak", "dev", "ell", "eng", "enm", "epo", "equ", "est", "eus", "fin", "fra", "frk",
@@ -37,13 +86,58 @@ public abstract class AbstractTesseractOcr extends AbstractProcessor {
 			"kor", "lav", "lit", "mal", "mkd", "mlt", "msa", "nld", "nor", "osd", "pol", "por", "ron", "rus",
 			"slk", "slk-frak", "slv", "spa", "spa-old", "sqi", "srp", "swa", "swe", "tam", "tel", "tgl", "tha",
 			"tur", "ukr", "vie"));
+
+	/**
+	 * Accepts a language pack or a combination of packs like fra+eng.
+	 */
+	protected static final Validator LANGUAGE_VALIDATOR = (subject, input, context) -> {
+		ValidationResult.Builder result = new ValidationResult.Builder().subject(subject).input(input);
+		if (context.isExpressionLanguageSupported(subject) && context.isExpressionLanguagePresent(input)) {
+			return result.valid(true).explanation("Expression Language Present").build();
+		}
+		for (String language : StringUtils.defaultString(input).split("\\+", -1)) {
+			if (!allowedLanguages.contains(language)) {
+				return result.valid(false).explanation("\"" + language + "\" is not a supported language, "
+						+ "languages are combined with +, e.g. fra+eng").build();
+			}
+		}
+		return result.valid(true).build();
+	};
+
+	/**
+	 * Accepts a comma separated list of languages or combinations of
+	 * languages.
+	 */
+	protected static final Validator LANGUAGE_LIST_VALIDATOR = (subject, input, context) -> {
+		for (String language : StringUtils.defaultString(input).split(",", -1)) {
+			ValidationResult result = LANGUAGE_VALIDATOR.validate(subject, language.trim(), context);
+			if (!result.isValid()) {
+				return result;
+			}
+		}
+		return new ValidationResult.Builder().subject(subject).input(input).valid(true).build();
+	};
+
+	private static final Validator PROBABILITY_VALIDATOR = (subject, input, context) -> {
+		ValidationResult.Builder result = new ValidationResult.Builder().subject(subject).input(input);
+		try {
+			double probability = Double.parseDouble(input);
+			return result.valid(probability >= 0 && probability <= 1)
+					.explanation("must be a number between 0 and 1").build();
+		} catch (NumberFormatException | NullPointerException e) {
+			return result.valid(false).explanation("must be a number between 0 and 1").build();
+		}
+	};
 	
 	public static final PropertyDescriptor FILENAME_LANGUAGE_EXTRACTION_MODE = new PropertyDescriptor.Builder()
 			.name("filename.language.extraction.mode").displayName("language Iso extraction mode")
 			.description("Mode used for extracting iso code from Flowfile filename. "
-					+ "Valid values are regex textdetection regexORtextdetection textdetectionORregex.")
+					+ "Valid values are regex textdetection regexORtextdetection textdetectionORregex. "
+					+ "ocrsample detects the language of the text recognized, with the default language, "
+					+ "in a low resolution crop of the first page, before the full OCR pass.")
 			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).defaultValue("none")
-			.allowableValues("regex", "textdetection", "regexORtextdetection", "textdetectionORregex", "none")
+			.allowableValues("regex", "textdetection", "regexORtextdetection", "textdetectionORregex", "ocrsample",
+					"none")
 			.required(true).build();
 
 	public static final PropertyDescriptor FILENAME_LANGUAGE_EXTRACTION_REGEX = new PropertyDescriptor.Builder()
@@ -87,24 +181,355 @@ public abstract class AbstractTesseractOcr extends AbstractProcessor {
 
 	public static final PropertyDescriptor TESSERACT_OUTPUT_FORMAT = new PropertyDescriptor.Builder()
 			.name("tesseract.output.format").displayName("Tesseract output format")
-			.description("Output format for OCR production")
+			.description("Output format for OCR production. PDFDOC : searchable PDF, the page images with an "
+					+ "invisible text layer. TXT : plain text. HOCR : hOCR XHTML with the box and confidence of "
+					+ "each word. ALTO : ALTO v3 XML with the box and confidence of each word. WORDS : compact JSON, "
+					+ "one array per word with its text, confidence, box, block and line.")
 			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR) 
-			.allowableValues("PDFDOC", "TXT")
-			.defaultValue("PDFDOC").required(true).build();	
+			.allowableValues(OUTPUT_FORMAT_PDF, OUTPUT_FORMAT_TXT, OUTPUT_FORMAT_HOCR, OUTPUT_FORMAT_ALTO,
+					OUTPUT_FORMAT_WORDS)
+			.defaultValue(OUTPUT_FORMAT_PDF).required(true).build();	
 	
 	public static final PropertyDescriptor DEFAULT_LANGUAGE = new PropertyDescriptor.Builder().name("default.language")
 			.displayName("Default language")
-			.description("Default language if detection failed or extraction mode set to none.")
-			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).expressionLanguageSupported(true).defaultValue("eng")
-			.allowableValues(allowedLanguages)
+			.description("Default language if detection failed or extraction mode set to none. Languages are "
+					+ "combined with +, e.g. fra+eng, for documents mixing them. The first language is preferred.")
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).addValidator(LANGUAGE_VALIDATOR)
+			.expressionLanguageSupported(true).defaultValue("eng")
 			.required(true).build();
 
-	
+	public static final PropertyDescriptor LANGUAGE_DETECTION_MAX_LANGUAGES = new PropertyDescriptor.Builder()
+			.name("language.detection.max.languages").displayName("Detected languages maximum")
+			.description("Maximum number of detected languages combined for OCR, e.g. fra+eng. The most probable "
+					+ "language comes first, the other ones are added when their probability reaches the minimum "
+					+ "probability. Each combination has its own warm Tesseract engines.")
+			.addValidator(StandardValidators.createLongValidator(1, 4, true)).defaultValue("1")
+			.required(true).build();
+
+	public static final PropertyDescriptor LANGUAGE_DETECTION_MIN_PROBABILITY = new PropertyDescriptor.Builder()
+			.name("language.detection.min.probability").displayName("Detected language minimum probability")
+			.description("Probability, from 0 to 1, a detected language other than the most probable one must reach "
+					+ "to be combined with it.")
+			.addValidator(PROBABILITY_VALIDATOR).defaultValue("0.2")
+			.required(true).build();
+
+	public static final PropertyDescriptor TESSERACT_ENGINE_POOL_IDLE_TIME = new PropertyDescriptor.Builder()
+			.name("tesseract.engine.pool.idle.time").displayName("Tesseract engine max idle time")
+			.description("Warm Tesseract engines are kept per language, datapath, engine mode and page segmentation mode, "
+					+ "up to the number of concurrent tasks. An engine not used for this amount of time is released.")
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).defaultValue("5 mins")
+			.required(true).build();
+
+	public static final PropertyDescriptor RENDER_DPI = new PropertyDescriptor.Builder()
+			.name("ocr.render.dpi").displayName("Render DPI")
+			.description("Resolution used to render the pages of a PDF document before OCR, at most 600. "
+					+ "Very large pages are rendered at a lower resolution. Ignored for images.")
+			.addValidator(StandardValidators.createLongValidator(1, 600, true)).defaultValue("300")
+			.required(true).build();
+
+	public static final PropertyDescriptor METRICS_REPORT_INTERVAL = new PropertyDescriptor.Builder()
+			.name("metrics.report.interval").displayName("Metrics report interval")
+			.description("The time spent in each processing stage is written to FlowFile attributes and counters. "
+					+ "The p50, p95 and p99 of each stage over this interval are logged at INFO level. "
+					+ "0 sec disables the log.")
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).defaultValue("5 mins")
+			.required(true).build();
+
+	public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("batch.size").displayName("Batch size")
+			.description("Maximum number of FlowFiles processed in a single session. "
+					+ "A FlowFile that fails is routed to failure without affecting the others of the batch.")
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).defaultValue("1")
+			.required(true).build();
+
+	public static final PropertyDescriptor WORKER_THREADS = new PropertyDescriptor.Builder()
+			.name("ocr.worker.threads").displayName("OCR worker threads")
+			.description("Number of threads recognizing the pages of a document in parallel. The pool is shared by "
+					+ "all the concurrent tasks of the processor, each task keeps at most this number of decoded "
+					+ "pages in memory.")
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+			.defaultValue(String.valueOf(Runtime.getRuntime().availableProcessors()))
+			.required(true).build();
+
+
+	public static final PropertyDescriptor WARMUP_MODE = new PropertyDescriptor.Builder()
+			.name("ocr.warmup.mode").displayName("Warm-up mode")
+			.description("When the processor is scheduled, opens every engine of the pool for the warm-up languages, "
+					+ "each one recognizing a small synthetic page, and loads the language detection profiles, so that "
+					+ "the first FlowFiles do not wait for Tesseract and the language packs to load. "
+					+ "none : engines are opened by the first FlowFiles. background : FlowFiles are processed during "
+					+ "the warm-up, with the engines already warm or with their own. blocking : the processor starts "
+					+ "once the warm-up is complete, a failed warm-up fails the scheduling, which is retried. "
+					+ "The warm-up keeps every engine of the pool in memory until they are evicted as idle.")
+			.allowableValues(WARMUP_NONE, WARMUP_BACKGROUND, WARMUP_BLOCKING).defaultValue(WARMUP_NONE)
+			.required(true).build();
+
+	public static final PropertyDescriptor WARMUP_LANGUAGES = new PropertyDescriptor.Builder()
+			.name("ocr.warmup.languages").displayName("Warm-up languages")
+			.description("Comma separated languages, or combinations like fra+eng, whose engines are opened by the "
+					+ "warm-up. Defaults to the default language. Each language opens as many engines as the pool "
+					+ "holds, each with its language pack in memory.")
+			.addValidator(LANGUAGE_LIST_VALIDATOR).required(false).build();
+
+	/**
+	 * Resolves the properties without Expression Language and compiles the
+	 * language extraction regex once, rather than for every FlowFile.
+	 */
+	@OnScheduled
+	public void resolveProperties(final ProcessContext context) {
+		Map<PropertyDescriptor, String> values = new HashMap<>();
+		for (PropertyDescriptor descriptor : getSupportedPropertyDescriptors()) {
+			PropertyValue property = context.getProperty(descriptor);
+			if (!property.isSet()) {
+				values.put(descriptor, null);
+			} else if (!descriptor.isExpressionLanguageSupported()) {
+				values.put(descriptor, property.getValue());
+			} else if (!property.isExpressionLanguagePresent()) {
+				values.put(descriptor, property.evaluateAttributeExpressions().getValue());
+			}
+		}
+		String maxLanguages = values.get(LANGUAGE_DETECTION_MAX_LANGUAGES);
+		detectionMaxLanguages = maxLanguages == null ? 1 : Integer.parseInt(maxLanguages);
+		String minProbability = values.get(LANGUAGE_DETECTION_MIN_PROBABILITY);
+		detectionMinProbability = minProbability == null ? 0 : Double.parseDouble(minProbability);
+		String regex = values.get(FILENAME_LANGUAGE_EXTRACTION_REGEX);
+		languageExtractionPattern = StringUtils.isEmpty(regex) ? null : Pattern.compile(regex);
+		languageExtractionPatterns.clear();
+		scheduledValues = Collections.unmodifiableMap(values);
+	}
+
+	/**
+	 * Creates the pool of daemon threads recognizing pages, to be shut down when
+	 * the processor is stopped.
+	 */
+	protected ExecutorService createWorkerPool(int threads) {
+		final String poolName = getClass().getSimpleName() + "-" + getIdentifier();
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, poolName + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Opens every engine of the pool for the warm-up languages, each one
+	 * recognizing a synthetic page, in the background or before returning
+	 * depending on the warm-up mode.
+	 *
+	 * @param executor
+	 *            threads opening the engines in parallel
+	 * @throws ProcessException
+	 *             if a blocking warm-up fails
+	 */
+	protected void warmUp(final ProcessContext context, final TesseractEnginePool pool, final ExecutorService executor) {
+		final String mode = context.getProperty(WARMUP_MODE).getValue();
+		if (WARMUP_NONE.equals(mode)) {
+			return;
+		}
+		final List<TesseractEnginePool.Key> keys = getWarmUpKeys(context);
+		final String extractionMode = getSupportedPropertyDescriptors().contains(FILENAME_LANGUAGE_EXTRACTION_MODE)
+				? context.getProperty(FILENAME_LANGUAGE_EXTRACTION_MODE).getValue() : "none";
+		final boolean detection = extractionMode.contains("textdetection") || "ocrsample".equals(extractionMode);
+		if (WARMUP_BLOCKING.equals(mode)) {
+			try {
+				runWarmUp(keys, detection, pool, executor);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ProcessException("Warm-up interrupted", e);
+			} catch (ExecutionException e) {
+				throw new ProcessException("Warm-up failed", e.getCause());
+			}
+			return;
+		}
+		Thread thread = new Thread(() -> {
+			try {
+				runWarmUp(keys, detection, pool, executor);
+			} catch (InterruptedException e) {
+				getLogger().debug("Warm-up interrupted");
+			} catch (ExecutionException | RuntimeException e) {
+				getLogger().warn("Warm-up failed, engines will be opened by the first FlowFiles",
+						new Object[] { e instanceof ExecutionException ? e.getCause() : e });
+			}
+		}, getClass().getSimpleName() + "-" + getIdentifier() + "-warmup");
+		thread.setDaemon(true);
+		warmUpThread = thread;
+		thread.start();
+	}
+
+	private void runWarmUp(List<TesseractEnginePool.Key> keys, boolean detection, final TesseractEnginePool pool,
+			ExecutorService executor) throws InterruptedException, ExecutionException {
+		final long start = System.nanoTime();
+		if (detection) {
+			try {
+				SingletonDetectorFactory.getInstance();
+				detectLanguage(WARMUP_TEXT);
+			} catch (LangDetectException e) {
+				getLogger().warn("Language detection profiles could not be loaded : {}", new Object[] { e.getMessage() });
+			}
+		}
+		final BufferedImage page = createWarmUpPage();
+		int opened = 0;
+		for (final TesseractEnginePool.Key key : keys) {
+			// engines go straight to the idle ones, FlowFiles borrowing meanwhile are not held
+			List<Future<Boolean>> engines = new ArrayList<>();
+			try {
+				for (int i = 0; i < pool.getMaxPerKey(); i++) {
+					engines.add(executor.submit(() -> !Thread.currentThread().isInterrupted()
+							&& pool.openIdle(key, engine -> engine.recognize(page, null))));
+				}
+				for (Future<Boolean> engine : engines) {
+					if (engine.get()) {
+						opened++;
+					}
+				}
+			} finally {
+				for (Future<Boolean> engine : engines) {
+					engine.cancel(true);
+				}
+			}
+		}
+		final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		warmUpMillis.set(millis);
+		getLogger().info("Warm-up of {} engines for {} completed in {} ms", new Object[] { opened, keys, millis });
+	}
+
+	/**
+	 * @return the keys of the engines of the warm-up languages, empty if the
+	 *         Tesseract properties depend on FlowFile attributes
+	 */
+	private List<TesseractEnginePool.Key> getWarmUpKeys(ProcessContext context) {
+		List<TesseractEnginePool.Key> keys = new ArrayList<>();
+		String datapath = getScheduledValue(context, TESSERACT_INSTALL_DIR);
+		String engineMode = getScheduledValue(context, TESSERACT_ENGINE_MODE);
+		String pageSegMode = getScheduledValue(context, TESSERACT_PAGE_SEG_MODE);
+		String languages = context.getProperty(WARMUP_LANGUAGES).isSet() ? context.getProperty(WARMUP_LANGUAGES).getValue()
+				: getScheduledValue(context, DEFAULT_LANGUAGE);
+		if (datapath == null || engineMode == null || pageSegMode == null || languages == null) {
+			getLogger().warn("Tesseract properties depend on FlowFile attributes, engines are not warmed up");
+			return keys;
+		}
+		for (String language : languages.split(",")) {
+			String packs = toLanguagePacks(language.trim());
+			if (packs != null) {
+				keys.add(new TesseractEnginePool.Key(packs, datapath, Integer.parseInt(engineMode),
+						Integer.parseInt(pageSegMode)));
+			}
+		}
+		return keys;
+	}
+
+	/**
+	 * @return the value of the property, null if it contains Expression
+	 *         Language
+	 */
+	private static String getScheduledValue(ProcessContext context, PropertyDescriptor descriptor) {
+		PropertyValue property = context.getProperty(descriptor);
+		return property.isExpressionLanguagePresent() ? null : property.evaluateAttributeExpressions().getValue();
+	}
+
+	/**
+	 * Draws a line of text, enough for Tesseract to run every stage of the
+	 * recognition.
+	 */
+	private static BufferedImage createWarmUpPage() {
+		BufferedImage page = new BufferedImage(600, 60, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D graphics = page.createGraphics();
+		try {
+			graphics.setColor(Color.WHITE);
+			graphics.fillRect(0, 0, page.getWidth(), page.getHeight());
+			graphics.setColor(Color.BLACK);
+			graphics.setFont(new Font(Font.SERIF, Font.PLAIN, 24));
+			graphics.drawString(WARMUP_TEXT, 10, 40);
+		} finally {
+			graphics.dispose();
+		}
+		return page;
+	}
+
+	/**
+	 * Stops a warm-up still running, to be called before the pool is closed.
+	 */
+	protected void cancelWarmUp() {
+		Thread thread = warmUpThread;
+		warmUpThread = null;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Adds the duration of the last warm-up to the counters, once.
+	 */
+	protected void reportWarmUp(ProcessSession session) {
+		long millis = warmUpMillis.getAndSet(-1);
+		if (millis >= 0) {
+			session.adjustCounter(COUNTER_WARMUP_TIME, millis, false);
+		}
+	}
+
+	/**
+	 * Returns the value of a property for the given FlowFile. Properties without
+	 * Expression Language are taken from the values resolved when the
+	 * processor was scheduled.
+	 */
+	protected String getPropertyValue(ProcessContext context, PropertyDescriptor descriptor, FlowFile flowFile) {
+		Map<PropertyDescriptor, String> values = scheduledValues;
+		if (values.containsKey(descriptor)) {
+			return values.get(descriptor);
+		}
+		PropertyValue property = context.getProperty(descriptor);
+		if (property.isExpressionLanguagePresent()) {
+			return property.evaluateAttributeExpressions(flowFile).getValue();
+		}
+		return property.getValue();
+	}
+
+	/**
+	 * Extracts the language from group(1) of the language extraction regex
+	 * matched against the text, usually the filename.
+	 *
+	 * @return the language, null if the regex is empty or does not match
+	 */
+	protected String extractIsoFromFileName(ProcessContext context, FlowFile flowFile, String text) {
+		Pattern pattern;
+		if (scheduledValues.containsKey(FILENAME_LANGUAGE_EXTRACTION_REGEX)) {
+			pattern = languageExtractionPattern;
+		} else {
+			String regex = getPropertyValue(context, FILENAME_LANGUAGE_EXTRACTION_REGEX, flowFile);
+			pattern = StringUtils.isEmpty(regex) ? null : languageExtractionPatterns.get(regex);
+		}
+		if (pattern == null || text == null) {
+			return null;
+		}
+		Matcher matcher = pattern.matcher(text);
+		String isoLanguage = matcher.find() ? matcher.group(1) : null;
+		getLogger().debug("File Language extraction of {} with regex {} : {}",
+				new Object[] { text, pattern, isoLanguage });
+		return isoLanguage;
+	}
+
+	@OnScheduled
+	public void resetStageMetrics() {
+		stageMetrics.reset();
+	}
+
+	/**
+	 * Logs the stage percentiles when the report interval has elapsed.
+	 */
+	protected void reportStageMetrics(ProcessContext context) {
+		stageMetrics.reportIfDue(context.getProperty(METRICS_REPORT_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS),
+				getLogger());
+	}
+
 	public String[] getFileInfos(String fileName) {
 		String[] retour = null;
-		final Pattern pattern = Pattern.compile("^(.*)\\.([^.]*)$");
 		if (!StringUtils.isEmpty(fileName)) {
-			Matcher matcher = pattern.matcher(fileName);
+			Matcher matcher = FILE_NAME_PATTERN.matcher(fileName);
 			if (matcher.find()) {
 				if (matcher.groupCount() == 2) {
 					retour = new String[] {matcher.group(1).trim(),matcher.group(2).trim()};
@@ -143,26 +568,75 @@ public abstract class AbstractTesseractOcr extends AbstractProcessor {
 		 getLogger().info("End Init.");
     }
     
+	/**
+	 * Detects the language of the text. A detector accumulates the text it is
+	 * given and cannot be reset, so one is created per call, it only references
+	 * the profiles loaded once by the DetectorFactory.
+	 * <p>
+	 * The most probable language with a language pack is combined with the
+	 * next ones whose probability reaches the minimum probability, up to the
+	 * maximum number of detected languages.
+	 *
+	 * @return a language pack or a combination like fra+eng, null if no
+	 *         language was detected
+	 */
 	protected String detectLanguage(String text) throws LangDetectException {	         
-		String detectedLanguage = null;
-		detector = DetectorFactory.create(); 
+		Set<String> detectedLanguages = new LinkedHashSet<>();
+		Detector detector = DetectorFactory.create(); 
+		detector.setMaxTextLength(LANGUAGE_DETECTION_MAX_TEXT_LENGTH);
         detector.append(text);
         ArrayList<Language> probabilities = detector.getProbabilities();
         if (probabilities != null) {
 	        for(int i=0;i<probabilities.size();i++) {
-	        	String lg = probabilities.get(i).lang;
+	        	Language probability = probabilities.get(i);
+	        	if (!detectedLanguages.isEmpty() && (detectedLanguages.size() >= detectionMaxLanguages
+	        			|| probability.prob < detectionMinProbability)) {
+	        		break;
+	        	}
+	        	String lg = probability.lang;
 	        	String isoLg = mappingIso639Part3.getProperty(lg);
+	        	if (isoLg == null) {
+	        		// detected languages like zh-cn have no ISO 639-3 mapping
+	        		getLogger().debug("Detect Language probabilities #{} : {} not mapped, skipped", new Object[] { Integer.valueOf(i), lg });
+	        		continue;
+	        	}
 	        	String check = this.supportedLgPack.getProperty(isoLg);
-	        	getLogger().info("Detect Language probabilities #{} : {} - {} - {}",new Object[] { Integer.valueOf(i), lg, isoLg, check });
-	        	if (check.equalsIgnoreCase("yes")) {
-	        		detectedLanguage = isoLg;
-	        		break;
+	        	getLogger().debug("Detect Language probabilities #{} : {} - {} - {} - {}",new Object[] { Integer.valueOf(i), lg, isoLg, check, probability.prob });
+	        	if ("yes".equalsIgnoreCase(check)) {
+	        		detectedLanguages.add(isoLg);
 	        	}
 	        }
         }
-		getLogger().info("Detect Language is " + detectedLanguage);
+        String detectedLanguage = detectedLanguages.isEmpty() ? null : String.join("+", detectedLanguages);
+		getLogger().debug("Detect Language is {}", new Object[] { detectedLanguage });
         return detectedLanguage;
 	}
+
+	/**
+	 * Maps each language of a language or of a combination like fr+en to its
+	 * language pack, ISO 639-1 codes are mapped to ISO 639-3. Duplicates are
+	 * removed, the order is kept as Tesseract prefers the first language.
+	 *
+	 * @return the language pack or combination, null if a language has no
+	 *         supported pack
+	 */
+	protected String toLanguagePacks(String language) {
+		if (StringUtils.isEmpty(language)) {
+			return null;
+		}
+		Set<String> packs = new LinkedHashSet<>();
+		for (String part : language.split("\\+")) {
+			String pack = part.trim();
+			if (pack.length() == 2 && mappingIso639Part3 != null) {
+				pack = mappingIso639Part3.getProperty(pack);
+			}
+			if (pack == null || !allowedLanguages.contains(pack)) {
+				return null;
+			}
+			packs.add(pack);
+		}
+		return packs.isEmpty() ? null : String.join("+", packs);
+	}
     
 	
 	private static class SingletonDetectorFactory {
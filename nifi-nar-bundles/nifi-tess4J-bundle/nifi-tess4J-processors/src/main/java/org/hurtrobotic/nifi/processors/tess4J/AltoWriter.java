@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes an ALTO v3 document, measured in pixels of the recognized images.
+ */
+public class AltoWriter implements OcrDocumentWriter {
+	private static final String ALTO_NAMESPACE = "http://www.loc.gov/standards/alto/ns-v3#";
+
+	private final XMLStreamWriter xml;
+	private int pageCount;
+	private int blockCount;
+	private int lineCount;
+	private int wordCount;
+
+	public AltoWriter(OutputStream out) throws IOException {
+		try {
+			xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+			xml.writeStartDocument("UTF-8", "1.0");
+			xml.writeStartElement("alto");
+			xml.writeDefaultNamespace(ALTO_NAMESPACE);
+			xml.writeStartElement("Description");
+			xml.writeStartElement("MeasurementUnit");
+			xml.writeCharacters("pixel");
+			xml.writeEndElement();
+			xml.writeStartElement("OCRProcessing");
+			xml.writeAttribute("ID", "OCR_0");
+			xml.writeStartElement("ocrProcessingStep");
+			xml.writeStartElement("processingSoftware");
+			xml.writeStartElement("softwareName");
+			xml.writeCharacters("tesseract");
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.writeStartElement("Layout");
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void addPage(BufferedImage image, float dpi, List<OcrWord> words) throws IOException {
+		try {
+			Rectangle page = new Rectangle(image.getWidth(), image.getHeight());
+			xml.writeStartElement("Page");
+			xml.writeAttribute("ID", "page_" + pageCount);
+			xml.writeAttribute("PHYSICAL_IMG_NR", String.valueOf(++pageCount));
+			xml.writeAttribute("WIDTH", String.valueOf(page.width));
+			xml.writeAttribute("HEIGHT", String.valueOf(page.height));
+			startElement("PrintSpace", null, page);
+			int block = -1;
+			int line = -1;
+			for (int i = 0; i < words.size(); i++) {
+				OcrWord word = words.get(i);
+				if (word.getBlock() != block) {
+					if (line >= 0) {
+						// line and block
+						xml.writeEndElement();
+						xml.writeEndElement();
+						line = -1;
+					}
+					block = word.getBlock();
+					startElement("TextBlock", "block_" + blockCount++, OcrWord.blockBounds(words, i));
+				}
+				if (word.getLine() != line) {
+					if (line >= 0) {
+						xml.writeEndElement();
+					}
+					line = word.getLine();
+					startElement("TextLine", "line_" + lineCount++, OcrWord.lineBounds(words, i));
+				} else {
+					xml.writeEmptyElement("SP");
+				}
+				xml.writeEmptyElement("String");
+				writeBounds("string_" + wordCount++, word.getBounds());
+				xml.writeAttribute("WC", String.format(Locale.ROOT, "%.2f", word.getConfidence() / 100f));
+				xml.writeAttribute("CONTENT", word.getText());
+			}
+			if (line >= 0) {
+				xml.writeEndElement();
+				xml.writeEndElement();
+			}
+			// PrintSpace and Page
+			xml.writeEndElement();
+			xml.writeEndElement();
+			xml.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void startElement(String name, String id, Rectangle bounds) throws XMLStreamException {
+		xml.writeStartElement(name);
+		writeBounds(id, bounds);
+	}
+
+	private void writeBounds(String id, Rectangle bounds) throws XMLStreamException {
+		if (id != null) {
+			xml.writeAttribute("ID", id);
+		}
+		xml.writeAttribute("HPOS", String.valueOf(bounds.x));
+		xml.writeAttribute("VPOS", String.valueOf(bounds.y));
+		xml.writeAttribute("WIDTH", String.valueOf(bounds.width));
+		xml.writeAttribute("HEIGHT", String.valueOf(bounds.height));
+	}
+
+	@Override
+	public void finish() throws IOException {
+		try {
+			xml.writeEndDocument();
+			xml.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			xml.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+}
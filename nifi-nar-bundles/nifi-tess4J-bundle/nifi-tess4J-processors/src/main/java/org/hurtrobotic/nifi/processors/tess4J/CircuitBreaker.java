@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Opens when the failure rate of the last {@code windowSize} calls reaches
+ * {@code failureRate}, then rejects calls for {@code openMillis}. The first
+ * call allowed afterwards is a trial : the breaker closes if it succeeds and
+ * opens again if it fails. Other calls are rejected while the trial is in
+ * flight, and a new trial is allowed if it records no outcome within
+ * {@code openMillis}.
+ */
+public class CircuitBreaker {
+	private final int windowSize;
+	private final double failureRate;
+	private final long openNanos;
+	private final boolean[] failedCalls;
+	private final LongSupplier nanoTime;
+	private int next;
+	private int calls;
+	private int failures;
+	private boolean open;
+	private boolean trial;
+	private long openedAt;
+	private long trialStartedAt;
+
+	/**
+	 * @param failureRate
+	 *            from 0 excluded to 1
+	 */
+	public CircuitBreaker(int windowSize, double failureRate, long openMillis) {
+		this(windowSize, failureRate, openMillis, System::nanoTime);
+	}
+
+	/**
+	 * @param nanoTime
+	 *            clock of the open time, {@link System#nanoTime()} but in tests
+	 */
+	CircuitBreaker(int windowSize, double failureRate, long openMillis, LongSupplier nanoTime) {
+		this.windowSize = windowSize;
+		this.failureRate = failureRate;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+		this.failedCalls = new boolean[windowSize];
+		this.nanoTime = nanoTime;
+	}
+
+	/**
+	 * @return false while the breaker is open, and while a trial is in flight
+	 */
+	public synchronized boolean allowRequest() {
+		final long now = nanoTime.getAsLong();
+		if (open) {
+			if (now - openedAt < openNanos) {
+				return false;
+			}
+			open = false;
+			trial = true;
+			trialStartedAt = now;
+			return true;
+		}
+		if (trial) {
+			if (now - trialStartedAt < openNanos) {
+				return false;
+			}
+			// the trial call ended without an outcome, for instance on an empty queue
+			trialStartedAt = now;
+		}
+		return true;
+	}
+
+	/**
+	 * Records the outcome of a call.
+	 *
+	 * @return true if the breaker has just opened
+	 */
+	public synchronized boolean record(boolean failed) {
+		if (open) {
+			return false;
+		}
+		if (trial) {
+			trial = false;
+			if (failed) {
+				return trip();
+			}
+			reset();
+			return false;
+		}
+		if (calls == windowSize) {
+			if (failedCalls[next]) {
+				failures--;
+			}
+		} else {
+			calls++;
+		}
+		failedCalls[next] = failed;
+		if (failed) {
+			failures++;
+		}
+		next = (next + 1) % windowSize;
+		if (calls == windowSize && failures >= failureRate * windowSize) {
+			return trip();
+		}
+		return false;
+	}
+
+	private boolean trip() {
+		open = true;
+		openedAt = nanoTime.getAsLong();
+		reset();
+		return true;
+	}
+
+	private void reset() {
+		next = 0;
+		calls = 0;
+		failures = 0;
+	}
+
+	public synchronized boolean isOpen() {
+		return open;
+	}
+}
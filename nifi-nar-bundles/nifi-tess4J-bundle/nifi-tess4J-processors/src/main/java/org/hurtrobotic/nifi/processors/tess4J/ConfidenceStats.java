@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Mean and minimum confidence of the words recognized in a document, page
+ * after page.
+ */
+public class ConfidenceStats {
+	private int wordCount;
+	private double sum;
+	private float min = Float.MAX_VALUE;
+
+	public void add(float confidence) {
+		wordCount++;
+		sum += confidence;
+		min = Math.min(min, confidence);
+	}
+
+	public void addAll(float[] confidences) {
+		for (float confidence : confidences) {
+			add(confidence);
+		}
+	}
+
+	public void addWords(List<OcrWord> words) {
+		for (OcrWord word : words) {
+			add(word.getConfidence());
+		}
+	}
+
+	public int getWordCount() {
+		return wordCount;
+	}
+
+	/**
+	 * @return the mean confidence from 0 to 100, NaN if no word was added
+	 */
+	public float getMean() {
+		return wordCount == 0 ? Float.NaN : (float) (sum / wordCount);
+	}
+
+	/**
+	 * @return the minimum confidence from 0 to 100, NaN if no word was added
+	 */
+	public float getMin() {
+		return wordCount == 0 ? Float.NaN : min;
+	}
+
+	/**
+	 * Puts the word count, the mean and the minimum confidence, with one
+	 * decimal, if words were added.
+	 */
+	public void putAttributes(Map<String, String> attributes, String prefix) {
+		if (wordCount > 0) {
+			attributes.put(prefix + ".word.count", String.valueOf(wordCount));
+			attributes.put(prefix + ".confidence.mean", String.format(Locale.ROOT, "%.1f", getMean()));
+			attributes.put(prefix + ".confidence.min", String.format(Locale.ROOT, "%.1f", getMin()));
+		}
+	}
+}
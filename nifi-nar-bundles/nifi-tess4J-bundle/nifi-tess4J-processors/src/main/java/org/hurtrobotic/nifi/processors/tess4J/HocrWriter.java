@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes an hOCR document, the XHTML page / block / line / word structure of
+ * Tesseract with bounding boxes and word confidences.
+ */
+public class HocrWriter implements OcrDocumentWriter {
+	private static final String XHTML_NAMESPACE = "http://www.w3.org/1999/xhtml";
+
+	private final XMLStreamWriter xml;
+	private int pageCount;
+	private int lineCount;
+	private int wordCount;
+
+	public HocrWriter(OutputStream out, String language) throws IOException {
+		try {
+			xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+			xml.writeStartDocument("UTF-8", "1.0");
+			xml.writeStartElement("html");
+			xml.writeDefaultNamespace(XHTML_NAMESPACE);
+			xml.writeAttribute("xml", "http://www.w3.org/XML/1998/namespace", "lang", language);
+			xml.writeStartElement("head");
+			xml.writeStartElement("title");
+			xml.writeEndElement();
+			writeMeta("http-equiv", "Content-Type", "text/html;charset=utf-8");
+			writeMeta("name", "ocr-system", "tesseract");
+			writeMeta("name", "ocr-capabilities", "ocr_page ocr_carea ocr_line ocrx_word");
+			xml.writeEndElement();
+			xml.writeStartElement("body");
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void writeMeta(String attribute, String name, String content) throws XMLStreamException {
+		xml.writeEmptyElement("meta");
+		xml.writeAttribute(attribute, name);
+		xml.writeAttribute("content", content);
+	}
+
+	@Override
+	public void addPage(BufferedImage image, float dpi, List<OcrWord> words) throws IOException {
+		try {
+			pageCount++;
+			startElement("div", "ocr_page", "page_" + pageCount, "bbox 0 0 " + image.getWidth() + " "
+					+ image.getHeight() + "; ppageno " + (pageCount - 1));
+			int block = -1;
+			int line = -1;
+			for (int i = 0; i < words.size(); i++) {
+				OcrWord word = words.get(i);
+				if (word.getBlock() != block) {
+					if (line >= 0) {
+						// line and block
+						xml.writeEndElement();
+						xml.writeEndElement();
+						line = -1;
+					}
+					block = word.getBlock();
+					startElement("div", "ocr_carea", "block_" + pageCount + "_" + (block + 1),
+							bbox(OcrWord.blockBounds(words, i)));
+				}
+				if (word.getLine() != line) {
+					if (line >= 0) {
+						xml.writeEndElement();
+					}
+					line = word.getLine();
+					lineCount++;
+					startElement("span", "ocr_line", "line_" + pageCount + "_" + lineCount,
+							bbox(OcrWord.lineBounds(words, i)));
+				}
+				wordCount++;
+				startElement("span", "ocrx_word", "word_" + pageCount + "_" + wordCount,
+						bbox(word.getBounds()) + "; x_wconf " + Math.round(word.getConfidence()));
+				xml.writeCharacters(word.getText());
+				xml.writeEndElement();
+				xml.writeCharacters(" ");
+			}
+			if (line >= 0) {
+				xml.writeEndElement();
+				xml.writeEndElement();
+			}
+			xml.writeEndElement();
+			xml.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void startElement(String name, String type, String id, String title) throws XMLStreamException {
+		xml.writeStartElement(name);
+		xml.writeAttribute("class", type);
+		xml.writeAttribute("id", id);
+		xml.writeAttribute("title", title);
+	}
+
+	private static String bbox(Rectangle bounds) {
+		return "bbox " + bounds.x + " " + bounds.y + " " + (bounds.x + bounds.width) + " "
+				+ (bounds.y + bounds.height);
+	}
+
+	@Override
+	public void finish() throws IOException {
+		try {
+			xml.writeEndDocument();
+			xml.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			xml.close();
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.Node;
+
+/**
+ * Decodes the frames of an image, typically a multi-page TIFF, with an
+ * {@link ImageReader}. Frames are decoded when requested, never all at once.
+ */
+public class ImagePageSource implements PageSource {
+	private static final float MIN_RESOLUTION = 20;
+	private static final float MAX_RESOLUTION = 10000;
+
+	private final ImageInputStream stream;
+	private final ImageReader reader;
+	private int pageCount = -1;
+
+	public ImagePageSource(InputStream in) throws IOException {
+		this.stream = ImageIO.createImageInputStream(in);
+		if (stream == null) {
+			throw new IOException("Unable to create an image input stream");
+		}
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+		if (!readers.hasNext()) {
+			stream.close();
+			throw new IOException("No image reader found for the content");
+		}
+		this.reader = readers.next();
+		// image metadata holds the resolution
+		reader.setInput(stream, false, false);
+	}
+
+	@Override
+	public int getPageCount() throws IOException {
+		if (pageCount < 0) {
+			pageCount = reader.getNumImages(true);
+		}
+		return pageCount;
+	}
+
+	@Override
+	public BufferedImage readPage(int pageIndex) throws IOException {
+		return reader.read(pageIndex);
+	}
+
+	/**
+	 * Reads the horizontal pixel size of the standard metadata format. Values
+	 * out of a sensible range, written by faulty encoders, are ignored.
+	 */
+	@Override
+	public float getResolution(int pageIndex) throws IOException {
+		IIOMetadata metadata = reader.getImageMetadata(pageIndex);
+		if (metadata == null || !metadata.isStandardMetadataFormatSupported()) {
+			return 0;
+		}
+		Node root = metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+		for (Node dimension = root.getFirstChild(); dimension != null; dimension = dimension.getNextSibling()) {
+			if (!"Dimension".equals(dimension.getNodeName())) {
+				continue;
+			}
+			for (Node child = dimension.getFirstChild(); child != null; child = child.getNextSibling()) {
+				if ("HorizontalPixelSize".equals(child.getNodeName())) {
+					Node value = child.getAttributes().getNamedItem("value");
+					if (value == null) {
+						return 0;
+					}
+					try {
+						// millimeters per pixel
+						float dpi = 25.4f / Float.parseFloat(value.getNodeValue());
+						return dpi >= MIN_RESOLUTION && dpi <= MAX_RESOLUTION ? dpi : 0;
+					} catch (NumberFormatException e) {
+						return 0;
+					}
+				}
+			}
+		}
+		return 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			reader.dispose();
+		} finally {
+			stream.close();
+		}
+	}
+}
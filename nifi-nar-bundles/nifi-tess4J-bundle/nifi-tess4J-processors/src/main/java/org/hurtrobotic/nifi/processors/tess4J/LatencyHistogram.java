@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations, in microseconds, with 8 buckets per power
+ * of two, i.e. percentiles are accurate to about 12%. Recording does not
+ * allocate, so it can be called for every page and every FlowFile.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** 2^40 microseconds is about 12 days */
+	private static final int BUCKETS = 40 * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		long micros = Math.max(1, TimeUnit.NANOSECONDS.toMicros(nanos));
+		counts.incrementAndGet(index(micros));
+		count.incrementAndGet();
+		max.accumulateAndGet(micros, Math::max);
+	}
+
+	static int index(long micros) {
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		int subBucket = exponent >= SUB_BUCKET_BITS ? (int) (micros >> (exponent - SUB_BUCKET_BITS))
+				: (int) (micros << (SUB_BUCKET_BITS - exponent));
+		return Math.min(BUCKETS - 1, exponent * SUB_BUCKETS + (subBucket & (SUB_BUCKETS - 1)));
+	}
+
+	/**
+	 * @return the highest value, in microseconds, falling in the bucket.
+	 */
+	static long upperBound(int index) {
+		int exponent = index / SUB_BUCKETS;
+		int subBucket = index % SUB_BUCKETS;
+		if (exponent < SUB_BUCKET_BITS) {
+			// below 8 microseconds each bucket holds a single value
+			return ((SUB_BUCKETS + (long) subBucket) << exponent) >> SUB_BUCKET_BITS;
+		}
+		return Math.max(1, (((SUB_BUCKETS + 1L + subBucket) << exponent) >> SUB_BUCKET_BITS) - 1);
+	}
+
+	/**
+	 * Takes the current values, the histogram is emptied if reset is true.
+	 */
+	public Snapshot snapshot(boolean reset) {
+		long[] values = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			values[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+			total += values[i];
+		}
+		long maxMicros = reset ? max.getAndSet(0) : max.get();
+		if (reset) {
+			count.addAndGet(-total);
+		}
+		return new Snapshot(values, total, maxMicros);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Percentiles of the values recorded in a histogram at a point in time.
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long maxMicros;
+
+		private Snapshot(long[] counts, long count, long maxMicros) {
+			this.counts = counts;
+			this.count = count;
+			this.maxMicros = maxMicros;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getMaxMicros() {
+			return maxMicros;
+		}
+
+		/**
+		 * Nearest-rank percentile, in microseconds, 0 if nothing was recorded.
+		 */
+		public long getPercentileMicros(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(upperBound(i), maxMicros);
+				}
+			}
+			return maxMicros;
+		}
+	}
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.io.RandomAccessRead;
+import org.apache.pdfbox.io.ScratchFile;
+import org.apache.pdfbox.pdfparser.PDFParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/**
+ * A read only view of a memory-mapped file given to PDFBox. The document is
+ * read from the page cache of the file, PDFBox does not copy it to a scratch
+ * buffer in main memory or to a scratch file first.
+ * <p>
+ * Files are mapped in segments of 1 GB, a mapping being limited to 2 GB.
+ * Instances are not thread safe, like every {@link RandomAccessRead}.
+ */
+public class MappedRandomAccessRead implements RandomAccessRead {
+	private static final int SEGMENT_SHIFT = 30;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+	private final File file;
+	private final boolean deleteOnClose;
+	private final long length;
+	private MappedByteBuffer[] segments;
+	private long position;
+
+	public MappedRandomAccessRead(File file) throws IOException {
+		this(file, false);
+	}
+
+	private MappedRandomAccessRead(File file, boolean deleteOnClose) throws IOException {
+		this.file = file;
+		this.deleteOnClose = deleteOnClose;
+		// the mapping stays valid once the channel is closed
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			length = channel.size();
+			segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+			for (int i = 0; i < segments.length; i++) {
+				long start = (long) i << SEGMENT_SHIFT;
+				segments[i] = channel.map(MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+			}
+		}
+	}
+
+	/**
+	 * Copies the stream to a temporary file, deleted when the view is closed,
+	 * and maps it.
+	 */
+	public static MappedRandomAccessRead spool(InputStream in) throws IOException {
+		File file = File.createTempFile("tess4j", ".pdf");
+		try {
+			Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return new MappedRandomAccessRead(file, true);
+		} catch (IOException | RuntimeException e) {
+			file.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Parses the PDF of the stream through a mapped temporary file. The
+	 * temporary file is deleted when the document is closed.
+	 *
+	 * @param memoryUsage
+	 *            scratch buffers of the streams decoded and of the objects
+	 *            created by PDFBox
+	 */
+	public static PDDocument load(InputStream in, MemoryUsageSetting memoryUsage) throws IOException {
+		MappedRandomAccessRead source = spool(in);
+		ScratchFile scratchFile = null;
+		try {
+			scratchFile = new ScratchFile(memoryUsage);
+			PDFParser parser = new PDFParser(source, scratchFile);
+			parser.parse();
+			// the document closes its source and its scratch file
+			return parser.getPDDocument();
+		} catch (IOException | RuntimeException e) {
+			IOUtils.closeQuietly(scratchFile);
+			IOUtils.closeQuietly(source);
+			throw e;
+		}
+	}
+
+	private MappedByteBuffer segment(long offset) {
+		MappedByteBuffer segment = segments[(int) (offset >>> SEGMENT_SHIFT)];
+		segment.position((int) (offset & (SEGMENT_SIZE - 1)));
+		return segment;
+	}
+
+	private void checkClosed() throws IOException {
+		if (segments == null) {
+			throw new IOException("Mapped file " + file + " already closed");
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		if (position >= length) {
+			return -1;
+		}
+		return segment(position++).get() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public int read(byte[] b, int offset, int len) throws IOException {
+		checkClosed();
+		if (len == 0) {
+			return 0;
+		}
+		if (position >= length) {
+			return -1;
+		}
+		int count = (int) Math.min(len, length - position);
+		int read = 0;
+		while (read < count) {
+			MappedByteBuffer segment = segment(position);
+			int chunk = Math.min(count - read, segment.remaining());
+			segment.get(b, offset + read, chunk);
+			read += chunk;
+			position += chunk;
+		}
+		return count;
+	}
+
+	@Override
+	public long getPosition() throws IOException {
+		checkClosed();
+		return position;
+	}
+
+	@Override
+	public void seek(long position) throws IOException {
+		checkClosed();
+		if (position < 0) {
+			throw new IOException("Invalid position " + position);
+		}
+		this.position = position;
+	}
+
+	@Override
+	public long length() throws IOException {
+		checkClosed();
+		return length;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return segments == null;
+	}
+
+	@Override
+	public int peek() throws IOException {
+		int result = read();
+		if (result != -1) {
+			position--;
+		}
+		return result;
+	}
+
+	@Override
+	public void rewind(int bytes) throws IOException {
+		seek(getPosition() - bytes);
+	}
+
+	@Override
+	public byte[] readFully(int len) throws IOException {
+		byte[] bytes = new byte[len];
+		int read = 0;
+		while (read < len) {
+			int count = read(bytes, read, len - read);
+			if (count < 0) {
+				throw new EOFException("Premature end of mapped file " + file);
+			}
+			read += count;
+		}
+		return bytes;
+	}
+
+	@Override
+	public boolean isEOF() throws IOException {
+		checkClosed();
+		return position >= length;
+	}
+
+	@Override
+	public int available() throws IOException {
+		checkClosed();
+		return (int) Math.min(Math.max(length - position, 0), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Releases the mapping. The temporary file of a spooled view is deleted,
+	 * or on exit where a file still mapped can not be deleted.
+	 */
+	@Override
+	public void close() throws IOException {
+		segments = null;
+		if (deleteOnClose && file.exists() && !file.delete()) {
+			file.deleteOnExit();
+		}
+	}
+}
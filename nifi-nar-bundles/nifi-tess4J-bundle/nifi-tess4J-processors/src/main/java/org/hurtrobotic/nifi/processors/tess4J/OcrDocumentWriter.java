@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes the words recognized in a document to an output stream, one page at
+ * a time, so that the pages already written do not stay in memory.
+ */
+public interface OcrDocumentWriter extends Closeable {
+
+	/**
+	 * Adds a recognized page.
+	 *
+	 * @param image
+	 *            the image given to Tesseract, word bounding boxes are in its
+	 *            pixels
+	 * @param dpi
+	 *            resolution of the image, 0 if unknown
+	 */
+	void addPage(BufferedImage image, float dpi, List<OcrWord> words) throws IOException;
+
+	/**
+	 * Writes the end of the document. The output stream is not closed.
+	 */
+	void finish() throws IOException;
+}
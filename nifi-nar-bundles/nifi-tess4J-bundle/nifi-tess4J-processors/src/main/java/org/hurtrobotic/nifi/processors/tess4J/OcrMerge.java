@@ -0,0 +1,524 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.ReadsAttribute;
+import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.FlowFileFilter;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.stream.io.StreamUtils;
+
+@Tags({ "merge", "ocr", "pdfsplit", "tess4J" })
+@TriggerWhenEmpty
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@CapabilityDescription("Reassembles the text of the documents split by PdfSplit once recognized, for instance by "
+		+ "Tess4JOcr with the TXT output format. "
+		+ "Split documents are appended in order to the merged document as soon as the ones before them have "
+		+ "arrived, the others are held until then. Documents still incomplete at the end of the timeout are merged "
+		+ "with the split documents received and routed to incomplete. Only text/plain split documents are merged, "
+		+ "others, like searchable PDFs, are routed to failure as their bytes can not be concatenated.")
+@ReadsAttributes({
+		@ReadsAttribute(attribute = "file.source.split.uuid", description = "The UUID of the source document, "
+				+ "split documents with the same UUID are merged together."),
+		@ReadsAttribute(attribute = "file.split.page.count", description = "Number of the split document, from 1, "
+				+ "giving its position in the merged document."),
+		@ReadsAttribute(attribute = "file.source.split.count", description = "Number of split documents of the "
+				+ "source document, the page count of the source document with the page split strategy."),
+		@ReadsAttribute(attribute = "file.source.split.filename", description = "The filename of the source "
+				+ "document, used to name the merged document."),
+		@ReadsAttribute(attribute = "mime.type", description = "Must be text/plain.") })
+@WritesAttributes({
+		@WritesAttribute(attribute = "merge.split.count", description = "Number of split documents merged."),
+		@WritesAttribute(attribute = "merge.split.missing", description = "Comma separated numbers of the split "
+				+ "documents missing from an incomplete merged document."),
+		@WritesAttribute(attribute = "merge.time", description = "Milliseconds between the first split document "
+				+ "received and the end of the merge.") })
+
+public class OcrMerge extends AbstractSessionFactoryProcessor {
+	private static final String SOURCE_FILENAME = "file.source.split.filename";
+	private static final String SOURCE_UUID = "file.source.split.uuid";
+	private static final String SOURCE_SPLIT_COUNT = "file.source.split.count";
+	private static final String SPLIT_NUMBER = "file.split.page.count";
+	private static final String MERGE_SPLIT_COUNT = "merge.split.count";
+	private static final String MERGE_SPLIT_MISSING = "merge.split.missing";
+	private static final String MERGE_TIME = "merge.time";
+	private static final String COUNTER_MERGED = "OCR documents merged";
+	private static final String COUNTER_INCOMPLETE = "OCR documents incomplete";
+
+	private static final String MIME_TYPE_TEXT = "text/plain";
+
+	private static final String SEPARATOR_FORM_FEED = "form-feed";
+	private static final String SEPARATOR_NEW_LINE = "new-line";
+	private static final String SEPARATOR_NONE = "none";
+
+	private List<PropertyDescriptor> descriptors;
+	private Set<Relationship> relationships;
+
+	private final ConcurrentMap<String, Document> documents = new ConcurrentHashMap<>();
+	/**
+	 * Documents merged less than the timeout ago, by UUID, with the nanoTime at
+	 * which they were merged. Their late split documents are routed to failure
+	 * rather than opening a document which could only expire.
+	 */
+	private final ConcurrentMap<String, Long> mergedDocuments = new ConcurrentHashMap<>();
+	private volatile long timeoutNanos;
+	private volatile int maxDocuments;
+	private volatile byte[] separator;
+
+	public static final PropertyDescriptor MERGE_BATCH_SIZE = new PropertyDescriptor.Builder()
+			.name("batch.size").displayName("Batch size")
+			.description("Maximum number of split documents taken from the queue in a single session.")
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).defaultValue("100")
+			.required(true).build();
+
+	public static final PropertyDescriptor MERGE_TIMEOUT = new PropertyDescriptor.Builder()
+			.name("merge.timeout").displayName("Incomplete document timeout")
+			.description("Time given to the split documents of a source document to arrive, from the first one. "
+					+ "At the end the split documents received are merged and routed to incomplete.")
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).defaultValue("10 min")
+			.required(true).build();
+
+	public static final PropertyDescriptor MERGE_MAX_DOCUMENTS = new PropertyDescriptor.Builder()
+			.name("merge.max.documents").displayName("Max open documents")
+			.description("Number of documents merged at the same time. Split documents of other source documents "
+					+ "stay in the queue until a merge completes, which bounds the split documents held in memory.")
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).defaultValue("100")
+			.required(true).build();
+
+	public static final PropertyDescriptor MERGE_SEPARATOR = new PropertyDescriptor.Builder()
+			.name("merge.separator").displayName("Separator")
+			.description("Written between two split documents. form-feed separates pages like Tess4JOcr does "
+					+ "for multi-page documents.")
+			.allowableValues(SEPARATOR_FORM_FEED, SEPARATOR_NEW_LINE, SEPARATOR_NONE).defaultValue(SEPARATOR_FORM_FEED)
+			.required(true).build();
+
+	public static final Relationship REL_MERGED = new Relationship.Builder().name("merged")
+			.description("Documents whose split documents have all been merged").build();
+
+	public static final Relationship REL_INCOMPLETE = new Relationship.Builder().name("incomplete")
+			.description("Documents merged at the end of the timeout, some split documents missing").build();
+
+	public static final Relationship REL_ORIGINAL = new Relationship.Builder().name("original")
+			.description("The split documents, once merged").build();
+
+	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
+			.description("Split documents without valid split attributes, which are not text/plain, received twice "
+					+ "or received after their document was merged, and split documents of a document whose merge "
+					+ "failed").build();
+
+	@Override
+	protected void init(final ProcessorInitializationContext context) {
+		getLogger().info("Start Init.");
+		final Set<Relationship> relationships = new HashSet<Relationship>();
+		final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+
+		relationships.add(REL_MERGED);
+		relationships.add(REL_INCOMPLETE);
+		relationships.add(REL_ORIGINAL);
+		relationships.add(REL_FAILURE);
+		this.relationships = Collections.unmodifiableSet(relationships);
+
+		descriptors.add(MERGE_BATCH_SIZE);
+		descriptors.add(MERGE_TIMEOUT);
+		descriptors.add(MERGE_MAX_DOCUMENTS);
+		descriptors.add(MERGE_SEPARATOR);
+		this.descriptors = Collections.unmodifiableList(descriptors);
+		getLogger().info("End Init.");
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	@OnScheduled
+	public void resolveProperties(final ProcessContext context) {
+		timeoutNanos = context.getProperty(MERGE_TIMEOUT).asTimePeriod(TimeUnit.NANOSECONDS);
+		maxDocuments = context.getProperty(MERGE_MAX_DOCUMENTS).asInteger();
+		String separatorValue = context.getProperty(MERGE_SEPARATOR).getValue();
+		separator = SEPARATOR_FORM_FEED.equals(separatorValue) ? new byte[] { '\f' }
+				: SEPARATOR_NEW_LINE.equals(separatorValue) ? "\n".getBytes(StandardCharsets.UTF_8) : new byte[0];
+	}
+
+	/**
+	 * Gives the split documents of the open documents back to the queue.
+	 */
+	@OnStopped
+	public void rollbackDocuments() {
+		for (Document document : documents.values()) {
+			synchronized (document) {
+				if (!document.closed) {
+					document.closed = true;
+					document.session.rollback();
+				}
+			}
+		}
+		documents.clear();
+		mergedDocuments.clear();
+	}
+
+	@Override
+	public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory)
+			throws ProcessException {
+		final ProcessSession session = sessionFactory.createSession();
+		final List<FlowFile> flowFiles;
+		try {
+			flowFiles = session.get(new DocumentFilter(context.getProperty(MERGE_BATCH_SIZE).asInteger()));
+			final Map<String, List<FlowFile>> splits = new HashMap<>();
+			final List<FlowFile> invalidFlowFiles = new ArrayList<>();
+			for (FlowFile flowFile : flowFiles) {
+				if (getSplitNumber(flowFile) < 1) {
+					getLogger().error("Split attributes missing or invalid, routing {} to failure", new Object[] { flowFile });
+					invalidFlowFiles.add(flowFile);
+				} else if (!isText(flowFile)) {
+					getLogger().error("Only text/plain split documents can be merged, routing {} of type {} to failure",
+							new Object[] { flowFile, flowFile.getAttribute(CoreAttributes.MIME_TYPE.key()) });
+					invalidFlowFiles.add(flowFile);
+				} else if (mergedDocuments.containsKey(flowFile.getAttribute(SOURCE_UUID))) {
+					getLogger().error("Document {} already merged, routing late split document {} to failure",
+							new Object[] { flowFile.getAttribute(SOURCE_UUID), flowFile });
+					invalidFlowFiles.add(flowFile);
+				} else {
+					List<FlowFile> documentSplits = splits.get(flowFile.getAttribute(SOURCE_UUID));
+					if (documentSplits == null) {
+						documentSplits = new ArrayList<>();
+						splits.put(flowFile.getAttribute(SOURCE_UUID), documentSplits);
+					}
+					documentSplits.add(flowFile);
+				}
+			}
+			session.transfer(invalidFlowFiles, REL_FAILURE);
+			for (Map.Entry<String, List<FlowFile>> entry : splits.entrySet()) {
+				offer(sessionFactory, session, entry.getKey(), entry.getValue());
+			}
+			session.commit();
+		} catch (final Throwable t) {
+			session.rollback(true);
+			throw t;
+		}
+		int expired = expireDocuments();
+		if (flowFiles.isEmpty() && expired == 0) {
+			context.yield();
+		}
+	}
+
+	/**
+	 * Moves split documents of the same source to its open document, created if
+	 * needed, and merges them.
+	 */
+	private void offer(ProcessSessionFactory sessionFactory, ProcessSession session, String uuid,
+			List<FlowFile> flowFiles) {
+		while (true) {
+			Document document = documents.get(uuid);
+			if (document == null) {
+				Document created = new Document(uuid, sessionFactory.createSession());
+				document = documents.putIfAbsent(uuid, created);
+				if (document == null) {
+					document = created;
+				}
+			}
+			synchronized (document) {
+				if (document.closed) {
+					documents.remove(uuid, document);
+					if (mergedDocuments.containsKey(uuid)) {
+						getLogger().error("Document {} merged meanwhile, routing late split documents {} to failure",
+								new Object[] { uuid, flowFiles });
+						session.transfer(flowFiles, REL_FAILURE);
+						return;
+					}
+					// rolled back meanwhile, a new document is opened
+					continue;
+				}
+				session.migrate(document.session, flowFiles);
+				try {
+					for (FlowFile flowFile : flowFiles) {
+						document.add(flowFile);
+					}
+					document.appendReady();
+					if (document.isComplete()) {
+						document.finish(REL_MERGED);
+					}
+				} catch (final Throwable t) {
+					document.abort();
+					throw t;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Merges the open documents older than the timeout with the split documents
+	 * received.
+	 *
+	 * @return number of documents expired
+	 */
+	private int expireDocuments() {
+		final long now = System.nanoTime();
+		for (Map.Entry<String, Long> merged : mergedDocuments.entrySet()) {
+			if (now - merged.getValue() >= timeoutNanos) {
+				mergedDocuments.remove(merged.getKey(), merged.getValue());
+			}
+		}
+		int expired = 0;
+		for (Document document : documents.values()) {
+			if (now - document.started < timeoutNanos) {
+				continue;
+			}
+			synchronized (document) {
+				if (!document.closed) {
+					getLogger().warn("Document {} incomplete after the timeout, {} of {} split documents received",
+							new Object[] { document.uuid, document.received, document.expected });
+					try {
+						document.finish(REL_INCOMPLETE);
+						expired++;
+					} catch (final RuntimeException e) {
+						getLogger().error("Failed to merge incomplete document {}, split documents given back to the queue",
+								new Object[] { document.uuid, e });
+						document.abort();
+					}
+				}
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * @return number of the split document, 0 if its split attributes are
+	 *         missing or invalid
+	 */
+	private static int getSplitNumber(FlowFile flowFile) {
+		try {
+			int number = Integer.parseInt(flowFile.getAttribute(SPLIT_NUMBER));
+			int count = Integer.parseInt(flowFile.getAttribute(SOURCE_SPLIT_COUNT));
+			return flowFile.getAttribute(SOURCE_UUID) != null && number <= count ? number : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static boolean isText(FlowFile flowFile) {
+		String mimeType = flowFile.getAttribute(CoreAttributes.MIME_TYPE.key());
+		return mimeType != null && mimeType.split(";")[0].trim().equalsIgnoreCase(MIME_TYPE_TEXT);
+	}
+
+	/**
+	 * Accepts the split documents of the open documents, and of new documents
+	 * while less than the max open documents are open.
+	 */
+	private class DocumentFilter implements FlowFileFilter {
+		private final int batchSize;
+		private final Set<String> opened = new HashSet<>();
+		private int accepted;
+
+		DocumentFilter(int batchSize) {
+			this.batchSize = batchSize;
+		}
+
+		@Override
+		public FlowFileFilterResult filter(FlowFile flowFile) {
+			if (accepted >= batchSize) {
+				return FlowFileFilterResult.REJECT_AND_TERMINATE;
+			}
+			String uuid = flowFile.getAttribute(SOURCE_UUID);
+			if (uuid != null && !documents.containsKey(uuid) && !opened.contains(uuid)
+					&& !mergedDocuments.containsKey(uuid)) {
+				if (documents.size() + opened.size() >= maxDocuments) {
+					return FlowFileFilterResult.REJECT_AND_CONTINUE;
+				}
+				opened.add(uuid);
+			}
+			accepted++;
+			return FlowFileFilterResult.ACCEPT_AND_CONTINUE;
+		}
+	}
+
+	/**
+	 * A source document being merged. Its split documents are held by its own
+	 * session until the merge completes or expires.
+	 */
+	private class Document {
+		private final String uuid;
+		private final ProcessSession session;
+		private final long started = System.nanoTime();
+		private final TreeMap<Integer, FlowFile> pending = new TreeMap<>();
+		private final List<FlowFile> merged = new ArrayList<>();
+		private int expected;
+		private int received;
+		private int next = 1;
+		private FlowFile output;
+		private boolean closed;
+
+		Document(String uuid, ProcessSession session) {
+			this.uuid = uuid;
+			this.session = session;
+		}
+
+		void add(FlowFile flowFile) {
+			int number = getSplitNumber(flowFile);
+			if (number < next || pending.containsKey(number)) {
+				getLogger().error("Split document {} of {} received twice, routing {} to failure",
+						new Object[] { number, uuid, flowFile });
+				session.transfer(flowFile, REL_FAILURE);
+				return;
+			}
+			expected = Math.max(expected, Integer.parseInt(flowFile.getAttribute(SOURCE_SPLIT_COUNT)));
+			pending.put(number, flowFile);
+			received++;
+		}
+
+		boolean isComplete() {
+			return next > expected;
+		}
+
+		/**
+		 * Appends the contiguous run of split documents following the last one
+		 * appended.
+		 */
+		void appendReady() {
+			List<FlowFile> run = new ArrayList<>();
+			for (FlowFile flowFile; (flowFile = pending.get(next + run.size())) != null;) {
+				run.add(flowFile);
+			}
+			append(run);
+			// removed once appended, a failed append leaves them to the rollback of the session
+			for (int i = 0; i < run.size(); i++) {
+				pending.remove(next++);
+			}
+		}
+
+		private void append(final List<FlowFile> run) {
+			if (run.isEmpty()) {
+				return;
+			}
+			final boolean first = output == null;
+			if (first) {
+				output = session.create(run);
+			}
+			output = session.append(output, new OutputStreamCallback() {
+				@Override
+				public void process(OutputStream out) throws IOException {
+					for (int i = 0; i < run.size(); i++) {
+						if (!first || i > 0) {
+							out.write(separator);
+						}
+						try (InputStream in = session.read(run.get(i))) {
+							StreamUtils.copy(in, out);
+						}
+					}
+				}
+			});
+			merged.addAll(run);
+		}
+
+		/**
+		 * Appends the split documents received, routes the merged document and
+		 * commits.
+		 */
+		void finish(Relationship relationship) {
+			StringBuilder missing = new StringBuilder();
+			for (int number = next; number <= expected; number++) {
+				if (!pending.containsKey(number)) {
+					missing.append(missing.length() == 0 ? "" : ",").append(number);
+				}
+			}
+			append(new ArrayList<>(pending.values()));
+			Map<String, String> attributes = new HashMap<>();
+			attributes.put(CoreAttributes.FILENAME.key(), mergedFileName(merged.get(0)));
+			attributes.put(MERGE_SPLIT_COUNT, String.valueOf(merged.size()));
+			attributes.put(MERGE_TIME, String.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)));
+			if (missing.length() > 0) {
+				attributes.put(MERGE_SPLIT_MISSING, missing.toString());
+			}
+			output = session.putAllAttributes(output, attributes);
+			session.transfer(output, relationship);
+			session.transfer(merged, REL_ORIGINAL);
+			session.adjustCounter(relationship == REL_MERGED ? COUNTER_MERGED : COUNTER_INCOMPLETE, 1, false);
+			session.commit();
+			pending.clear();
+			closed = true;
+			mergedDocuments.put(uuid, System.nanoTime());
+			documents.remove(uuid, this);
+		}
+
+		/**
+		 * Gives the split documents back to the queue after a failure, the
+		 * document is merged again from its split documents.
+		 */
+		void abort() {
+			closed = true;
+			documents.remove(uuid, this);
+			session.rollback(true);
+		}
+	}
+
+	/**
+	 * @return the name of the source document with the extension of the split
+	 *         document
+	 */
+	private static String mergedFileName(FlowFile split) {
+		String name = split.getAttribute(CoreAttributes.FILENAME.key());
+		String source = split.getAttribute(SOURCE_FILENAME);
+		if (source == null) {
+			return name;
+		}
+		int dot = source.lastIndexOf('.');
+		String baseName = dot > 0 ? source.substring(0, dot) : source;
+		int extension = name == null ? -1 : name.lastIndexOf('.');
+		return extension > 0 ? baseName + name.substring(extension) : baseName;
+	}
+}
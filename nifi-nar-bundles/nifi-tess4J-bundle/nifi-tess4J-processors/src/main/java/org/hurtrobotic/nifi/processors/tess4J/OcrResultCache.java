@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Serializer;
+
+/**
+ * OCR text of already recognized images, keyed by a digest of the pixels and
+ * the Tesseract settings.
+ * <p>
+ * The local tier keeps at most {@code maxEntries} results, least recently used
+ * first evicted, each for at most {@code ttlMillis}. The optional
+ * {@link DistributedMapCacheClient} tier is shared between nodes, a result
+ * found there is copied to the local tier.
+ */
+public class OcrResultCache {
+	private static final Serializer<String> STRING_SERIALIZER = (value, out) -> out
+			.write(value.getBytes(StandardCharsets.UTF_8));
+	private static final Deserializer<String> STRING_DESERIALIZER = input -> input == null || input.length == 0
+			? null : new String(input, StandardCharsets.UTF_8);
+
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final DistributedMapCacheClient distributedCache;
+	private final LinkedHashMap<String, Entry> entries;
+
+	public OcrResultCache(int maxEntries, long ttlMillis, DistributedMapCacheClient distributedCache) {
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.distributedCache = distributedCache;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > OcrResultCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Builds the cache key of an image, restricted to the area if not null, for
+	 * the given engine settings. The tessdata location is not part of the key.
+	 */
+	public static String key(BufferedImage image, Rectangle area, TesseractEnginePool.Key engineKey) {
+		Rectangle bounds = area == null ? new Rectangle(image.getWidth(), image.getHeight()) : area;
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		Raster raster = image.getRaster();
+		Object row = null;
+		byte[] bytes = null;
+		for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+			row = raster.getDataElements(bounds.x, y, bounds.width, 1, row);
+			if (row instanceof byte[]) {
+				digest.update((byte[]) row);
+			} else {
+				bytes = toBytes(row, bytes);
+				digest.update(bytes);
+			}
+		}
+		StringBuilder key = new StringBuilder(96);
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return key.append('|').append(bounds.width).append('x').append(bounds.height).append('|')
+				.append(engineKey.getLanguage()).append("|oem=").append(engineKey.getEngineMode()).append("|psm=")
+				.append(engineKey.getPageSegMode()).toString();
+	}
+
+	private static byte[] toBytes(Object row, byte[] reuse) {
+		if (row instanceof short[]) {
+			short[] values = (short[]) row;
+			byte[] bytes = reuse != null && reuse.length == values.length * 2 ? reuse : new byte[values.length * 2];
+			for (int i = 0; i < values.length; i++) {
+				bytes[2 * i] = (byte) (values[i] >> 8);
+				bytes[2 * i + 1] = (byte) values[i];
+			}
+			return bytes;
+		}
+		if (row instanceof int[]) {
+			int[] values = (int[]) row;
+			byte[] bytes = reuse != null && reuse.length == values.length * 4 ? reuse : new byte[values.length * 4];
+			for (int i = 0; i < values.length; i++) {
+				bytes[4 * i] = (byte) (values[i] >> 24);
+				bytes[4 * i + 1] = (byte) (values[i] >> 16);
+				bytes[4 * i + 2] = (byte) (values[i] >> 8);
+				bytes[4 * i + 3] = (byte) values[i];
+			}
+			return bytes;
+		}
+		throw new IllegalArgumentException("Unsupported raster data type " + row.getClass().getName());
+	}
+
+	/**
+	 * @return the cached text, null if the key is unknown to both tiers.
+	 */
+	public String get(String key) throws IOException {
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (entry.expiresAt > System.currentTimeMillis()) {
+					return entry.text;
+				}
+				entries.remove(key);
+			}
+		}
+		if (distributedCache == null) {
+			return null;
+		}
+		String text = distributedCache.get(key, STRING_SERIALIZER, STRING_DESERIALIZER);
+		if (text != null) {
+			putLocal(key, text);
+		}
+		return text;
+	}
+
+	public void put(String key, String text) throws IOException {
+		putLocal(key, text);
+		if (distributedCache != null) {
+			distributedCache.put(key, text, STRING_SERIALIZER, STRING_SERIALIZER);
+		}
+	}
+
+	private void putLocal(String key, String text) {
+		if (maxEntries > 0) {
+			synchronized (entries) {
+				entries.put(key, new Entry(text, System.currentTimeMillis() + ttlMillis));
+			}
+		}
+	}
+
+	/**
+	 * Removes the expired results of the local tier.
+	 *
+	 * @return number of results removed
+	 */
+	public int evictExpired() {
+		long now = System.currentTimeMillis();
+		int evicted = 0;
+		synchronized (entries) {
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().expiresAt <= now) {
+					it.remove();
+					evicted++;
+				}
+			}
+		}
+		return evicted;
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	private static final class Entry {
+		private final String text;
+		private final long expiresAt;
+
+		private Entry(String text, long expiresAt) {
+			this.text = text;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import net.sourceforge.tess4j.TesseractException;
+
+/**
+ * Thrown when Tesseract is cancelled because the recognition of an image
+ * exceeded its time budget. The engine stays usable.
+ */
+public class OcrTimeoutException extends TesseractException {
+	private static final long serialVersionUID = 1L;
+
+	private final long budgetMillis;
+
+	public OcrTimeoutException(String message, long budgetMillis) {
+		super(message);
+		this.budgetMillis = budgetMillis;
+	}
+
+	/**
+	 * @return the time budget exceeded, in milliseconds
+	 */
+	public long getBudgetMillis() {
+		return budgetMillis;
+	}
+}
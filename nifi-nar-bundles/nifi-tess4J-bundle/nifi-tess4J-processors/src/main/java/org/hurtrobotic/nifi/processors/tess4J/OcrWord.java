@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+/**
+ * A word recognized by Tesseract, with its bounding box in pixels of the
+ * recognized image and the block and line it belongs to.
+ */
+public class OcrWord {
+	private final String text;
+	private final float confidence;
+	private final Rectangle bounds;
+	private final int block;
+	private final int line;
+
+	public OcrWord(String text, float confidence, Rectangle bounds, int block, int line) {
+		this.text = text;
+		this.confidence = confidence;
+		this.bounds = bounds;
+		this.block = block;
+		this.line = line;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	/**
+	 * @return confidence from 0 to 100
+	 */
+	public float getConfidence() {
+		return confidence;
+	}
+
+	public Rectangle getBounds() {
+		return bounds;
+	}
+
+	/**
+	 * @return index of the text block in the page, from 0
+	 */
+	public int getBlock() {
+		return block;
+	}
+
+	/**
+	 * @return index of the text line in the page, from 0
+	 */
+	public int getLine() {
+		return line;
+	}
+
+	/**
+	 * @return union of the boxes of the words of the line starting at index
+	 *         first
+	 */
+	static Rectangle lineBounds(List<OcrWord> words, int first) {
+		OcrWord start = words.get(first);
+		Rectangle bounds = new Rectangle(start.getBounds());
+		for (int i = first + 1; i < words.size() && words.get(i).getLine() == start.getLine(); i++) {
+			bounds.add(words.get(i).getBounds());
+		}
+		return bounds;
+	}
+
+	/**
+	 * @return union of the boxes of the words of the block starting at index
+	 *         first
+	 */
+	static Rectangle blockBounds(List<OcrWord> words, int first) {
+		OcrWord start = words.get(first);
+		Rectangle bounds = new Rectangle(start.getBounds());
+		for (int i = first + 1; i < words.size() && words.get(i).getBlock() == start.getBlock(); i++) {
+			bounds.add(words.get(i).getBounds());
+		}
+		return bounds;
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import net.arnx.jsonic.JSON;
+import net.arnx.jsonic.JSONException;
+
+/**
+ * A named rectangle of a page, e.g. a field of a form, recognized on its own.
+ * <p>
+ * Zones are defined by a JSON list like
+ * {@code [{"name": "invoice.number", "page": 1, "x": 120, "y": 80, "width": 400, "height": 60}]}.
+ * The page is 1 based and defaults to 1. Coordinates are either pixels of the
+ * decoded or rendered page or fractions, between 0 and 1, of its size.
+ */
+public class OcrZone {
+	private final String name;
+	private final int page;
+	private final double x;
+	private final double y;
+	private final double width;
+	private final double height;
+
+	public OcrZone(String name, int page, double x, double y, double width, double height) {
+		this.name = name;
+		this.page = page;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the JSON is not a list of zones, or if two zones have the
+	 *             same name
+	 */
+	public static List<OcrZone> parse(String json) {
+		Object decoded;
+		try {
+			decoded = JSON.decode(json);
+		} catch (JSONException e) {
+			throw new IllegalArgumentException("Invalid zone definition : " + e.getMessage(), e);
+		}
+		if (!(decoded instanceof List)) {
+			throw new IllegalArgumentException("Zone definition must be a JSON list");
+		}
+		List<OcrZone> zones = new ArrayList<>();
+		Set<String> names = new HashSet<>();
+		for (Object item : (List<?>) decoded) {
+			if (!(item instanceof Map)) {
+				throw new IllegalArgumentException("Zone " + item + " must be a JSON object");
+			}
+			Map<?, ?> zone = (Map<?, ?>) item;
+			Object name = zone.get("name");
+			if (name == null || name.toString().trim().isEmpty()) {
+				throw new IllegalArgumentException("Zone " + zone + " has no name");
+			}
+			if (!names.add(name.toString())) {
+				throw new IllegalArgumentException("Zone name " + name + " is defined twice");
+			}
+			int page = zone.containsKey("page") ? (int) getNumber(zone, "page") : 1;
+			if (page < 1) {
+				throw new IllegalArgumentException("Page of zone " + name + " must be greater than 0");
+			}
+			double width = getNumber(zone, "width");
+			double height = getNumber(zone, "height");
+			if (width <= 0 || height <= 0) {
+				throw new IllegalArgumentException("Width and height of zone " + name + " must be greater than 0");
+			}
+			zones.add(new OcrZone(name.toString(), page, getNumber(zone, "x"), getNumber(zone, "y"), width, height));
+		}
+		return zones;
+	}
+
+	private static double getNumber(Map<?, ?> zone, String key) {
+		Object value = zone.get(key);
+		if (!(value instanceof Number)) {
+			throw new IllegalArgumentException("Zone " + zone + " has no numeric " + key);
+		}
+		return ((Number) value).doubleValue();
+	}
+
+	/**
+	 * @param relative
+	 *            true if the coordinates are fractions of the page size
+	 * @return the zone in pixels of a page of the given size, clipped to the
+	 *         page, empty if the zone is out of the page
+	 */
+	public Rectangle toRectangle(int pageWidth, int pageHeight, boolean relative) {
+		double scaleX = relative ? pageWidth : 1;
+		double scaleY = relative ? pageHeight : 1;
+		int left = (int) Math.round(x * scaleX);
+		int top = (int) Math.round(y * scaleY);
+		int right = (int) Math.round((x + width) * scaleX);
+		int bottom = (int) Math.round((y + height) * scaleY);
+		Rectangle rectangle = new Rectangle(left, top, right - left, bottom - top)
+				.intersection(new Rectangle(pageWidth, pageHeight));
+		return rectangle.isEmpty() ? new Rectangle() : rectangle;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the 1 based page number
+	 */
+	public int getPage() {
+		return page;
+	}
+}
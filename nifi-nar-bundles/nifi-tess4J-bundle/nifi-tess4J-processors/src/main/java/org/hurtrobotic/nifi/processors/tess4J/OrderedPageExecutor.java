@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Processes the pages of a {@link PageSource} on a shared executor while
+ * delivering the results in page order.
+ * <p>
+ * Pages are decoded sequentially by the calling thread, at most
+ * {@code maxInFlight} decoded pages wait for or are being processed, or wait
+ * to be consumed, at the same time: a slow page stops the decoding once the
+ * pages after it fill the limit. Results are handed to the
+ * {@link PageConsumer} on the calling thread as soon as all the previous
+ * pages are done.
+ */
+public class OrderedPageExecutor {
+	private final ExecutorService executor;
+	private final int maxInFlight;
+
+	public interface PageTask<T> {
+		T process(int pageIndex, BufferedImage image) throws Exception;
+	}
+
+	public interface PageConsumer<T> {
+		void accept(int pageIndex, T result) throws IOException;
+	}
+
+	public OrderedPageExecutor(ExecutorService executor, int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be greater than 0");
+		}
+		this.executor = executor;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @return the number of pages processed
+	 */
+	public <T> int execute(PageSource source, PageTask<T> task, PageConsumer<T> consumer)
+			throws IOException, InterruptedException, ExecutionException {
+		final int pageCount = source.getPageCount();
+		// pages processed or waiting to be consumed, each one holding its results
+		final Deque<Future<T>> pending = new ArrayDeque<>();
+		int nextToConsume = 0;
+		try {
+			for (int i = 0; i < pageCount; i++) {
+				while (pending.size() >= maxInFlight) {
+					consumer.accept(nextToConsume++, pending.pollFirst().get());
+				}
+				final BufferedImage image = source.readPage(i);
+				final int pageIndex = i;
+				pending.addLast(executor.submit(new Callable<T>() {
+					@Override
+					public T call() throws Exception {
+						return task.process(pageIndex, image);
+					}
+				}));
+				while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+					consumer.accept(nextToConsume++, pending.pollFirst().get());
+				}
+			}
+			while (!pending.isEmpty()) {
+				consumer.accept(nextToConsume++, pending.pollFirst().get());
+			}
+			return pageCount;
+		} finally {
+			for (Future<T> future : pending) {
+				future.cancel(true);
+			}
+		}
+	}
+}
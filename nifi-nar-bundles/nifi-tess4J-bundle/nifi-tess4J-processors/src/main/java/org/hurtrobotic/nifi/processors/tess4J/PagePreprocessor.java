@@ -0,0 +1,536 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+
+/**
+ * Cleans a page up before OCR : conversion to gray levels, downscaling to a
+ * target resolution, cropping of the borders, deskewing and binarization.
+ * <p>
+ * Every step works on the bytes of a {@link BufferedImage#TYPE_BYTE_GRAY}
+ * raster, one byte per pixel, and allocates at most one page sized array.
+ * Instances are immutable and can be shared between threads.
+ */
+public class PagePreprocessor {
+	public static final String COLOR_ORIGINAL = "original";
+	public static final String COLOR_GRAY = "gray";
+	public static final String COLOR_OTSU = "otsu";
+	public static final String COLOR_ADAPTIVE = "adaptive";
+
+	private static final double MAX_SKEW_DEGREES = 5;
+	private static final double SKEW_STEP_DEGREES = 0.1;
+	private static final double MIN_DESKEW_DEGREES = 0.1;
+	// the skew is estimated on a sample of at most this width
+	private static final int SKEW_SAMPLE_WIDTH = 1000;
+	// rows and columns with less ink than that are blank margins, with more they are scanner borders
+	private static final double BORDER_MIN_INK = 0.002;
+	private static final double BORDER_MAX_INK = 0.5;
+	private static final int BORDER_PADDING = 8;
+	// a pixel is black when darker than the mean of its neighborhood by this ratio
+	private static final int ADAPTIVE_SENSITIVITY_PERCENT = 15;
+	private static final int ADAPTIVE_MIN_WINDOW = 15;
+
+	private final String colorMode;
+	private final int targetDpi;
+	private final boolean deskew;
+	private final boolean cropBorders;
+
+	/**
+	 * @param colorMode
+	 *            one of the COLOR_ constants. Any other step converts the page
+	 *            to gray levels, even with {@link #COLOR_ORIGINAL}.
+	 * @param targetDpi
+	 *            pages with a higher resolution are downscaled to it, 0 keeps
+	 *            the resolution
+	 */
+	public PagePreprocessor(String colorMode, int targetDpi, boolean deskew, boolean cropBorders) {
+		this.colorMode = colorMode;
+		this.targetDpi = targetDpi;
+		this.deskew = deskew;
+		this.cropBorders = cropBorders;
+	}
+
+	/**
+	 * @return false if every step is disabled, the pages are then given to
+	 *         Tesseract as they are.
+	 */
+	public boolean isEnabled() {
+		return !COLOR_ORIGINAL.equals(colorMode) || targetDpi > 0 || deskew || cropBorders;
+	}
+
+	/**
+	 * Preprocesses the page, restricted to the area if not null.
+	 *
+	 * @param dpi
+	 *            resolution of the page, 0 if unknown. Pages of unknown
+	 *            resolution are not downscaled.
+	 * @return a new image, the page is not modified
+	 */
+	public Result process(BufferedImage page, Rectangle area, float dpi) {
+		Rectangle bounds = area == null ? new Rectangle(page.getWidth(), page.getHeight()) : area;
+		long inputBytes = rasterBytes(page.getColorModel().getPixelSize(), bounds.width, bounds.height);
+		BufferedImage image = toGray(page, bounds);
+		float resolution = dpi;
+		if (targetDpi > 0 && dpi > targetDpi) {
+			image = downscale(image, targetDpi / dpi);
+			resolution = targetDpi;
+		}
+		// scanner borders are parallel to the raw page, they are cropped before deskewing
+		if (cropBorders) {
+			image = cropBorders(image);
+		}
+		double skew = 0;
+		if (deskew) {
+			skew = estimateSkew(image);
+			if (Math.abs(skew) >= MIN_DESKEW_DEGREES) {
+				image = rotate(image, skew);
+			}
+		}
+		boolean binary = true;
+		if (COLOR_OTSU.equals(colorMode)) {
+			threshold(image, otsuThreshold(image));
+		} else if (COLOR_ADAPTIVE.equals(colorMode)) {
+			image = adaptiveThreshold(image);
+		} else {
+			binary = false;
+		}
+		return new Result(image, inputBytes,
+				rasterBytes(binary ? 1 : 8, image.getWidth(), image.getHeight()), skew, resolution);
+	}
+
+	private static long rasterBytes(int bitsPerPixel, int width, int height) {
+		return ((long) width * bitsPerPixel + 7) / 8 * height;
+	}
+
+	private static byte[] pixels(BufferedImage gray) {
+		return ((DataBufferByte) gray.getRaster().getDataBuffer()).getData();
+	}
+
+	/**
+	 * Copies the area of the page in a new gray image. Translucent pixels are
+	 * blended on white.
+	 */
+	static BufferedImage toGray(BufferedImage page, Rectangle bounds) {
+		final int width = bounds.width;
+		final int height = bounds.height;
+		BufferedImage gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] out = pixels(gray);
+		if (page.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+			page.getRaster().getDataElements(bounds.x, bounds.y, width, height, out);
+			return gray;
+		}
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			page.getRGB(bounds.x, bounds.y + y, width, 1, row, 0, width);
+			int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				int argb = row[x];
+				int luminance = (77 * ((argb >> 16) & 0xFF) + 150 * ((argb >> 8) & 0xFF) + 29 * (argb & 0xFF)) >> 8;
+				int alpha = argb >>> 24;
+				if (alpha < 255) {
+					luminance = (luminance * alpha + 255 * (255 - alpha)) / 255;
+				}
+				out[offset + x] = (byte) luminance;
+			}
+		}
+		return gray;
+	}
+
+	/**
+	 * Downscales by averaging the source pixels covered by each target pixel.
+	 */
+	static BufferedImage downscale(BufferedImage gray, double scale) {
+		final int width = gray.getWidth();
+		final int height = gray.getHeight();
+		final int targetWidth = Math.max(1, (int) Math.round(width * scale));
+		final int targetHeight = Math.max(1, (int) Math.round(height * scale));
+		if (targetWidth >= width || targetHeight >= height) {
+			return gray;
+		}
+		byte[] in = pixels(gray);
+		BufferedImage scaled = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] out = pixels(scaled);
+		int[] columnStart = new int[targetWidth + 1];
+		for (int x = 0; x <= targetWidth; x++) {
+			columnStart[x] = (int) ((long) x * width / targetWidth);
+		}
+		int[] sums = new int[targetWidth];
+		for (int y = 0; y < targetHeight; y++) {
+			int firstRow = (int) ((long) y * height / targetHeight);
+			int lastRow = (int) ((long) (y + 1) * height / targetHeight);
+			Arrays.fill(sums, 0);
+			for (int sy = firstRow; sy < lastRow; sy++) {
+				int offset = sy * width;
+				for (int x = 0; x < targetWidth; x++) {
+					int sum = 0;
+					for (int sx = columnStart[x]; sx < columnStart[x + 1]; sx++) {
+						sum += in[offset + sx] & 0xFF;
+					}
+					sums[x] += sum;
+				}
+			}
+			int rows = lastRow - firstRow;
+			int offset = y * targetWidth;
+			for (int x = 0; x < targetWidth; x++) {
+				out[offset + x] = (byte) (sums[x] / (rows * (columnStart[x + 1] - columnStart[x])));
+			}
+		}
+		return scaled;
+	}
+
+	/**
+	 * Estimates the skew of the text lines by projection profiles: the bottom
+	 * edges of the ink of a sample of the page are projected along each
+	 * candidate angle, the angle giving the sharpest profile wins.
+	 *
+	 * @return the angle of the text lines in degrees, positive when the lines
+	 *         go up from left to right
+	 */
+	static double estimateSkew(BufferedImage gray) {
+		final int width = gray.getWidth();
+		final int height = gray.getHeight();
+		final byte[] in = pixels(gray);
+		final int threshold = otsuThreshold(gray);
+		final int step = Math.max(1, width / SKEW_SAMPLE_WIDTH);
+		final int sampleWidth = width / step;
+		final int sampleHeight = height / step;
+		if (sampleWidth < 2 || sampleHeight < 2) {
+			return 0;
+		}
+		int count = 0;
+		for (int y = 0; y < sampleHeight - 1; y++) {
+			for (int x = 0; x < sampleWidth; x++) {
+				if (isBottomEdge(in, width, x * step, y * step, step, threshold)) {
+					count++;
+				}
+			}
+		}
+		if (count == 0) {
+			return 0;
+		}
+		int[] xs = new int[count];
+		int[] ys = new int[count];
+		count = 0;
+		for (int y = 0; y < sampleHeight - 1; y++) {
+			for (int x = 0; x < sampleWidth; x++) {
+				if (isBottomEdge(in, width, x * step, y * step, step, threshold)) {
+					xs[count] = x;
+					ys[count++] = y;
+				}
+			}
+		}
+		final int margin = (int) Math.ceil(sampleWidth * Math.tan(Math.toRadians(MAX_SKEW_DEGREES))) + 1;
+		final int[] profile = new int[sampleHeight + 2 * margin];
+		double bestAngle = 0;
+		long bestScore = -1;
+		final int steps = (int) Math.round(MAX_SKEW_DEGREES / SKEW_STEP_DEGREES);
+		for (int i = -steps; i <= steps; i++) {
+			double angle = i * SKEW_STEP_DEGREES;
+			double slope = Math.tan(Math.toRadians(angle));
+			Arrays.fill(profile, 0);
+			for (int p = 0; p < count; p++) {
+				profile[margin + (int) Math.round(ys[p] + xs[p] * slope)]++;
+			}
+			long score = 0;
+			for (int bin : profile) {
+				score += (long) bin * bin;
+			}
+			if (score > bestScore || (score == bestScore && Math.abs(angle) < Math.abs(bestAngle))) {
+				bestScore = score;
+				bestAngle = angle;
+			}
+		}
+		return bestAngle;
+	}
+
+	private static boolean isBottomEdge(byte[] pixels, int width, int x, int y, int step, int threshold) {
+		return (pixels[y * width + x] & 0xFF) <= threshold && (pixels[(y + step) * width + x] & 0xFF) > threshold;
+	}
+
+	/**
+	 * Rotates the page around its center so that lines with the given skew
+	 * become horizontal, with a bilinear interpolation. Areas coming from
+	 * outside of the page are white.
+	 */
+	static BufferedImage rotate(BufferedImage gray, double skewDegrees) {
+		final int width = gray.getWidth();
+		final int height = gray.getHeight();
+		final byte[] in = pixels(gray);
+		BufferedImage rotated = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		final byte[] out = pixels(rotated);
+		final double radians = Math.toRadians(skewDegrees);
+		final double cos = Math.cos(radians);
+		final double sin = Math.sin(radians);
+		final double cx = (width - 1) / 2.0;
+		final double cy = (height - 1) / 2.0;
+		for (int y = 0; y < height; y++) {
+			double dy = y - cy;
+			// source of (x, y) is (cx + cos * dx + sin * dy, cy - sin * dx + cos * dy)
+			double sx = cx - cos * cx + sin * dy;
+			double sy = cy + sin * cx + cos * dy;
+			int offset = y * width;
+			for (int x = 0; x < width; x++, sx += cos, sy -= sin) {
+				int x0 = (int) Math.floor(sx);
+				int y0 = (int) Math.floor(sy);
+				if (x0 < 0 || y0 < 0 || x0 >= width - 1 || y0 >= height - 1) {
+					out[offset + x] = (byte) 0xFF;
+					continue;
+				}
+				double fx = sx - x0;
+				double fy = sy - y0;
+				int i = y0 * width + x0;
+				double top = (in[i] & 0xFF) * (1 - fx) + (in[i + 1] & 0xFF) * fx;
+				double bottom = (in[i + width] & 0xFF) * (1 - fx) + (in[i + width + 1] & 0xFF) * fx;
+				out[offset + x] = (byte) (int) (top * (1 - fy) + bottom * fy + 0.5);
+			}
+		}
+		return rotated;
+	}
+
+	/**
+	 * Crops the blank margins and the dark scanner borders, keeping a few
+	 * pixels around the content. A page without content is kept as is.
+	 */
+	static BufferedImage cropBorders(BufferedImage gray) {
+		final int width = gray.getWidth();
+		final int height = gray.getHeight();
+		final byte[] in = pixels(gray);
+		final int threshold = otsuThreshold(gray);
+		int left = 0;
+		int right = width - 1;
+		int top = 0;
+		int bottom = height - 1;
+		// a border along one side puts ink in every row or column across it, hiding the margins
+		// of the other sides: both directions are trimmed twice
+		for (int pass = 0; pass < 2; pass++) {
+			int[] columnInk = new int[width];
+			for (int y = top; y <= bottom; y++) {
+				int offset = y * width;
+				for (int x = left; x <= right; x++) {
+					if ((in[offset + x] & 0xFF) <= threshold) {
+						columnInk[x]++;
+					}
+				}
+			}
+			int rows = bottom - top + 1;
+			while (left < right && isBorder(columnInk[left], rows)) {
+				left++;
+			}
+			while (right > left && isBorder(columnInk[right], rows)) {
+				right--;
+			}
+			int[] rowInk = new int[height];
+			for (int y = top; y <= bottom; y++) {
+				int offset = y * width;
+				for (int x = left; x <= right; x++) {
+					if ((in[offset + x] & 0xFF) <= threshold) {
+						rowInk[y]++;
+					}
+				}
+			}
+			int columns = right - left + 1;
+			while (top < bottom && isBorder(rowInk[top], columns)) {
+				top++;
+			}
+			while (bottom > top && isBorder(rowInk[bottom], columns)) {
+				bottom--;
+			}
+		}
+		if (left >= right || top >= bottom) {
+			return gray;
+		}
+		top = Math.max(0, top - BORDER_PADDING);
+		bottom = Math.min(height - 1, bottom + BORDER_PADDING);
+		left = Math.max(0, left - BORDER_PADDING);
+		right = Math.min(width - 1, right + BORDER_PADDING);
+		if (top == 0 && left == 0 && bottom == height - 1 && right == width - 1) {
+			return gray;
+		}
+		final int croppedWidth = right - left + 1;
+		BufferedImage cropped = new BufferedImage(croppedWidth, bottom - top + 1, BufferedImage.TYPE_BYTE_GRAY);
+		byte[] out = pixels(cropped);
+		for (int y = top; y <= bottom; y++) {
+			System.arraycopy(in, y * width + left, out, (y - top) * croppedWidth, croppedWidth);
+		}
+		return cropped;
+	}
+
+	private static boolean isBorder(int ink, int length) {
+		return ink < length * BORDER_MIN_INK || ink > length * BORDER_MAX_INK;
+	}
+
+	/**
+	 * @return the gray level separating at best the ink from the background,
+	 *         pixels lower or equal to it are ink.
+	 */
+	static int otsuThreshold(BufferedImage gray) {
+		final byte[] in = pixels(gray);
+		int[] histogram = new int[256];
+		for (byte pixel : in) {
+			histogram[pixel & 0xFF]++;
+		}
+		long total = in.length;
+		long totalSum = 0;
+		for (int level = 0; level < 256; level++) {
+			totalSum += (long) level * histogram[level];
+		}
+		long backgroundCount = 0;
+		long backgroundSum = 0;
+		double bestVariance = -1;
+		int threshold = 127;
+		for (int level = 0; level < 255; level++) {
+			backgroundCount += histogram[level];
+			backgroundSum += (long) level * histogram[level];
+			long foregroundCount = total - backgroundCount;
+			if (backgroundCount == 0 || foregroundCount == 0) {
+				continue;
+			}
+			double meanDifference = (double) backgroundSum / backgroundCount
+					- (double) (totalSum - backgroundSum) / foregroundCount;
+			double variance = (double) backgroundCount * foregroundCount * meanDifference * meanDifference;
+			if (variance > bestVariance) {
+				bestVariance = variance;
+				threshold = level;
+			}
+		}
+		return threshold;
+	}
+
+	/**
+	 * Replaces in place the pixels lower or equal to the threshold by black, the
+	 * others by white.
+	 */
+	static void threshold(BufferedImage gray, int threshold) {
+		final byte[] pixels = pixels(gray);
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (pixels[i] & 0xFF) <= threshold ? 0 : (byte) 0xFF;
+		}
+	}
+
+	/**
+	 * Bradley local thresholding: a pixel is black when it is darker than the
+	 * mean of the surrounding window, about 1/40 of the page width. The window
+	 * sums are slid along rows and columns, in linear time.
+	 */
+	static BufferedImage adaptiveThreshold(BufferedImage gray) {
+		final int width = gray.getWidth();
+		final int height = gray.getHeight();
+		final byte[] in = pixels(gray);
+		final int half = Math.max(ADAPTIVE_MIN_WINDOW, width / 40) / 2;
+		BufferedImage binary = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+		final byte[] out = pixels(binary);
+		final int[] columnSums = new int[width];
+		for (int y = 0; y < Math.min(half, height); y++) {
+			addRow(in, width, y, columnSums, 1);
+		}
+		for (int y = 0; y < height; y++) {
+			if (y + half < height) {
+				addRow(in, width, y + half, columnSums, 1);
+			}
+			if (y - half - 1 >= 0) {
+				addRow(in, width, y - half - 1, columnSums, -1);
+			}
+			final int rows = Math.min(height - 1, y + half) - Math.max(0, y - half) + 1;
+			long sum = 0;
+			for (int x = 0; x < Math.min(half, width); x++) {
+				sum += columnSums[x];
+			}
+			final int offset = y * width;
+			for (int x = 0; x < width; x++) {
+				if (x + half < width) {
+					sum += columnSums[x + half];
+				}
+				if (x - half - 1 >= 0) {
+					sum -= columnSums[x - half - 1];
+				}
+				int columns = Math.min(width - 1, x + half) - Math.max(0, x - half) + 1;
+				long pixel = in[offset + x] & 0xFF;
+				out[offset + x] = pixel * columns * rows * 100 <= sum * (100 - ADAPTIVE_SENSITIVITY_PERCENT) ? 0
+						: (byte) 0xFF;
+			}
+		}
+		return binary;
+	}
+
+	private static void addRow(byte[] pixels, int width, int y, int[] columnSums, int sign) {
+		final int offset = y * width;
+		for (int x = 0; x < width; x++) {
+			columnSums[x] += sign * (pixels[offset + x] & 0xFF);
+		}
+	}
+
+	/**
+	 * A preprocessed page and the size of its raster before and after.
+	 */
+	public static final class Result {
+		private final BufferedImage image;
+		private final long inputBytes;
+		private final long outputBytes;
+		private final double skew;
+		private final float resolution;
+
+		private Result(BufferedImage image, long inputBytes, long outputBytes, double skew, float resolution) {
+			this.image = image;
+			this.inputBytes = inputBytes;
+			this.outputBytes = outputBytes;
+			this.skew = skew;
+			this.resolution = resolution;
+		}
+
+		/**
+		 * @return the page, {@link BufferedImage#TYPE_BYTE_GRAY}. Only black
+		 *         and white pixels remain once binarized.
+		 */
+		public BufferedImage getImage() {
+			return image;
+		}
+
+		/**
+		 * @return size of the raster of the page given to the preprocessor
+		 */
+		public long getInputBytes() {
+			return inputBytes;
+		}
+
+		/**
+		 * @return size of the raster of the preprocessed page, packed at 1 bit
+		 *         per pixel once binarized
+		 */
+		public long getOutputBytes() {
+			return outputBytes;
+		}
+
+		/**
+		 * @return skew corrected, in degrees, 0 if not deskewed
+		 */
+		public double getSkew() {
+			return skew;
+		}
+
+		/**
+		 * @return resolution of the preprocessed page, the target DPI once
+		 *         downscaled, 0 if unknown
+		 */
+		public float getResolution() {
+			return resolution;
+		}
+	}
+}
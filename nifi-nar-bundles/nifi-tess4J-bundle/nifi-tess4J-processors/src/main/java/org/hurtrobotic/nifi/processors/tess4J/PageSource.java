@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Pages of a document decoded one at a time. Implementations are not thread
+ * safe, pages are meant to be read sequentially by the thread which owns the
+ * source.
+ */
+public interface PageSource extends Closeable {
+
+	int getPageCount() throws IOException;
+
+	/**
+	 * Decodes the page with the given zero based index.
+	 */
+	BufferedImage readPage(int pageIndex) throws IOException;
+
+	/**
+	 * @return resolution in DPI of the page returned by
+	 *         {@link #readPage(int)}, 0 if unknown
+	 */
+	float getResolution(int pageIndex) throws IOException;
+
+	/**
+	 * Opens a {@link PdfPageSource} when the content starts with the PDF
+	 * signature, an {@link ImagePageSource} otherwise.
+	 *
+	 * @param in
+	 *            content of the document, must support mark/reset
+	 * @param dpi
+	 *            resolution used to render PDF pages
+	 */
+	static PageSource open(InputStream in, float dpi) throws IOException {
+		return isPdf(in) ? new PdfPageSource(in, dpi) : new ImagePageSource(in);
+	}
+
+	static boolean isPdf(InputStream in) throws IOException {
+		final byte[] signature = new byte[] { '%', 'P', 'D', 'F' };
+		in.mark(signature.length);
+		try {
+			for (byte b : signature) {
+				if (in.read() != b) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			in.reset();
+		}
+	}
+}
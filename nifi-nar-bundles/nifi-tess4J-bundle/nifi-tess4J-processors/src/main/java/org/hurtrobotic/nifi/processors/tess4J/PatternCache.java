@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled regular expressions, by source. Properties evaluated per FlowFile
+ * usually take a handful of distinct values, each one is compiled once and the
+ * least recently used patterns are dropped beyond {@code maxEntries}.
+ */
+public class PatternCache {
+	private final LinkedHashMap<String, Pattern> patterns;
+
+	public PatternCache(final int maxEntries) {
+		this.patterns = new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * @throws java.util.regex.PatternSyntaxException
+	 *             if the regex is invalid
+	 */
+	public Pattern get(String regex) {
+		synchronized (patterns) {
+			Pattern pattern = patterns.get(regex);
+			if (pattern == null) {
+				pattern = Pattern.compile(regex);
+				patterns.put(regex, pattern);
+			}
+			return pattern;
+		}
+	}
+
+	public void clear() {
+		synchronized (patterns) {
+			patterns.clear();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+/**
+ * Renders the pages of a PDF document to gray images with PDFBox.
+ * <p>
+ * The longest side of a rendered page is limited to {@value #MAX_PAGE_PIXELS}
+ * pixels, oversized pages are rendered at a lower resolution.
+ */
+public class PdfPageSource implements PageSource {
+	public static final int MAX_PAGE_PIXELS = 10000;
+
+	private final PDDocument document;
+	private final PDFRenderer renderer;
+	private final float dpi;
+
+	public PdfPageSource(InputStream in, float dpi) throws IOException {
+		this.document = PDDocument.load(in, MemoryUsageSetting.setupTempFileOnly());
+		this.renderer = new PDFRenderer(document);
+		this.dpi = dpi;
+	}
+
+	@Override
+	public int getPageCount() {
+		return document.getNumberOfPages();
+	}
+
+	@Override
+	public BufferedImage readPage(int pageIndex) throws IOException {
+		return renderer.renderImage(pageIndex, getScale(document.getPage(pageIndex), dpi), ImageType.GRAY);
+	}
+
+	/**
+	 * Renders the page at another resolution than the one of the source.
+	 */
+	public BufferedImage readPage(int pageIndex, float pageDpi) throws IOException {
+		return renderer.renderImage(pageIndex, getScale(document.getPage(pageIndex), pageDpi), ImageType.GRAY);
+	}
+
+	/**
+	 * @return the render resolution, lower than the one requested for very
+	 *         large pages
+	 */
+	@Override
+	public float getResolution(int pageIndex) {
+		return getScale(document.getPage(pageIndex), dpi) * 72f;
+	}
+
+	/**
+	 * Size in pixels of the rendered page, rotation included.
+	 */
+	public Dimension getPageSize(int pageIndex) {
+		PDPage page = document.getPage(pageIndex);
+		PDRectangle cropBox = page.getCropBox();
+		float scale = getScale(page, dpi);
+		int width = Math.round(cropBox.getWidth() * scale);
+		int height = Math.round(cropBox.getHeight() * scale);
+		int rotation = page.getRotation();
+		return rotation == 90 || rotation == 270 ? new Dimension(height, width) : new Dimension(width, height);
+	}
+
+	/**
+	 * Renders the page in the top left corner of an existing gray image so that
+	 * the same image can be reused for every page. The image must be at least
+	 * as large as {@link #getPageSize(int)}.
+	 *
+	 * @return the area of the image covered by the page
+	 */
+	public Rectangle renderPage(int pageIndex, BufferedImage target) throws IOException {
+		Dimension size = getPageSize(pageIndex);
+		if (target.getWidth() < size.width || target.getHeight() < size.height) {
+			throw new IllegalArgumentException("Image " + target.getWidth() + "x" + target.getHeight()
+					+ " is too small for page " + pageIndex + " " + size.width + "x" + size.height);
+		}
+		Graphics2D graphics = target.createGraphics();
+		try {
+			graphics.setBackground(Color.WHITE);
+			graphics.clearRect(0, 0, size.width, size.height);
+			renderer.renderPageToGraphics(pageIndex, graphics, getScale(document.getPage(pageIndex), dpi));
+		} finally {
+			graphics.dispose();
+		}
+		return new Rectangle(size);
+	}
+
+	private static float getScale(PDPage page, float pageDpi) {
+		PDRectangle cropBox = page.getCropBox();
+		float longestSide = Math.max(cropBox.getWidth(), cropBox.getHeight());
+		return Math.min(pageDpi / 72f, MAX_PAGE_PIXELS / longestSide);
+	}
+
+	public PDDocument getDocument() {
+		return document;
+	}
+
+	@Override
+	public void close() throws IOException {
+		document.close();
+	}
+}
@@ -28,15 +28,20 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import org.apache.nifi.annotation.behavior.EventDriven;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
@@ -44,28 +49,113 @@ import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.multipdf.Splitter;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.interactive.action.PDActionGoTo;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationLink;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.destination.PDPageDestination;
 
 
 @Tags({ "pdfsplit", "pdfbox", "split", "pdf", "tess4J" })
 @EventDriven
 @InputRequirement(InputRequirement.Requirement.INPUT_ALLOWED)
-@CapabilityDescription("Perform a Split for each page of a PDF flowfile. ")
+@CapabilityDescription("Perform a Split of a PDF flowfile, for each page or for chunks, ranges or sizes of pages. ")
 @WritesAttributes({
 		@WritesAttribute(attribute = "file.source.split.filename", description = "The filename of the source FlowFile."),
 		@WritesAttribute(attribute = "file.source.split.uuid", description = "The UUID of the source FlowFile."),
 		@WritesAttribute(attribute = "file.source.split.page.count", description = "The page count of the source FlowFile"),
-		@WritesAttribute(attribute = "file.split.page", description = "Number of the current page") })
+		@WritesAttribute(attribute = "file.source.split.count", description = "Number of documents split from the source FlowFile"),
+		@WritesAttribute(attribute = "file.split.page.count", description = "Number of the current split document, from 1"),
+		@WritesAttribute(attribute = "file.split.page.start", description = "First page of the source FlowFile in the current split document"),
+		@WritesAttribute(attribute = "file.split.page.end", description = "Last page of the source FlowFile in the current split document"),
+		@WritesAttribute(attribute = "split.<stage>.time", description = "Milliseconds spent splitting the source FlowFile in each stage : load, split (computing the page ranges) and save") })
 
 public class PdfSplit extends AbstractTesseractOcr {
 	private static final String SOURCE_FILENAME = "file.source.split.filename";
 	private static final String SOURCE_UUID = "file.source.split.uuid";
 	private static final String SOURCE_PAGE_COUNT = "file.source.split.page.count";
 	private static final String PAGEID = "file.split.page.count";
+	private static final String SOURCE_SPLIT_COUNT = "file.source.split.count";
+	private static final String PAGE_START = "file.split.page.start";
+	private static final String PAGE_END = "file.split.page.end";
+	private static final String STAGE_LOAD = "load";
+	private static final String STAGE_SPLIT = "split";
+	private static final String STAGE_SAVE = "save";
+	private static final Pattern PAGE_RANGE_PATTERN = Pattern.compile("^(\\d+)(-(\\d*))?$");
+
+	private static final String SPLIT_MODE_STREAMING = "streaming";
+	private static final String SPLIT_MODE_IN_MEMORY = "in-memory";
+	private static final String SPLIT_MODE_MAPPED = "mapped";
+	private static final String STRATEGY_PAGE = "page";
+	private static final String STRATEGY_CHUNK = "chunk";
+	private static final String STRATEGY_RANGES = "ranges";
+	private static final String STRATEGY_SIZE = "size";
 
 	private List<PropertyDescriptor> descriptors;
 	private Set<Relationship> relationships;
+	private volatile boolean mapped;
+	private volatile MemoryUsageSetting memoryUsage;
+	private volatile String strategy;
+	private volatile int pagesPerChunk;
+	private volatile long targetSize;
+
+	public static final PropertyDescriptor PDF_SPLIT_MODE = new PropertyDescriptor.Builder()
+			.name("pdf.split.mode").displayName("Split mode")
+			.description("streaming : the source document is parsed through a scratch file once the main memory budget "
+					+ "is exceeded. in-memory : the source document is kept in main memory. "
+					+ "mapped : the source document is copied once to a temporary file parsed through a memory map, "
+					+ "none of it is buffered in main memory, suited to very large documents. "
+					+ "In every mode each split document is written and released before the next one is built.")
+			.allowableValues(SPLIT_MODE_STREAMING, SPLIT_MODE_IN_MEMORY, SPLIT_MODE_MAPPED).defaultValue(SPLIT_MODE_STREAMING)
+			.required(true).build();
+
+	public static final PropertyDescriptor PDF_MAX_MAIN_MEMORY = new PropertyDescriptor.Builder()
+			.name("pdf.max.main.memory").displayName("Max main memory per document")
+			.description("Heap used by PDFBox to buffer a document in streaming mode, "
+					+ "beyond this size the document is buffered in a temporary scratch file. "
+					+ "In mapped mode, heap used to buffer the objects created while splitting.")
+			.addValidator(StandardValidators.DATA_SIZE_VALIDATOR).defaultValue("50 MB")
+			.required(true).build();
+
+	public static final PropertyDescriptor PDF_SPLIT_STRATEGY = new PropertyDescriptor.Builder()
+			.name("pdf.split.strategy").displayName("Split strategy")
+			.description("page : one document per page. chunk : documents of 'Pages per chunk' pages. "
+					+ "ranges : one document per range of 'Page ranges'. "
+					+ "size : consecutive pages grouped until their estimated size reaches 'Target split size'.")
+			.allowableValues(STRATEGY_PAGE, STRATEGY_CHUNK, STRATEGY_RANGES, STRATEGY_SIZE).defaultValue(STRATEGY_PAGE)
+			.required(true).build();
+
+	public static final PropertyDescriptor PDF_SPLIT_PAGES_PER_CHUNK = new PropertyDescriptor.Builder()
+			.name("pdf.split.pages.per.chunk").displayName("Pages per chunk")
+			.description("Number of pages of each document with the chunk strategy.")
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).defaultValue("10")
+			.required(true).build();
+
+	public static final PropertyDescriptor PDF_SPLIT_PAGE_RANGES = new PropertyDescriptor.Builder()
+			.name("pdf.split.page.ranges").displayName("Page ranges")
+			.description("Comma separated page ranges used by the ranges strategy, for instance 1-2,3,4-. "
+					+ "Pages are numbered from 1, a range without end goes to the last page. "
+					+ "Ranges must be in ascending order and must not overlap. "
+					+ "Typically set from a FlowFile attribute with Expression Language.")
+			.addValidator(StandardValidators.NON_EMPTY_VALIDATOR).expressionLanguageSupported(true)
+			.required(false).build();
+
+	public static final PropertyDescriptor PDF_SPLIT_TARGET_SIZE = new PropertyDescriptor.Builder()
+			.name("pdf.split.target.size").displayName("Target split size")
+			.description("Estimated size of the documents produced by the size strategy. "
+					+ "Only page contents and images are accounted, shared fonts are not.")
+			.addValidator(StandardValidators.DATA_SIZE_VALIDATOR).defaultValue("5 MB")
+			.required(true).build();
 
 	public static final Relationship REL_FILES = new Relationship.Builder().name("files")
 			.description("Each individual file will be routed to the files relationship").build();
@@ -88,110 +178,285 @@ public class PdfSplit extends AbstractTesseractOcr {
 		this.relationships = Collections.unmodifiableSet(relationships);
 
 		// descriptors.add(FILENAME_LANGUAGE_EXTRACTION_MODE);
+		descriptors.add(METRICS_REPORT_INTERVAL);
+		descriptors.add(BATCH_SIZE);
+		descriptors.add(PDF_SPLIT_MODE);
+		descriptors.add(PDF_MAX_MAIN_MEMORY);
+		descriptors.add(PDF_SPLIT_STRATEGY);
+		descriptors.add(PDF_SPLIT_PAGES_PER_CHUNK);
+		descriptors.add(PDF_SPLIT_PAGE_RANGES);
+		descriptors.add(PDF_SPLIT_TARGET_SIZE);
 		this.descriptors = Collections.unmodifiableList(descriptors);
 		getLogger().info("End Init.");
 	}
 
+	@OnScheduled
+	public void onScheduled(final ProcessContext context) {
+		final String mode = context.getProperty(PDF_SPLIT_MODE).getValue();
+		mapped = SPLIT_MODE_MAPPED.equals(mode);
+		memoryUsage = SPLIT_MODE_IN_MEMORY.equals(mode)
+				? MemoryUsageSetting.setupMainMemoryOnly()
+				: MemoryUsageSetting.setupMixed(context.getProperty(PDF_MAX_MAIN_MEMORY).asDataSize(DataUnit.B).longValue());
+		strategy = context.getProperty(PDF_SPLIT_STRATEGY).getValue();
+		pagesPerChunk = context.getProperty(PDF_SPLIT_PAGES_PER_CHUNK).asInteger();
+		targetSize = context.getProperty(PDF_SPLIT_TARGET_SIZE).asDataSize(DataUnit.B).longValue();
+	}
+
 	public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-		getLogger().info("Start Processing.");
-		FlowFile originalFlowFile = session.get();
-		if (originalFlowFile == null) {
+		getLogger().debug("Start Processing.");
+		reportStageMetrics(context);
+		final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+		if (flowFiles.isEmpty()) {
 			return;
 		}
 		List<FlowFile> outputFlowFileList = new ArrayList<>();
 		List<FlowFile> originalFlowFileList = new ArrayList<>();
 		List<FlowFile> invalidFlowFilesList = new ArrayList<>();
 
-		try {
-			session.read(originalFlowFile, new InputStreamCallback() {
-
-				public void process(InputStream rawIn) throws IOException {
-					PDDocument document = null;
-					try {
-
-						String originalFileName = originalFlowFile.getAttribute(CoreAttributes.FILENAME.key());
-						document = PDDocument.load(rawIn);
-
-						// Instantiating Splitter class
-						Splitter splitter = new Splitter();
-
-						// splitting the pages of a PDF document
-						List<PDDocument> pages = splitter.split(document);
-
-						// Creating an iterator
-						Iterator<PDDocument> iterator = pages.listIterator();
-
-						// Saving each page as an individual document
-						int i=1;
-						while (iterator.hasNext()) {
-							PDDocument pd = iterator.next();
-
-							FlowFile split = session.create(originalFlowFile);
-							final Map<String, String> attributes = new HashMap<>();
-							/*
-							 * if (StringUtils.isNotBlank(originalFlowFile.getName())) {
-							 * attributes.put(CoreAttributes.FILENAME.key(), originalFlowFile.getName()); }
-							 */
-							String parentUuid = originalFlowFile.getAttribute(CoreAttributes.UUID.key());
-							String idx = String.format("%05d", i);
-							String[] oriFileInfos = getFileInfos(originalFileName);
-							String splittedName = (((oriFileInfos != null) && (oriFileInfos.length == 2))?(oriFileInfos[0] + "_" + idx + "." + oriFileInfos[1]):((oriFileInfos != null)?oriFileInfos[0] + "_" + idx +".pdf":((new Date()).getTime() + "_" + idx + ".pdf")));
-							attributes.put(CoreAttributes.FILENAME.key(), splittedName);
-							attributes.put(SOURCE_UUID, parentUuid);
-							attributes.put(SOURCE_FILENAME, originalFileName);
-							attributes.put(SOURCE_PAGE_COUNT, String.valueOf(pages.size()));
-							attributes.put(PAGEID,String.valueOf(i));
-							split = session.append(split, new OutputStreamCallback() {
-								@Override
-								public void process(OutputStream out) throws IOException {
-									pd.save(out);
-									pd.close();
-								}
-							});
-							split = session.putAllAttributes(split, attributes);
-							outputFlowFileList.add(split);		
-							i++;
-						}
-						System.out.println("Multiple PDF’s created");
-						document.close();
-						document = null;
-						originalFlowFileList.add(originalFlowFile);
-					} catch (Exception e) {
-						throw e;
-					}
-					finally {
-						if (document != null) {
-							try {
-								document.close();
-							} catch (Exception e) {
-								getLogger().error("Error during closing PDF Document {}",
-										new Object[] { originalFlowFile, e });
-							}
-						}
-					}
-				}
-			});
-		} catch (Exception e) {
-			getLogger().error("Error during split PDF Document {}", new Object[] { originalFlowFile, e });
-			invalidFlowFilesList.add(originalFlowFile);
-            // Removing splits that may have been created
-            session.remove(outputFlowFileList);
-            // Removing the original flow from its list
-            originalFlowFileList.remove(originalFlowFile);
+		for (FlowFile originalFlowFile : flowFiles) {
+			final List<FlowFile> splitFlowFileList = new ArrayList<>();
+			try {
+				split(context, session, originalFlowFile, splitFlowFileList);
+				outputFlowFileList.addAll(splitFlowFileList);
+				originalFlowFileList.add(originalFlowFile);
+			} catch (Exception e) {
+				getLogger().error("Error during split PDF Document {}", new Object[] { originalFlowFile, e });
+				invalidFlowFilesList.add(originalFlowFile);
+				// Removing splits that may have been created
+				session.remove(splitFlowFileList);
+			}
 		}
 
 		session.transfer(invalidFlowFilesList, REL_FAILURE);
 		session.transfer(outputFlowFileList, REL_FILES);
 		session.transfer(originalFlowFileList, REL_ORIGINAL);
 
-		getLogger().info("File output queue 'files' have {} files: {}",
+		getLogger().debug("File output queue 'files' have {} files: {}",
 				new Object[] { outputFlowFileList.size(), outputFlowFileList });
-		getLogger().info("File output queue 'originalFile' have {} files: {}",
+		getLogger().debug("File output queue 'originalFile' have {} files: {}",
 				new Object[] { originalFlowFileList.size(), originalFlowFileList });
 
-		getLogger().info("File output queue 'failure' have {} files: {}",
+		getLogger().debug("File output queue 'failure' have {} files: {}",
 				new Object[] { invalidFlowFilesList.size(), invalidFlowFilesList });
-		getLogger().info("End Processing.");
+		getLogger().debug("End Processing.");
+	}
+
+	private void split(final ProcessContext context, final ProcessSession session, final FlowFile originalFlowFile,
+			final List<FlowFile> outputFlowFileList) {
+		// the only property evaluated against each FlowFile, the others are resolved once scheduled
+		final String pageRanges = context.getProperty(PDF_SPLIT_PAGE_RANGES).evaluateAttributeExpressions(originalFlowFile).getValue();
+		final StageMetrics.Timings timings = stageMetrics.start();
+		session.read(originalFlowFile, new InputStreamCallback() {
+
+			public void process(InputStream rawIn) throws IOException {
+				PDDocument document = null;
+				try {
+					long stageStart = System.nanoTime();
+					document = mapped ? MappedRandomAccessRead.load(rawIn, memoryUsage)
+							: PDDocument.load(rawIn, memoryUsage);
+					stageStart = timings.since(STAGE_LOAD, stageStart);
+					final PDDocument source = document;
+					final int pageCount = source.getNumberOfPages();
+					final List<int[]> ranges;
+					if (STRATEGY_CHUNK.equals(strategy)) {
+						ranges = chunkRanges(pageCount, pagesPerChunk);
+					} else if (STRATEGY_RANGES.equals(strategy)) {
+						ranges = parseRanges(pageRanges, pageCount);
+					} else if (STRATEGY_SIZE.equals(strategy)) {
+						ranges = sizeRanges(source, targetSize);
+					} else {
+						ranges = chunkRanges(pageCount, 1);
+					}
+					stageStart = timings.since(STAGE_SPLIT, stageStart);
+					// Saving each range as soon as it is imported, only one split document is open at a time
+					for (int i = 1; i <= ranges.size(); i++) {
+						final int[] range = ranges.get(i - 1);
+						createSplit(session, originalFlowFile, i, ranges.size(), range, pageCount, new OutputStreamCallback() {
+							@Override
+							public void process(OutputStream out) throws IOException {
+								savePages(source, range[0], range[1], memoryUsage, out);
+							}
+						}, outputFlowFileList);
+					}
+					timings.since(STAGE_SAVE, stageStart);
+					getLogger().debug("{} PDF documents created from {}",
+							new Object[] { outputFlowFileList.size(), originalFlowFile });
+					document.close();
+					document = null;
+				} finally {
+					if (document != null) {
+						try {
+							document.close();
+						} catch (Exception e) {
+							getLogger().error("Error during closing PDF Document {}",
+									new Object[] { originalFlowFile, e });
+						}
+					}
+				}
+			}
+		});
+		final Map<String, String> timingAttributes = timings.toAttributes("split");
+		for (int i = 0; i < outputFlowFileList.size(); i++) {
+			outputFlowFileList.set(i, session.putAllAttributes(outputFlowFileList.get(i), timingAttributes));
+		}
+		timings.record(session);
+	}
+
+	/**
+	 * Ranges of pagesPerChunk consecutive pages, the last one may be shorter.
+	 */
+	static List<int[]> chunkRanges(int pageCount, int pagesPerChunk) {
+		List<int[]> ranges = new ArrayList<>();
+		for (int start = 1; start <= pageCount; start += pagesPerChunk) {
+			ranges.add(new int[] { start, Math.min(pageCount, start + pagesPerChunk - 1) });
+		}
+		return ranges;
+	}
+
+	/**
+	 * Parses ranges like "1-3,5,8-" (1 based, inclusive, an open range ends at
+	 * the last page). Ranges must be in ascending order and must not overlap,
+	 * so that each page is in one split document at most.
+	 */
+	static List<int[]> parseRanges(String pageRanges, int pageCount) {
+		if (pageRanges == null || pageRanges.trim().isEmpty()) {
+			throw new IllegalArgumentException("No page ranges defined");
+		}
+		List<int[]> ranges = new ArrayList<>();
+		for (String token : pageRanges.split(",")) {
+			token = token.trim();
+			if (token.isEmpty()) {
+				continue;
+			}
+			Matcher matcher = PAGE_RANGE_PATTERN.matcher(token);
+			if (!matcher.matches()) {
+				throw new IllegalArgumentException("Invalid page range \"" + token + "\"");
+			}
+			int start = Integer.parseInt(matcher.group(1));
+			int end = matcher.group(2) == null ? start
+					: (matcher.group(3).isEmpty() ? pageCount : Integer.parseInt(matcher.group(3)));
+			if (start < 1 || end < start || end > pageCount) {
+				throw new IllegalArgumentException("Page range \"" + token + "\" is outside of the " + pageCount + " pages");
+			}
+			if (!ranges.isEmpty() && start <= ranges.get(ranges.size() - 1)[1]) {
+				throw new IllegalArgumentException("Page range \"" + token + "\" overlaps or precedes the previous range");
+			}
+			ranges.add(new int[] { start, end });
+		}
+		if (ranges.isEmpty()) {
+			throw new IllegalArgumentException("No page ranges defined");
+		}
+		return ranges;
+	}
+
+	/**
+	 * Groups consecutive pages until their estimated size reaches the target
+	 * size. A page bigger than the target size is alone in its range.
+	 */
+	static List<int[]> sizeRanges(PDDocument document, long targetSize) throws IOException {
+		List<int[]> ranges = new ArrayList<>();
+		int pageCount = document.getNumberOfPages();
+		int start = 1;
+		long size = 0;
+		for (int i = 1; i <= pageCount; i++) {
+			long pageSize = estimatePageSize(document.getPage(i - 1));
+			if (i > start && size + pageSize > targetSize) {
+				ranges.add(new int[] { start, i - 1 });
+				start = i;
+				size = 0;
+			}
+			size += pageSize;
+		}
+		if (start <= pageCount) {
+			ranges.add(new int[] { start, pageCount });
+		}
+		return ranges;
+	}
+
+	/**
+	 * Encoded length of the content streams and images of a page, shared
+	 * resources like fonts are not counted.
+	 */
+	private static long estimatePageSize(PDPage page) throws IOException {
+		long size = 0;
+		Iterator<PDStream> contents = page.getContentStreams();
+		while (contents.hasNext()) {
+			size += contents.next().getCOSObject().getLength();
+		}
+		PDResources resources = page.getResources();
+		COSBase xobjects = resources == null ? null : resources.getCOSObject().getDictionaryObject(COSName.XOBJECT);
+		if (xobjects instanceof COSDictionary) {
+			COSDictionary dictionary = (COSDictionary) xobjects;
+			for (COSName name : dictionary.keySet()) {
+				COSBase xobject = dictionary.getDictionaryObject(name);
+				if (xobject instanceof COSStream) {
+					size += ((COSStream) xobject).getLength();
+				}
+			}
+		}
+		return size;
+	}
+
+	private void createSplit(final ProcessSession session, final FlowFile originalFlowFile, int i, int splitCount,
+			int[] range, int pageCount, final OutputStreamCallback writer, final List<FlowFile> outputFlowFileList) {
+		String originalFileName = originalFlowFile.getAttribute(CoreAttributes.FILENAME.key());
+		FlowFile split = session.create(originalFlowFile);
+		final Map<String, String> attributes = new HashMap<>();
+		/*
+		 * if (StringUtils.isNotBlank(originalFlowFile.getName())) {
+		 * attributes.put(CoreAttributes.FILENAME.key(), originalFlowFile.getName()); }
+		 */
+		String parentUuid = originalFlowFile.getAttribute(CoreAttributes.UUID.key());
+		String idx = String.format("%05d", i);
+		String[] oriFileInfos = getFileInfos(originalFileName);
+		String splittedName = (((oriFileInfos != null) && (oriFileInfos.length == 2))?(oriFileInfos[0] + "_" + idx + "." + oriFileInfos[1]):((oriFileInfos != null)?oriFileInfos[0] + "_" + idx +".pdf":((new Date()).getTime() + "_" + idx + ".pdf")));
+		attributes.put(CoreAttributes.FILENAME.key(), splittedName);
+		attributes.put(SOURCE_UUID, parentUuid);
+		attributes.put(SOURCE_FILENAME, originalFileName);
+		attributes.put(SOURCE_PAGE_COUNT, String.valueOf(pageCount));
+		attributes.put(PAGEID,String.valueOf(i));
+		attributes.put(SOURCE_SPLIT_COUNT, String.valueOf(splitCount));
+		attributes.put(PAGE_START, String.valueOf(range[0]));
+		attributes.put(PAGE_END, String.valueOf(range[1]));
+		try {
+			split = session.write(split, writer);
+		} catch (RuntimeException e) {
+			session.remove(split);
+			throw e;
+		}
+		split = session.putAllAttributes(split, attributes);
+		outputFlowFileList.add(split);
+	}
+
+	/**
+	 * Saves pages startPage to endPage (1 based, inclusive) of the source document
+	 * in a new document, the same way {@link Splitter} builds its documents.
+	 */
+	private static void savePages(PDDocument source, int startPage, int endPage, MemoryUsageSetting memoryUsage,
+			OutputStream out) throws IOException {
+		try (PDDocument destination = new PDDocument(memoryUsage)) {
+			destination.getDocument().setVersion(source.getVersion());
+			destination.setDocumentInformation(source.getDocumentInformation());
+			destination.getDocumentCatalog().setViewerPreferences(source.getDocumentCatalog().getViewerPreferences());
+			for (int i = startPage; i <= endPage; i++) {
+				PDPage page = source.getPage(i - 1);
+				PDPage imported = destination.importPage(page);
+				imported.setResources(page.getResources());
+				// remove page links to avoid copying not needed resources
+				for (PDAnnotation annotation : imported.getAnnotations()) {
+					if (annotation instanceof PDAnnotationLink) {
+						PDAnnotationLink link = (PDAnnotationLink) annotation;
+						if (link.getDestination() instanceof PDPageDestination) {
+							link.setDestination(null);
+						}
+						if (link.getAction() instanceof PDActionGoTo) {
+							link.setAction(null);
+						}
+					}
+				}
+			}
+			destination.save(out);
+		}
 	}
 
 	@Override
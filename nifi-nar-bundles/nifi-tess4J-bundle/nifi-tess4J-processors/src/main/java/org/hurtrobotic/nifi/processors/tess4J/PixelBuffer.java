@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The pixels of an image in a direct buffer, in the layout expected by
+ * {@code TessBaseAPISetImage}. The buffer is reused from image to image and
+ * only grows, its memory is off heap.
+ * <p>
+ * Binary images are copied packed, 1 bit per pixel and 1 for white. Other
+ * images are copied as 8 bit luminance, with the weights Leptonica uses, as
+ * Tesseract converts color pages to gray anyway. Transparent pixels are
+ * blended with white. Not thread safe.
+ */
+public class PixelBuffer {
+	private ByteBuffer buffer;
+	private byte[] row = new byte[0];
+	private int[] samples = new int[0];
+	private int bitsPerPixel;
+	private long size;
+
+	/**
+	 * Copies the pixels of the image.
+	 *
+	 * @return the buffer, from position 0, valid until the next call
+	 */
+	public ByteBuffer load(BufferedImage image) {
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final Raster raster = image.getRaster();
+		final boolean binary = raster.getNumBands() == 1 && raster.getSampleModel().getSampleSize(0) == 1;
+		bitsPerPixel = binary ? 1 : 8;
+		final int bytesPerLine = binary ? (width + 7) / 8 : width;
+		size = (long) bytesPerLine * height;
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Image " + width + "x" + height + " is too large");
+		}
+		if (buffer == null || buffer.capacity() < size) {
+			buffer = ByteBuffer.allocateDirect((int) size).order(ByteOrder.nativeOrder());
+		}
+		buffer.clear();
+		if (row.length < bytesPerLine) {
+			row = new byte[bytesPerLine];
+		}
+		if (binary) {
+			loadBinary(image, raster, width, height, bytesPerLine);
+		} else if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+			for (int y = 0; y < height; y++) {
+				raster.getDataElements(0, y, width, 1, row);
+				buffer.put(row, 0, width);
+			}
+		} else {
+			loadLuminance(image, width, height);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private void loadBinary(BufferedImage image, Raster raster, int width, int height, int bytesPerLine) {
+		ensureSamples(width);
+		ColorModel colorModel = image.getColorModel();
+		// 1 must be white for Tesseract
+		final int white = luminance(colorModel.getRGB(1)) > luminance(colorModel.getRGB(0)) ? 1 : 0;
+		for (int y = 0; y < height; y++) {
+			raster.getSamples(0, y, width, 1, 0, samples);
+			for (int x = 0; x < bytesPerLine; x++) {
+				row[x] = 0;
+			}
+			for (int x = 0; x < width; x++) {
+				if (samples[x] == white) {
+					row[x >> 3] |= 0x80 >>> (x & 7);
+				}
+			}
+			buffer.put(row, 0, bytesPerLine);
+		}
+	}
+
+	private void loadLuminance(BufferedImage image, int width, int height) {
+		ensureSamples(width);
+		final boolean alpha = image.getColorModel().hasAlpha();
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, samples, 0, width);
+			for (int x = 0; x < width; x++) {
+				int argb = samples[x];
+				int gray = luminance(argb);
+				if (alpha) {
+					gray = 255 - (255 - gray) * (argb >>> 24) / 255;
+				}
+				row[x] = (byte) gray;
+			}
+			buffer.put(row, 0, width);
+		}
+	}
+
+	private void ensureSamples(int width) {
+		if (samples.length < width) {
+			samples = new int[width];
+		}
+	}
+
+	private static int luminance(int rgb) {
+		return (((rgb >> 16) & 0xff) * 3 + ((rgb >> 8) & 0xff) * 5 + (rgb & 0xff) * 2) / 10;
+	}
+
+	/**
+	 * @return bits per pixel of the last image loaded, 1 or 8
+	 */
+	public int getBitsPerPixel() {
+		return bitsPerPixel;
+	}
+
+	/**
+	 * @return size in bytes of the last image loaded
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return size in bytes of the raster of an image on the heap
+	 */
+	public static long rasterBytes(BufferedImage image) {
+		DataBuffer data = image.getRaster().getDataBuffer();
+		return (long) data.getSize() * data.getNumBanks() * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.pdmodel.graphics.state.RenderingMode;
+import org.apache.pdfbox.util.Matrix;
+
+/**
+ * Writes a searchable PDF: each page is the recognized image with the words
+ * laid over it as invisible text, stretched to their bounding box.
+ * <p>
+ * Page images are kept in a scratch file until the document is saved to the
+ * output stream by {@link #finish()}, the heap only holds the page being
+ * added.
+ */
+public class SearchablePdfWriter implements OcrDocumentWriter {
+	private static final float DEFAULT_DPI = 300;
+	private static final float JPEG_QUALITY = 0.75f;
+
+	private final OutputStream out;
+	private final PDDocument document;
+	private final PDFont font;
+
+	/**
+	 * @param fontFile
+	 *            TrueType font of the text layer, null for Helvetica. Characters
+	 *            missing from the font are left out of the text layer.
+	 */
+	public SearchablePdfWriter(OutputStream out, File fontFile) throws IOException {
+		this.out = out;
+		this.document = new PDDocument(MemoryUsageSetting.setupTempFileOnly());
+		try {
+			this.font = fontFile == null ? PDType1Font.HELVETICA : PDType0Font.load(document, fontFile);
+		} catch (IOException | RuntimeException e) {
+			document.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void addPage(BufferedImage image, float dpi, List<OcrWord> words) throws IOException {
+		final float scale = 72f / (dpi > 0 ? dpi : DEFAULT_DPI);
+		final float width = image.getWidth() * scale;
+		final float height = image.getHeight() * scale;
+		PDPage page = new PDPage(new PDRectangle(width, height));
+		document.addPage(page);
+		// gray and bilevel scans compress well without loss, photos are better as JPEG
+		PDImageXObject pageImage = image.getColorModel().getNumColorComponents() == 1
+				? LosslessFactory.createFromImage(document, image)
+				: JPEGFactory.createFromImage(document, image, JPEG_QUALITY);
+		try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+			content.drawImage(pageImage, 0, 0, width, height);
+			content.beginText();
+			content.setRenderingMode(RenderingMode.NEITHER);
+			for (OcrWord word : words) {
+				String text = encodable(word.getText());
+				Rectangle box = word.getBounds();
+				float fontSize = box.height * scale;
+				if (text.isEmpty() || fontSize <= 0) {
+					continue;
+				}
+				float textWidth = font.getStringWidth(text) / 1000f * fontSize;
+				if (textWidth <= 0) {
+					continue;
+				}
+				content.setFont(font, fontSize);
+				content.setHorizontalScaling(100f * box.width * scale / textWidth);
+				content.setTextMatrix(
+						Matrix.getTranslateInstance(box.x * scale, height - (box.y + box.height) * scale));
+				content.showText(text);
+			}
+			content.endText();
+		}
+	}
+
+	/**
+	 * @return the text without the characters the font cannot encode
+	 */
+	private String encodable(String text) throws IOException {
+		try {
+			font.encode(text);
+			return text;
+		} catch (IllegalArgumentException e) {
+			StringBuilder encodable = new StringBuilder(text.length());
+			for (int i = 0; i < text.length();) {
+				String character = new String(Character.toChars(text.codePointAt(i)));
+				i += character.length();
+				try {
+					font.encode(character);
+					encodable.append(character);
+				} catch (IllegalArgumentException missing) {
+					// not searchable, the image still shows it
+				}
+			}
+			return encodable.toString();
+		}
+	}
+
+	@Override
+	public void finish() throws IOException {
+		document.save(out);
+	}
+
+	@Override
+	public void close() throws IOException {
+		document.close();
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.ProcessSession;
+
+/**
+ * Time spent by a processor in each stage of the processing of a FlowFile,
+ * e.g. read, decode, recognize, write.
+ * <p>
+ * The durations of a FlowFile are collected in a {@link Timings}, then
+ * {@link Timings#record(ProcessSession)} adds them to one
+ * {@link LatencyHistogram} per stage and to a "&lt;stage&gt; time (ms)"
+ * counter. {@link #reportIfDue(long, ComponentLog)} logs the p50, p95 and p99
+ * of every stage and starts a new period.
+ */
+public class StageMetrics {
+	private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+	private final AtomicLong lastReport = new AtomicLong(System.currentTimeMillis());
+
+	public Timings start() {
+		return new Timings();
+	}
+
+	public LatencyHistogram getHistogram(String stage) {
+		return histograms.computeIfAbsent(stage, s -> new LatencyHistogram());
+	}
+
+	/**
+	 * Logs the percentiles of each stage at INFO level, then empties the
+	 * histograms, once every intervalMillis. Does nothing if intervalMillis is
+	 * not positive.
+	 */
+	public void reportIfDue(long intervalMillis, ComponentLog logger) {
+		if (intervalMillis <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long last = lastReport.get();
+		if (now - last < intervalMillis || !lastReport.compareAndSet(last, now)) {
+			return;
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+			LatencyHistogram.Snapshot snapshot = entry.getValue().snapshot(true);
+			if (snapshot.getCount() > 0) {
+				logger.info("Stage {} over the last {} s : count={} p50={} ms p95={} ms p99={} ms max={} ms",
+						new Object[] { entry.getKey(), TimeUnit.MILLISECONDS.toSeconds(now - last), snapshot.getCount(),
+								toMillis(snapshot.getPercentileMicros(50)), toMillis(snapshot.getPercentileMicros(95)),
+								toMillis(snapshot.getPercentileMicros(99)), toMillis(snapshot.getMaxMicros()) });
+			}
+		}
+	}
+
+	public void reset() {
+		histograms.clear();
+		lastReport.set(System.currentTimeMillis());
+	}
+
+	private static String toMillis(long micros) {
+		return String.format("%.1f", micros / 1000.0);
+	}
+
+	/**
+	 * Durations of the stages of one FlowFile. Not thread safe.
+	 */
+	public class Timings {
+		private final Map<String, Long> nanos = new LinkedHashMap<>();
+
+		/**
+		 * Adds a duration to the stage, a stage may be timed several times, e.g.
+		 * once per page.
+		 */
+		public void add(String stage, long durationNanos) {
+			nanos.merge(stage, durationNanos, Long::sum);
+		}
+
+		/**
+		 * Adds the durations of other timings, e.g. those of a page recognized
+		 * by another thread.
+		 */
+		public void addAll(Timings other) {
+			for (Map.Entry<String, Long> entry : other.nanos.entrySet()) {
+				add(entry.getKey(), entry.getValue());
+			}
+		}
+
+		/**
+		 * Adds the time elapsed since startNanos to the stage.
+		 *
+		 * @return the current {@link System#nanoTime()}, start of the next stage
+		 */
+		public long since(String stage, long startNanos) {
+			long now = System.nanoTime();
+			add(stage, now - startNanos);
+			return now;
+		}
+
+		/**
+		 * @return one "&lt;prefix&gt;.&lt;stage&gt;.time" attribute per stage, in
+		 *         milliseconds.
+		 */
+		public Map<String, String> toAttributes(String prefix) {
+			Map<String, String> attributes = new HashMap<>();
+			for (Map.Entry<String, Long> entry : nanos.entrySet()) {
+				attributes.put(prefix + "." + entry.getKey() + ".time",
+						String.valueOf(TimeUnit.NANOSECONDS.toMillis(entry.getValue())));
+			}
+			return attributes;
+		}
+
+		/**
+		 * Adds the durations to the histograms and to the counters of the session.
+		 */
+		public void record(ProcessSession session) {
+			for (Map.Entry<String, Long> entry : nanos.entrySet()) {
+				getHistogram(entry.getKey()).record(entry.getValue());
+				session.adjustCounter(entry.getKey() + " time (ms)", TimeUnit.NANOSECONDS.toMillis(entry.getValue()),
+						false);
+			}
+		}
+	}
+}
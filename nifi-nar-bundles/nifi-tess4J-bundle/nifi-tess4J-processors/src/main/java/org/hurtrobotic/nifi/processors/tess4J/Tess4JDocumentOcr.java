@@ -0,0 +1,301 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.nifi.annotation.behavior.EventDriven;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+
+@Tags({ "tesseractOcr", "ocr", "tess4J", "pdf", "tiff", "parallel" })
+@EventDriven
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@CapabilityDescription("Perform Tesseract OCR on a whole PDF or multi-page TIFF flowfile. "
+		+ "Pages are rendered in-process and recognized in parallel, the text is written in page order "
+		+ "to a single flowfile, pages being separated by a form feed.")
+@WritesAttributes({
+		@WritesAttribute(attribute = "file.source.ocr.filename", description = "The filename of the source FlowFile."),
+		@WritesAttribute(attribute = "file.source.ocr.uuid", description = "The UUID of the source FlowFile."),
+		@WritesAttribute(attribute = "mime.extension", description = "File extension of produced ocr FlowFile."),
+		@WritesAttribute(attribute = "mime.type", description = "Mimetype of produced ocr FlowFile."),
+		@WritesAttribute(attribute = "output.ocr.language", description = "The language used by Tesseract OCR"),
+		@WritesAttribute(attribute = "ocr.page.count", description = "Number of pages recognized"),
+		@WritesAttribute(attribute = "ocr.page.time.mean", description = "Mean OCR time of a page in milliseconds"),
+		@WritesAttribute(attribute = "ocr.page.time.p50", description = "Median OCR time of a page in milliseconds"),
+		@WritesAttribute(attribute = "ocr.page.time.p99", description = "99th percentile of the OCR time of a page in milliseconds"),
+		@WritesAttribute(attribute = "ocr.page.time.max", description = "Longest OCR time of a page in milliseconds"),
+		@WritesAttribute(attribute = "ocr.document.time", description = "Time spent on the whole document in milliseconds") })
+
+public class Tess4JDocumentOcr extends AbstractTesseractOcr {
+	private static final String SOURCE_FILENAME = "file.source.ocr.filename";
+	private static final String SOURCE_UUID = "file.source.ocr.uuid";
+	private static final String MIME_EXTENSION = "mime.extension";
+	private static final String OUTPUT_LANGUAGE = "output.ocr.language";
+	private static final String PAGE_COUNT = "ocr.page.count";
+	private static final String PAGE_TIME_MEAN = "ocr.page.time.mean";
+	private static final String PAGE_TIME_P50 = "ocr.page.time.p50";
+	private static final String PAGE_TIME_P99 = "ocr.page.time.p99";
+	private static final String PAGE_TIME_MAX = "ocr.page.time.max";
+	private static final String DOCUMENT_TIME = "ocr.document.time";
+	private static final byte[] PAGE_SEPARATOR = new byte[] { '\f' };
+
+	private List<PropertyDescriptor> descriptors;
+	private Set<Relationship> relationships;
+	private volatile TesseractEnginePool enginePool;
+	private volatile ExecutorService executor;
+	private volatile int workerCount;
+	/**
+	 * Encoders of the text output, one per concurrent task.
+	 */
+	private final Queue<TextEncoder> textEncoders = new ConcurrentLinkedQueue<>();
+
+	public static final Relationship REL_ORI = new Relationship.Builder().name("original")
+			.description("Original FlowFile processed").build();
+
+	public static final Relationship REL_OCR = new Relationship.Builder().name("ocr")
+			.description("Ocr Flowfile result").build();
+
+	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
+			.description("Flowfiles that could not be processed").build();
+
+	protected void init(final ProcessorInitializationContext context) {
+		super.init(context);
+		Set<Relationship> relationships = new HashSet<Relationship>();
+		List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+		relationships.add(REL_ORI);
+		relationships.add(REL_OCR);
+		relationships.add(REL_FAILURE);
+		this.relationships = Collections.unmodifiableSet(relationships);
+
+		descriptors.add(TESSERACT_INSTALL_DIR);
+		descriptors.add(TESSERACT_ENGINE_MODE);
+		descriptors.add(TESSERACT_PAGE_SEG_MODE);
+		descriptors.add(DEFAULT_LANGUAGE);
+		descriptors.add(RENDER_DPI);
+		descriptors.add(WORKER_THREADS);
+		descriptors.add(TESSERACT_ENGINE_POOL_IDLE_TIME);
+		descriptors.add(WARMUP_MODE);
+		descriptors.add(WARMUP_LANGUAGES);
+		this.descriptors = Collections.unmodifiableList(descriptors);
+	}
+
+	@OnScheduled
+	public void onScheduled(final ProcessContext context) {
+		workerCount = context.getProperty(WORKER_THREADS).asInteger();
+		final long maxIdleMillis = context.getProperty(TESSERACT_ENGINE_POOL_IDLE_TIME).asTimePeriod(TimeUnit.MILLISECONDS);
+		enginePool = new TesseractEnginePool(workerCount, maxIdleMillis);
+		executor = createWorkerPool(workerCount);
+		getLogger().info("OCR worker pool created with {} threads.", new Object[] { workerCount });
+		warmUp(context, enginePool, executor);
+	}
+
+	@OnStopped
+	public void onStopped() {
+		cancelWarmUp();
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		if (enginePool != null) {
+			getLogger().info("Closing {}", new Object[] { enginePool });
+			enginePool.close();
+			enginePool = null;
+		}
+		textEncoders.clear();
+	}
+
+	public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+		reportWarmUp(session);
+		FlowFile originalFlowFile = session.get();
+		if (originalFlowFile == null) {
+			return;
+		}
+		enginePool.evictIdle();
+		final long start = System.nanoTime();
+		final String originalFileName = originalFlowFile.getAttribute(CoreAttributes.FILENAME.key());
+		final String originalUUID = originalFlowFile.getAttribute(CoreAttributes.UUID.key());
+		final String language = getPropertyValue(context, DEFAULT_LANGUAGE, originalFlowFile);
+		final TesseractEnginePool.Key engineKey = new TesseractEnginePool.Key(language,
+				getPropertyValue(context, TESSERACT_INSTALL_DIR, originalFlowFile),
+				Integer.parseInt(getPropertyValue(context, TESSERACT_ENGINE_MODE, originalFlowFile)),
+				Integer.parseInt(getPropertyValue(context, TESSERACT_PAGE_SEG_MODE, originalFlowFile)));
+		final float dpi = context.getProperty(RENDER_DPI).asInteger();
+		final List<Long> pageNanos = new ArrayList<>();
+
+		FlowFile outFileFlow = session.create(originalFlowFile);
+		try {
+			outFileFlow = session.write(outFileFlow, new OutputStreamCallback() {
+				@Override
+				public void process(OutputStream out) throws IOException {
+					session.read(originalFlowFile, new InputStreamCallback() {
+						@Override
+						public void process(InputStream rawIn) throws IOException {
+							System.setProperty("jna.encoding", "UTF8");
+							final TextEncoder polled = textEncoders.poll();
+							final TextEncoder encoder = polled == null ? new TextEncoder() : polled;
+							try (final PageSource source = PageSource.open(new BufferedInputStream(rawIn), dpi)) {
+								new OrderedPageExecutor(executor, workerCount).execute(source,
+										new OrderedPageExecutor.PageTask<PageText>() {
+											@Override
+											public PageText process(int pageIndex, BufferedImage image) throws Exception {
+												return recognize(engineKey, image);
+											}
+										}, new OrderedPageExecutor.PageConsumer<PageText>() {
+											@Override
+											public void accept(int pageIndex, PageText page) throws IOException {
+												if (pageIndex > 0) {
+													out.write(PAGE_SEPARATOR);
+												}
+												encoder.write(page.text, out);
+												pageNanos.add(page.nanos);
+											}
+										});
+							} catch (InterruptedException e) {
+								Thread.currentThread().interrupt();
+								throw new IOException("Interrupted while waiting for OCR workers", e);
+							} catch (ExecutionException e) {
+								throw new IOException("OCR of a page failed", e.getCause());
+							} finally {
+								textEncoders.offer(encoder);
+							}
+						}
+					});
+				}
+			});
+
+			Map<String, String> outFileAttributes = new HashMap<>();
+			String[] oriFileInfos = getFileInfos(originalFileName);
+			outFileAttributes.put(CoreAttributes.FILENAME.key(),
+					(oriFileInfos != null ? oriFileInfos[0] : originalUUID) + ".txt");
+			outFileAttributes.put(CoreAttributes.MIME_TYPE.key(), "text/plain");
+			outFileAttributes.put(MIME_EXTENSION, ".txt");
+			outFileAttributes.put(OUTPUT_LANGUAGE, language);
+			outFileAttributes.put(SOURCE_UUID, originalUUID);
+			outFileAttributes.put(SOURCE_FILENAME, originalFileName);
+			outFileAttributes.putAll(timingAttributes(pageNanos));
+			outFileAttributes.put(DOCUMENT_TIME,
+					String.valueOf(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+			outFileFlow = session.putAllAttributes(outFileFlow, outFileAttributes);
+			session.transfer(outFileFlow, REL_OCR);
+			session.transfer(originalFlowFile, REL_ORI);
+			getLogger().debug("OCR of {} pages of {} done in {} ms.",
+					new Object[] { pageNanos.size(), originalFlowFile, outFileAttributes.get(DOCUMENT_TIME) });
+		} catch (Exception e) {
+			getLogger().error("Error during processing OCR {}", new Object[] { originalFlowFile, e });
+			session.remove(outFileFlow);
+			session.transfer(originalFlowFile, REL_FAILURE);
+		}
+	}
+
+	private PageText recognize(TesseractEnginePool.Key engineKey, BufferedImage image) throws Exception {
+		final long start = System.nanoTime();
+		TesseractEngine engine = enginePool.borrow(engineKey);
+		try {
+			String text = engine.recognize(image, null);
+			return new PageText(text, System.nanoTime() - start);
+		} catch (Exception e) {
+			enginePool.invalidate(engine);
+			engine = null;
+			throw e;
+		} finally {
+			if (engine != null) {
+				enginePool.release(engine);
+			}
+		}
+	}
+
+	private static Map<String, String> timingAttributes(List<Long> pageNanos) {
+		Map<String, String> attributes = new HashMap<>();
+		attributes.put(PAGE_COUNT, String.valueOf(pageNanos.size()));
+		if (pageNanos.isEmpty()) {
+			return attributes;
+		}
+		long[] millis = new long[pageNanos.size()];
+		long total = 0;
+		for (int i = 0; i < millis.length; i++) {
+			millis[i] = TimeUnit.NANOSECONDS.toMillis(pageNanos.get(i));
+			total += millis[i];
+		}
+		Arrays.sort(millis);
+		attributes.put(PAGE_TIME_MEAN, String.valueOf(total / millis.length));
+		attributes.put(PAGE_TIME_P50, String.valueOf(percentile(millis, 50)));
+		attributes.put(PAGE_TIME_P99, String.valueOf(percentile(millis, 99)));
+		attributes.put(PAGE_TIME_MAX, String.valueOf(millis[millis.length - 1]));
+		return attributes;
+	}
+
+	/**
+	 * Nearest-rank percentile of sorted values.
+	 */
+	private static long percentile(long[] sorted, int percentile) {
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(0, rank - 1)];
+	}
+
+	@Override
+	public Set<Relationship> getRelationships() {
+		return this.relationships;
+	}
+
+	@Override
+	public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+		return descriptors;
+	}
+
+	private static class PageText {
+		private final String text;
+		private final long nanos;
+
+		private PageText(String text, long nanos) {
+			this.text = text;
+			this.nanos = nanos;
+		}
+	}
+}
@@ -16,9 +16,13 @@
  */
 package org.hurtrobotic.nifi.processors.tess4J;
 
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -26,22 +30,31 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import javax.imageio.ImageIO;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.nifi.annotation.behavior.EventDriven;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.ProcessContext;
@@ -51,33 +64,302 @@ import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.pdfbox.text.PDFTextStripper;
+
+import com.cybozu.labs.langdetect.LangDetectException;
+
+import net.arnx.jsonic.JSON;
+import net.sourceforge.tess4j.TesseractException;
 
 import com.j256.simplemagic.ContentInfo;
 import com.j256.simplemagic.ContentInfoUtil;
 
-import net.sourceforge.tess4j.ITesseract;
-import net.sourceforge.tess4j.Tesseract;
-
 @Tags({ "tesseractOcr", "ocr", "tess4J" })
 @EventDriven
 @InputRequirement(InputRequirement.Requirement.INPUT_ALLOWED)
-@CapabilityDescription("Perform Tesseract OCR on Tiff flowfile. ")
+@CapabilityDescription("Perform Tesseract OCR on each frame of a Tiff flowfile, frames being recognized in parallel, "
+		+ "or on each page of a PDF flowfile rendered in memory. "
+		+ "The result is a searchable PDF, plain text, hOCR, ALTO or word JSON, written page by page to the output "
+		+ "FlowFile, with the mean and lowest confidence of the recognized words.")
 @WritesAttributes({
 		@WritesAttribute(attribute = "file.source.ocr.filename", description = "The filename of the source FlowFile."),
 		@WritesAttribute(attribute = "file.source.ocr.uuid", description = "The UUID of the source FlowFile."),
-		@WritesAttribute(attribute = "mime.extension", description = "File extension of produced ocr FlowFile."),
+		@WritesAttribute(attribute = "mime.extension", description = "File extension of produced ocr FlowFile : "
+				+ ".pdf, .txt, .hocr, .xml, or .json for the WORDS format and when OCR zones are defined."),
 		@WritesAttribute(attribute = "mime.type", description = "Mimetype of produced ocr FlowFile."),
 		@WritesAttribute(attribute = "file.source.ocr.uuid", description = "The UUID of the source FlowFile."),
-		@WritesAttribute(attribute = "output.ocr.language", description = "The language used by Tesseract OCR")})
+		@WritesAttribute(attribute = "output.ocr.language", description = "The language used by Tesseract OCR, "
+				+ "or the combination of languages like fra+eng"),
+		@WritesAttribute(attribute = "ocr.page.count", description = "Number of pages recognized, pdf input mode, "
+				+ "multi-page images or document output formats. Pages are separated by a form feed in the text."),
+		@WritesAttribute(attribute = "ocr.page.text.layer.count", description = "Number of pages whose text layer "
+				+ "was taken without OCR, pdf input mode only."),
+		@WritesAttribute(attribute = "ocr.page.recognized.count", description = "Number of pages recognized by "
+				+ "Tesseract, pdf input mode only."),
+		@WritesAttribute(attribute = "ocr.cache.hit", description = "true when the text of every recognized page "
+				+ "was taken from the OCR result cache, without running Tesseract."),
+		@WritesAttribute(attribute = "ocr.cache.hit.count", description = "Number of pages whose text was taken "
+				+ "from the OCR result cache."),
+		@WritesAttribute(attribute = "ocr.<stage>.time", description = "Milliseconds spent in each stage : read "
+				+ "(PDF parsing), decode (image decoding or page rendering), preprocess, language, text.layer, engine (borrowing "
+				+ "and initializing a Tesseract engine), recognize and write."),
+		@WritesAttribute(attribute = "ocr.preprocess.input.size", description = "Size in bytes of the raster of the "
+				+ "pages before preprocessing, when preprocessing is enabled."),
+		@WritesAttribute(attribute = "ocr.preprocess.output.size", description = "Size in bytes of the raster of the "
+				+ "preprocessed pages given to Tesseract, 1 bit per pixel once binarized."),
+		@WritesAttribute(attribute = "ocr.word.count", description = "Number of words recognized by Tesseract. "
+				+ "Not written when no word was recognized, pages taken from the text layer or the OCR result cache "
+				+ "and OCR zones are not counted."),
+		@WritesAttribute(attribute = "ocr.confidence.mean", description = "Mean confidence, from 0 to 100, of the "
+				+ "words recognized by Tesseract."),
+		@WritesAttribute(attribute = "ocr.confidence.min", description = "Lowest confidence, from 0 to 100, of the "
+				+ "words recognized by Tesseract."),
+		@WritesAttribute(attribute = "ocr.page.retry.count", description = "Number of pages recognized a second "
+				+ "time, at the retry resolution, because they exceeded their time budget."),
+		@WritesAttribute(attribute = "ocr.timeout.budget", description = "On FlowFiles routed to timeout, the time "
+				+ "budget in milliseconds that the retry of a page exceeded as well."),
+		@WritesAttribute(attribute = "ocr.page.heap.peak", description = "Largest heap size in bytes of the images "
+				+ "of a page while it is recognized : decoded or rendered page, preprocessed page and retry."),
+		@WritesAttribute(attribute = "ocr.page.native.peak", description = "Largest off heap size in bytes of the "
+				+ "copy of a page given to Tesseract."),
+		@WritesAttribute(attribute = "ocr.zone.count", description = "Number of zones recognized, when OCR zones "
+				+ "are defined."),
+		@WritesAttribute(attribute = "ocr.zone.<name>", description = "Text of each zone, when OCR zones are "
+				+ "defined and zone attributes are enabled.")})
 
 public class Tess4JOcr extends AbstractTesseractOcr {
 	private static final String SOURCE_FILENAME = "file.source.ocr.filename";
 	private static final String SOURCE_UUID = "file.source.ocr.uuid";
 	private static final String MIME_EXTENSION = "mime.extension";
 	private static final String OUTPUT_LANGUAGE = "output.ocr.language";
+	private static final String COUNTER_POOL_HITS = "Tesseract engine pool hits";
+	private static final String COUNTER_POOL_MISSES = "Tesseract engine pool misses";
+	private static final String COUNTER_POOL_EVICTIONS = "Tesseract engine pool evictions";
+	private static final String OCR_PAGE_COUNT = "ocr.page.count";
+	private static final String OCR_TEXT_LAYER_PAGE_COUNT = "ocr.page.text.layer.count";
+	private static final String OCR_RECOGNIZED_PAGE_COUNT = "ocr.page.recognized.count";
+	private static final String OCR_CACHE_HIT = "ocr.cache.hit";
+	private static final String OCR_CACHE_HIT_COUNT = "ocr.cache.hit.count";
+	private static final String OCR_PREPROCESS_INPUT_SIZE = "ocr.preprocess.input.size";
+	private static final String OCR_PREPROCESS_OUTPUT_SIZE = "ocr.preprocess.output.size";
+	private static final String OCR_ZONE_COUNT = "ocr.zone.count";
+	private static final String OCR_RETRY_COUNT = "ocr.page.retry.count";
+	private static final String OCR_TIMEOUT_BUDGET = "ocr.timeout.budget";
+	private static final String OCR_PAGE_HEAP_PEAK = "ocr.page.heap.peak";
+	private static final String OCR_PAGE_NATIVE_PEAK = "ocr.page.native.peak";
+	private static final String OCR_ZONE_PREFIX = "ocr.zone.";
+	private static final String COUNTER_CACHE_HITS = "OCR result cache hits";
+	private static final String COUNTER_CACHE_MISSES = "OCR result cache misses";
+	private static final String COUNTER_PAGE_TIMEOUTS = "OCR page timeouts";
+	private static final String COUNTER_CIRCUIT_BREAKER_TRIPS = "OCR circuit breaker trips";
+	private static final String STAGE_READ = "read";
+	private static final String STAGE_DECODE = "decode";
+	private static final String STAGE_PREPROCESS = "preprocess";
+	private static final String STAGE_LANGUAGE = "language";
+	private static final String STAGE_TEXT_LAYER = "text.layer";
+	private static final String STAGE_ENGINE = "engine";
+	private static final String STAGE_RECOGNIZE = "recognize";
+	private static final String STAGE_WRITE = "write";
+	private static final float LANGUAGE_SAMPLE_DPI = 150;
+	private static final int LANGUAGE_SAMPLE_MAX_WIDTH = 1280;
+	private static final String INPUT_MODE_IMAGE = "image";
+	private static final String INPUT_MODE_PDF = "pdf";
+	private static final String ZONE_UNITS_PIXELS = "pixels";
+	private static final String ZONE_UNITS_RELATIVE = "relative";
+	private static final byte[] PAGE_SEPARATOR = new byte[] { '\f' };
+	private static final float UNKNOWN_DPI = 300;
+	private static final int CIRCUIT_BREAKER_WINDOW = 20;
 	private List<PropertyDescriptor> descriptors;
 	private Set<Relationship> relationships;
+	private volatile TesseractEnginePool enginePool;
+	private volatile ExecutorService executor;
+	private volatile int workerCount;
+	/**
+	 * Gray images PDF pages are rendered to, one per concurrent task, reused
+	 * from page to page and from FlowFile to FlowFile.
+	 */
+	private final Queue<BufferedImage> pageImages = new ConcurrentLinkedQueue<>();
+	/**
+	 * Encoders of the text output, one per concurrent task.
+	 */
+	private final Queue<TextEncoder> textEncoders = new ConcurrentLinkedQueue<>();
+	private volatile OcrResultCache ocrCache;
+	private volatile PagePreprocessor preprocessor;
+	private volatile long pageTimeoutMillis;
+	private volatile long pageTimeoutMillisPerMegapixel;
+	private volatile float pageRetryDpi;
+	private volatile int pageRetrySegMode;
+	private volatile CircuitBreaker circuitBreaker;
+	private volatile float minMeanConfidence;
+
+	public static final PropertyDescriptor OCR_INPUT_MODE = new PropertyDescriptor.Builder()
+			.name("ocr.input.mode").displayName("Input mode")
+			.description("image : the FlowFile is an image decoded with ImageIO, every frame of a multi-page image "
+					+ "like a TIFF is recognized in order, the text of the frames separated by a form feed in TXT. "
+					+ "pdf : the FlowFile is a PDF document, each page is rendered in memory and recognized, "
+					+ "without converting the document to an image format first.")
+			.allowableValues(INPUT_MODE_IMAGE, INPUT_MODE_PDF).defaultValue(INPUT_MODE_IMAGE)
+			.required(true).build();
+
+	public static final PropertyDescriptor TEXT_LAYER_MIN_CHARACTERS = new PropertyDescriptor.Builder()
+			.name("ocr.text.layer.min.characters").displayName("Text layer minimum characters")
+			.description("pdf input mode and TXT output format only. A page whose text layer contains at least this "
+					+ "number of non blank characters is not rendered nor recognized, its text layer is taken instead. "
+					+ "0 recognizes every page with Tesseract.")
+			.addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).defaultValue("0")
+			.required(true).build();
+
+
+	public static final PropertyDescriptor OCR_PDF_FONT = new PropertyDescriptor.Builder()
+			.name("ocr.pdf.font.file").displayName("Searchable PDF font file")
+			.description("PDFDOC output format only. TrueType font of the invisible text layer, it must cover the "
+					+ "scripts of the recognized languages. When empty, Helvetica is used and the characters out of "
+					+ "its Latin character set are left out of the text layer.")
+			.addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+			.required(false).build();
+
+	public static final PropertyDescriptor OCR_CACHE_MAX_ENTRIES = new PropertyDescriptor.Builder()
+			.name("ocr.cache.max.entries").displayName("OCR result cache size")
+			.description("Maximum number of OCR results kept in memory, keyed by a digest of the image pixels, "
+					+ "the language, the engine mode and the page segmentation mode. An image already recognized "
+					+ "is not sent to Tesseract again. 0 disables the local cache.")
+			.addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).defaultValue("1000")
+			.required(true).build();
 
+	public static final PropertyDescriptor OCR_CACHE_TTL = new PropertyDescriptor.Builder()
+			.name("ocr.cache.ttl").displayName("OCR result cache expiration")
+			.description("Time after which an OCR result is removed from the local cache.")
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).defaultValue("1 hour")
+			.required(true).build();
+
+	public static final PropertyDescriptor OCR_CACHE_DISTRIBUTED_CLIENT = new PropertyDescriptor.Builder()
+			.name("ocr.cache.distributed.client").displayName("Distributed OCR result cache")
+			.description("Optional Distributed Map Cache Client sharing OCR results between nodes and restarts. "
+					+ "It is looked up when the local cache misses.")
+			.identifiesControllerService(DistributedMapCacheClient.class)
+			.required(false).build();
+
+	public static final PropertyDescriptor PREPROCESS_COLOR_MODE = new PropertyDescriptor.Builder()
+			.name("ocr.preprocess.color.mode").displayName("Preprocessing color mode")
+			.description("original : pages are given to Tesseract in their colors, unless another preprocessing step "
+					+ "is enabled. gray : pages are converted to gray levels. otsu : pages are binarized with a global "
+					+ "threshold, fit for evenly lit scans. adaptive : pages are binarized with a threshold local to "
+					+ "each pixel, fit for shadows and uneven backgrounds.")
+			.allowableValues(PagePreprocessor.COLOR_ORIGINAL, PagePreprocessor.COLOR_GRAY, PagePreprocessor.COLOR_OTSU,
+					PagePreprocessor.COLOR_ADAPTIVE)
+			.defaultValue(PagePreprocessor.COLOR_ORIGINAL).required(true).build();
+
+	public static final PropertyDescriptor PREPROCESS_TARGET_DPI = new PropertyDescriptor.Builder()
+			.name("ocr.preprocess.target.dpi").displayName("Preprocessing target DPI")
+			.description("Pages with a higher resolution are downscaled to this resolution before OCR, 0 disables "
+					+ "the downscaling. The resolution of images is read from their metadata, images without "
+					+ "resolution are not downscaled.")
+			.addValidator(StandardValidators.createLongValidator(0, 600, true)).defaultValue("0")
+			.required(true).build();
+
+	public static final PropertyDescriptor PREPROCESS_DESKEW = new PropertyDescriptor.Builder()
+			.name("ocr.preprocess.deskew").displayName("Deskew pages")
+			.description("Rotates the pages whose text lines are skewed by up to 5 degrees.")
+			.allowableValues("true", "false").defaultValue("false")
+			.required(true).build();
+
+	public static final PropertyDescriptor PREPROCESS_CROP_BORDERS = new PropertyDescriptor.Builder()
+			.name("ocr.preprocess.crop.borders").displayName("Crop page borders")
+			.description("Crops the blank margins and the dark borders left by scanners around the pages.")
+			.allowableValues("true", "false").defaultValue("false")
+			.required(true).build();
+
+	private static final Validator ZONES_VALIDATOR = (subject, input, context) -> {
+		ValidationResult.Builder result = new ValidationResult.Builder().subject(subject).input(input);
+		if (context.isExpressionLanguageSupported(subject) && context.isExpressionLanguagePresent(input)) {
+			return result.valid(true).explanation("Expression Language Present").build();
+		}
+		try {
+			OcrZone.parse(input);
+			return result.valid(true).build();
+		} catch (IllegalArgumentException e) {
+			return result.valid(false).explanation(e.getMessage()).build();
+		}
+	};
+
+	public static final PropertyDescriptor OCR_ZONES = new PropertyDescriptor.Builder()
+			.name("ocr.zones").displayName("OCR zones")
+			.description("JSON list of the named rectangles to recognize, e.g. [{\"name\": \"invoice.number\", "
+					+ "\"page\": 1, \"x\": 120, \"y\": 80, \"width\": 400, \"height\": 60}], the page is 1 based "
+					+ "and defaults to 1. Only the zones are recognized, the output is a JSON object holding the text "
+					+ "of each zone. The zones of a page share one Tesseract image. When preprocessing is enabled, "
+					+ "each zone is preprocessed on its own. Leave empty to recognize the whole document.")
+			.addValidator(ZONES_VALIDATOR).expressionLanguageSupported(true)
+			.required(false).build();
+
+	public static final PropertyDescriptor OCR_ZONE_UNITS = new PropertyDescriptor.Builder()
+			.name("ocr.zones.units").displayName("OCR zone units")
+			.description("pixels : zone coordinates are pixels of the image, or of the page rendered at the render "
+					+ "DPI. relative : zone coordinates are fractions, from 0 to 1, of the page width and height, "
+					+ "whatever the resolution.")
+			.allowableValues(ZONE_UNITS_PIXELS, ZONE_UNITS_RELATIVE).defaultValue(ZONE_UNITS_PIXELS)
+			.required(true).build();
+
+	public static final PropertyDescriptor OCR_ZONE_ATTRIBUTES = new PropertyDescriptor.Builder()
+			.name("ocr.zones.attributes").displayName("Write OCR zone attributes")
+			.description("Writes the text of each zone to an ocr.zone.<name> attribute as well.")
+			.allowableValues("true", "false").defaultValue("false")
+			.required(true).build();
+
+	public static final PropertyDescriptor OCR_PAGE_TIMEOUT = new PropertyDescriptor.Builder()
+			.name("ocr.page.timeout").displayName("Page timeout")
+			.description("Base time budget of the recognition of a page, to which the page timeout per megapixel "
+					+ "is added. Tesseract is cancelled between two words once the budget is exceeded, the page is "
+					+ "then recognized once more at the retry resolution, and the FlowFile is routed to timeout if "
+					+ "the retry exceeds the budget as well. 0 sec disables the timeout.")
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).defaultValue("30 sec")
+			.required(true).build();
+
+	public static final PropertyDescriptor OCR_PAGE_TIMEOUT_PER_MEGAPIXEL = new PropertyDescriptor.Builder()
+			.name("ocr.page.timeout.per.megapixel").displayName("Page timeout per megapixel")
+			.description("Time budget added to the page timeout for each million pixels of the recognized page, "
+					+ "so that large pages are given more time.")
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).defaultValue("5 sec")
+			.required(true).build();
+
+	public static final PropertyDescriptor OCR_PAGE_RETRY_DPI = new PropertyDescriptor.Builder()
+			.name("ocr.page.retry.dpi").displayName("Page retry DPI")
+			.description("Resolution a page exceeding its time budget is downscaled to before it is recognized "
+					+ "again. Pages of unknown resolution are taken as " + (int) UNKNOWN_DPI + " DPI. 0 disables "
+					+ "the retry.")
+			.addValidator(StandardValidators.createLongValidator(0, 600, true)).defaultValue("150")
+			.required(true).build();
+
+	public static final PropertyDescriptor OCR_PAGE_RETRY_SEG_MODE = new PropertyDescriptor.Builder()
+			.name("ocr.page.retry.seg.mode").displayName("Page retry segmentation mode")
+			.description("Page segmentation mode of the retry, see Page segmentation mode. The default, a single "
+					+ "uniform block of text, skips most of the layout analysis.")
+			.addValidator(StandardValidators.createLongValidator(0, 13, true)).defaultValue("6")
+			.required(true).build();
+
+	public static final PropertyDescriptor CIRCUIT_BREAKER_FAILURE_RATE = new PropertyDescriptor.Builder()
+			.name("ocr.circuit.breaker.failure.rate").displayName("Circuit breaker failure rate")
+			.description("Percentage of the last " + CIRCUIT_BREAKER_WINDOW + " recognized pages exceeding their "
+					+ "time budget at the first attempt above which the processor stops taking FlowFiles for the "
+					+ "circuit breaker open time. 0 disables the circuit breaker.")
+			.addValidator(StandardValidators.createLongValidator(0, 100, true)).defaultValue("50")
+			.required(true).build();
+
+	public static final PropertyDescriptor CIRCUIT_BREAKER_OPEN_TIME = new PropertyDescriptor.Builder()
+			.name("ocr.circuit.breaker.open.time").displayName("Circuit breaker open time")
+			.description("Time during which no FlowFile is taken once the circuit breaker has opened. The first "
+					+ "FlowFile afterwards is a trial, the breaker opens again if its first page times out.")
+			.addValidator(StandardValidators.TIME_PERIOD_VALIDATOR).defaultValue("30 sec")
+			.required(true).build();
+
+	public static final PropertyDescriptor OCR_MIN_MEAN_CONFIDENCE = new PropertyDescriptor.Builder()
+			.name("ocr.confidence.min.mean").displayName("Minimum mean confidence")
+			.description("OCR FlowFiles whose words have a mean confidence, from 0 to 100, below this value are "
+					+ "routed to low_confidence instead of ocr, e.g. to be recognized again at a higher resolution. "
+					+ "FlowFiles without recognized words are not concerned. 0 disables the routing.")
+			.addValidator(StandardValidators.createLongValidator(0, 100, true)).defaultValue("0")
+			.required(true).build();
 
 	public static final Relationship REL_ORI = new Relationship.Builder().name("original")
 			.description("Original FlowFile processed").build();
@@ -88,6 +370,13 @@ public class Tess4JOcr extends AbstractTesseractOcr {
 	public static final Relationship REL_FAILURE = new Relationship.Builder().name("failure")
 			.description("Flowfiles that could not be processed").build();
 
+	public static final Relationship REL_LOW_CONFIDENCE = new Relationship.Builder().name("low_confidence")
+			.description("Ocr Flowfile results whose mean word confidence is below the minimum mean confidence")
+			.build();
+
+	public static final Relationship REL_TIMEOUT = new Relationship.Builder().name("timeout")
+			.description("Flowfiles with a page whose recognition exceeded its time budget, retry included").build();
+
 
 	protected void init(final ProcessorInitializationContext context) {		
 		super.init(context);
@@ -97,179 +386,1289 @@ public class Tess4JOcr extends AbstractTesseractOcr {
 		relationships.add(REL_ORI);
 		relationships.add(REL_OCR);
 		relationships.add(REL_FAILURE);
+		relationships.add(REL_LOW_CONFIDENCE);
+		relationships.add(REL_TIMEOUT);
 		this.relationships = Collections.unmodifiableSet(relationships);
 
 		descriptors.add(FILENAME_LANGUAGE_EXTRACTION_MODE);
 		descriptors.add(FILENAME_LANGUAGE_EXTRACTION_REGEX);
 		descriptors.add(TESSERACT_OUTPUT_FORMAT);
+		descriptors.add(OCR_PDF_FONT);
 		descriptors.add(TESSERACT_INSTALL_DIR);
 		descriptors.add(TESSERACT_ENGINE_MODE);
 		descriptors.add(TESSERACT_PAGE_SEG_MODE);
 		descriptors.add(DEFAULT_LANGUAGE);
+		descriptors.add(LANGUAGE_DETECTION_MAX_LANGUAGES);
+		descriptors.add(LANGUAGE_DETECTION_MIN_PROBABILITY);
+		descriptors.add(OCR_INPUT_MODE);
+		descriptors.add(RENDER_DPI);
+		descriptors.add(TEXT_LAYER_MIN_CHARACTERS);
+		descriptors.add(OCR_ZONES);
+		descriptors.add(OCR_ZONE_UNITS);
+		descriptors.add(OCR_ZONE_ATTRIBUTES);
+		descriptors.add(PREPROCESS_COLOR_MODE);
+		descriptors.add(PREPROCESS_TARGET_DPI);
+		descriptors.add(PREPROCESS_DESKEW);
+		descriptors.add(PREPROCESS_CROP_BORDERS);
+		descriptors.add(OCR_MIN_MEAN_CONFIDENCE);
+		descriptors.add(OCR_PAGE_TIMEOUT);
+		descriptors.add(OCR_PAGE_TIMEOUT_PER_MEGAPIXEL);
+		descriptors.add(OCR_PAGE_RETRY_DPI);
+		descriptors.add(OCR_PAGE_RETRY_SEG_MODE);
+		descriptors.add(CIRCUIT_BREAKER_FAILURE_RATE);
+		descriptors.add(CIRCUIT_BREAKER_OPEN_TIME);
+		descriptors.add(OCR_CACHE_MAX_ENTRIES);
+		descriptors.add(OCR_CACHE_TTL);
+		descriptors.add(OCR_CACHE_DISTRIBUTED_CLIENT);
+		descriptors.add(WORKER_THREADS);
+		descriptors.add(TESSERACT_ENGINE_POOL_IDLE_TIME);
+		descriptors.add(WARMUP_MODE);
+		descriptors.add(WARMUP_LANGUAGES);
+		descriptors.add(METRICS_REPORT_INTERVAL);
+		descriptors.add(BATCH_SIZE);
 		this.descriptors = Collections.unmodifiableList(descriptors);
 		getLogger().info("End Init.");
 	}
 
+	@OnScheduled
+	public void onScheduled(final ProcessContext context) {
+		final long maxIdleMillis = context.getProperty(TESSERACT_ENGINE_POOL_IDLE_TIME).asTimePeriod(TimeUnit.MILLISECONDS);
+		workerCount = context.getProperty(WORKER_THREADS).asInteger();
+		// the frames of multi-page images are recognized by the workers, other pages by the tasks
+		enginePool = new TesseractEnginePool(context.getMaxConcurrentTasks() + workerCount, maxIdleMillis);
+		executor = createWorkerPool(workerCount);
+		getLogger().info("Tesseract engine pool created with {} engines per language.",
+				new Object[] { enginePool.getMaxPerKey() });
+		final int cacheMaxEntries = context.getProperty(OCR_CACHE_MAX_ENTRIES).asInteger();
+		final DistributedMapCacheClient distributedCache = context.getProperty(OCR_CACHE_DISTRIBUTED_CLIENT)
+				.asControllerService(DistributedMapCacheClient.class);
+		if (cacheMaxEntries > 0 || distributedCache != null) {
+			ocrCache = new OcrResultCache(cacheMaxEntries,
+					context.getProperty(OCR_CACHE_TTL).asTimePeriod(TimeUnit.MILLISECONDS), distributedCache);
+		}
+		final PagePreprocessor pagePreprocessor = new PagePreprocessor(
+				context.getProperty(PREPROCESS_COLOR_MODE).getValue(),
+				context.getProperty(PREPROCESS_TARGET_DPI).asInteger(),
+				context.getProperty(PREPROCESS_DESKEW).asBoolean(),
+				context.getProperty(PREPROCESS_CROP_BORDERS).asBoolean());
+		preprocessor = pagePreprocessor.isEnabled() ? pagePreprocessor : null;
+		minMeanConfidence = context.getProperty(OCR_MIN_MEAN_CONFIDENCE).asInteger();
+		pageTimeoutMillis = context.getProperty(OCR_PAGE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+		pageTimeoutMillisPerMegapixel = context.getProperty(OCR_PAGE_TIMEOUT_PER_MEGAPIXEL)
+				.asTimePeriod(TimeUnit.MILLISECONDS);
+		pageRetryDpi = context.getProperty(OCR_PAGE_RETRY_DPI).asInteger();
+		pageRetrySegMode = context.getProperty(OCR_PAGE_RETRY_SEG_MODE).asInteger();
+		final int failureRate = context.getProperty(CIRCUIT_BREAKER_FAILURE_RATE).asInteger();
+		if (pageTimeoutMillis > 0 && failureRate > 0) {
+			circuitBreaker = new CircuitBreaker(CIRCUIT_BREAKER_WINDOW, failureRate / 100d,
+					context.getProperty(CIRCUIT_BREAKER_OPEN_TIME).asTimePeriod(TimeUnit.MILLISECONDS));
+		}
+		warmUp(context, enginePool, executor);
+	}
+
+	@OnStopped
+	public void onStopped() {
+		cancelWarmUp();
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		if (enginePool != null) {
+			getLogger().info("Closing {}", new Object[] { enginePool });
+			enginePool.close();
+			enginePool = null;
+		}
+		pageImages.clear();
+		textEncoders.clear();
+		ocrCache = null;
+		preprocessor = null;
+		circuitBreaker = null;
+	}
+
 	public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-		getLogger().info("Start Processing.");
-		FlowFile originalFlowFile = session.get();
-		if (originalFlowFile == null) {
+		getLogger().debug("Start Processing.");
+		reportStageMetrics(context);
+		reportWarmUp(session);
+		final CircuitBreaker breaker = circuitBreaker;
+		if (breaker != null && !breaker.allowRequest()) {
+			context.yield();
+			return;
+		}
+		final int evicted = enginePool.evictIdle();
+		if (evicted > 0) {
+			session.adjustCounter(COUNTER_POOL_EVICTIONS, evicted, false);
+		}
+		final OcrResultCache cache = ocrCache;
+		if (cache != null) {
+			cache.evictExpired();
+		}
+		final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+		if (flowFiles.isEmpty()) {
 			return;
 		}
 		List<FlowFile> outputFlowFileList = new ArrayList<>();
+		List<FlowFile> lowConfidenceFlowFileList = new ArrayList<>();
 		List<FlowFile> invalidFlowFilesList = new ArrayList<>();
 		List<FlowFile> oriFlowFilesList = new ArrayList<>();
+		Map<FlowFile, Long> timeoutBudgets = new HashMap<>();
 
+		for (FlowFile originalFlowFile : flowFiles) {
+			try {
+				processFlowFile(context, session, originalFlowFile, outputFlowFileList, lowConfidenceFlowFileList,
+						oriFlowFilesList, invalidFlowFilesList, timeoutBudgets);
+			} catch (Exception e) {
+				getLogger().error("Error during processing OCR {}", new Object[] { originalFlowFile, e });
+				invalidFlowFilesList.add(originalFlowFile);
+			}
+		}
+
+		session.transfer(oriFlowFilesList, REL_ORI);
+		session.transfer(invalidFlowFilesList, REL_FAILURE);
+		session.transfer(outputFlowFileList, REL_OCR);
+		session.transfer(lowConfidenceFlowFileList, REL_LOW_CONFIDENCE);
+		for (Map.Entry<FlowFile, Long> timeoutBudget : timeoutBudgets.entrySet()) {
+			session.transfer(session.putAttribute(timeoutBudget.getKey(), OCR_TIMEOUT_BUDGET,
+					String.valueOf(timeoutBudget.getValue())), REL_TIMEOUT);
+		}
+		getLogger().debug("File output queue 'ori' have {} files: {}",
+				new Object[] { oriFlowFilesList.size(), outputFlowFileList });		
+		getLogger().debug("File output queue 'files' have {} files: {}",
+				new Object[] { outputFlowFileList.size(), outputFlowFileList });
+		getLogger().debug("File output queue 'failure' have {} files: {}",
+				new Object[] { invalidFlowFilesList.size(), invalidFlowFilesList });
+		getLogger().debug("End Processing.");
+	}
+
+	private void processFlowFile(final ProcessContext context, final ProcessSession session,
+			final FlowFile originalFlowFile, final List<FlowFile> outputFlowFileList,
+			final List<FlowFile> lowConfidenceFlowFileList, final List<FlowFile> oriFlowFilesList,
+			final List<FlowFile> invalidFlowFilesList, final Map<FlowFile, Long> timeoutBudgets) {
 		Map<String, String> attributes = new HashMap<>();
 		Map<String, String> outFileAttributes = new HashMap<>();
+		final boolean pdfInput = INPUT_MODE_PDF.equals(getPropertyValue(context, OCR_INPUT_MODE, originalFlowFile));
+		final float renderDpi = Integer.parseInt(getPropertyValue(context, RENDER_DPI, originalFlowFile));
+		final StageMetrics.Timings timings = stageMetrics.start();
+		final String zoneDefinition = getPropertyValue(context, OCR_ZONES, originalFlowFile);
+		final List<OcrZone> zones = StringUtils.isBlank(zoneDefinition) ? null : OcrZone.parse(zoneDefinition);
+		final String outputFormat = getPropertyValue(context, TESSERACT_OUTPUT_FORMAT, originalFlowFile);
+		// zones are always written as JSON
+		final boolean documentOutput = zones == null && !OUTPUT_FORMAT_TXT.equals(outputFormat);
+		final String fontPath = getPropertyValue(context, OCR_PDF_FONT, originalFlowFile);
+		final File fontFile = StringUtils.isBlank(fontPath) ? null : new File(fontPath);
 
 		session.read(originalFlowFile, new InputStreamCallback() {
 
 			public void process(InputStream rawIn) throws IOException {
 
 
-				try (final InputStream in = new BufferedInputStream(rawIn)) {
-					getLogger().info("Start Image Processing.");
+				long stageStart = System.nanoTime();
+				try (final InputStream in = new BufferedInputStream(rawIn);
+						final PdfPageSource pdfPages = pdfInput ? new PdfPageSource(in, renderDpi) : null;
+						final ImagePageSource imagePages = pdfInput ? null : new ImagePageSource(in)) {
+					getLogger().debug("Start Image Processing.");
 					System.setProperty("jna.encoding", "UTF8");
 					String originalFileName = originalFlowFile.getAttribute(CoreAttributes.FILENAME.key());
 					String originalUUID = originalFlowFile.getAttribute(CoreAttributes.UUID.key());
 					ContentInfo textContent = ContentInfoUtil.findExtensionMatch("TXT");
+					BufferedImage decoded = pdfInput ? null : imagePages.readPage(0);
+					float decodedDpi = pdfInput ? 0 : imagePages.getResolution(0);
+					// zones are only looked for in the first frame
+					final boolean multiFrame = !pdfInput && zones == null && imagePages.getPageCount() > 1;
+					stageStart = timings.since(pdfInput ? STAGE_READ : STAGE_DECODE, stageStart);
+					final PagePreprocessor pagePreprocessor = preprocessor;
+					// zones are preprocessed one at a time, their coordinates are those of the decoded page,
+					// frames are preprocessed by the workers
+					if (decoded != null && pagePreprocessor != null && zones == null && !multiFrame) {
+						PagePreprocessor.Result preprocessed = pagePreprocessor.process(decoded, null, decodedDpi);
+						decoded = preprocessed.getImage();
+						decodedDpi = preprocessed.getResolution();
+						putPreprocessAttributes(outFileAttributes, preprocessed.getInputBytes(),
+								preprocessed.getOutputBytes());
+						stageStart = timings.since(STAGE_PREPROCESS, stageStart);
+					}
+					final BufferedImage imBuff = decoded;
+					final float imageDpi = decodedDpi;
+					final String datapath = getPropertyValue(context, TESSERACT_INSTALL_DIR, originalFlowFile);
+					final int engineMode = Integer.parseInt(getPropertyValue(context, TESSERACT_ENGINE_MODE, originalFlowFile));
+					final int pageSegMode = Integer.parseInt(getPropertyValue(context, TESSERACT_PAGE_SEG_MODE, originalFlowFile));
 
 					/*
 					 * Retrieving Extraction Mode.
 					 */
 					String isoLanguage = null;
-					final String fileNameExtractionMode = context.getProperty(FILENAME_LANGUAGE_EXTRACTION_MODE)
-							.evaluateAttributeExpressions(originalFlowFile).getValue();
+					final String fileNameExtractionMode = getPropertyValue(context, FILENAME_LANGUAGE_EXTRACTION_MODE,
+							originalFlowFile);
 
-					getLogger().info("Processing language.");
-					String defaultLanguage = context.getProperty(DEFAULT_LANGUAGE).evaluateAttributeExpressions(originalFlowFile).getValue();
+					getLogger().debug("Processing language.");
+					String defaultLanguage = getPropertyValue(context, DEFAULT_LANGUAGE, originalFlowFile);
 					if (fileNameExtractionMode.equalsIgnoreCase("none")) {
 						isoLanguage = defaultLanguage;
 					} else if (fileNameExtractionMode.equalsIgnoreCase("regex")) {
-						isoLanguage = extractIsoFromFileName(context, originalFileName);
+						isoLanguage = extractIsoFromFileName(context, originalFlowFile, originalFileName);
 					} else if (fileNameExtractionMode.equalsIgnoreCase("textdetection")) {
 						isoLanguage = detectLanguage(originalFileName);
 					} else if (fileNameExtractionMode.equalsIgnoreCase("regexORtextdetection")) {
-						if ((isoLanguage = extractIsoFromFileName(context, originalFileName)) == null) {
+						if ((isoLanguage = extractIsoFromFileName(context, originalFlowFile, originalFileName)) == null) {
 							isoLanguage = detectLanguage(originalFileName);
 						}
 					} else if (fileNameExtractionMode.equalsIgnoreCase("textdetectionORregex")) {
 						if ((isoLanguage = detectLanguage(originalFileName)) == null) {
-							isoLanguage = extractIsoFromFileName(context, originalFileName);
+							isoLanguage = extractIsoFromFileName(context, originalFlowFile, originalFileName);
 						}
+					} else if (fileNameExtractionMode.equalsIgnoreCase("ocrsample")) {
+						isoLanguage = detectLanguageFromSample(session, pdfPages, imBuff,
+								new TesseractEnginePool.Key(defaultLanguage, datapath, engineMode, pageSegMode));
 					}
-					getLogger().info("End Processing Language, language is {}",
+					stageStart = timings.since(STAGE_LANGUAGE, stageStart);
+					getLogger().debug("End Processing Language, language is {}",
 							new Object[] { ((isoLanguage != null) ? isoLanguage : "NULL") });
 
 					/*
 					 * Process ISO639Part1 to ISO639Part3 mapping
 					 */
-					if ((isoLanguage != null) && (isoLanguage.length() == 2) && (mappingIso639Part3 != null)) {
-						isoLanguage = mappingIso639Part3.getProperty(isoLanguage);
-					}
-					if ((isoLanguage == null) || !allowedLanguages.contains(isoLanguage)) {
-						getLogger().info("Requested Language \"{}\" is not valid iso language. using default processing Language  \"{}\"",
+					String languagePacks = toLanguagePacks(isoLanguage);
+					if (languagePacks == null) {
+						getLogger().debug("Requested Language \"{}\" is not valid iso language. using default processing Language  \"{}\"",
 								new Object[] { isoLanguage, defaultLanguage});
 						isoLanguage = defaultLanguage;
+					} else {
+						isoLanguage = languagePacks;
 					}
 
 					attributes.put(OUTPUT_LANGUAGE, isoLanguage);
 					attributes.put(SOURCE_FILENAME, originalFileName);
 					attributes.put(SOURCE_UUID, originalUUID);
 
-					ITesseract instance = new Tesseract();
-					instance.setLanguage(isoLanguage);
-					instance.setDatapath(context.getProperty(TESSERACT_INSTALL_DIR)
-							.evaluateAttributeExpressions(originalFlowFile).getValue());
-					instance.setPageSegMode(Integer.parseInt(context.getProperty(TESSERACT_PAGE_SEG_MODE)
-							.evaluateAttributeExpressions(originalFlowFile).getValue()));
-					instance.setOcrEngineMode(Integer.parseInt(context.getProperty(TESSERACT_ENGINE_MODE)
-							.evaluateAttributeExpressions(originalFlowFile).getValue()));
+					TesseractEnginePool.Key engineKey = new TesseractEnginePool.Key(isoLanguage, datapath, engineMode,
+							pageSegMode);
 
-					BufferedImage imBuff = ImageIO.read(in);
-					getLogger().info("Start processing OCR.");
-					String txt = instance.doOCR(imBuff);
-					getLogger().info("End processing OCR.");
+					getLogger().debug("Start processing OCR.");
+					final ConfidenceStats confidence = new ConfidenceStats();
+					String txt;
+					if (zones != null) {
+						Map<String, String> zoneTexts = recognizeZones(session, engineKey, pdfPages, imBuff,
+								imagePages == null ? 0 : imagePages.getResolution(0), zones,
+								ZONE_UNITS_RELATIVE.equals(getPropertyValue(context, OCR_ZONE_UNITS, originalFlowFile)),
+								outFileAttributes, timings);
+						if (Boolean.parseBoolean(getPropertyValue(context, OCR_ZONE_ATTRIBUTES, originalFlowFile))) {
+							for (Map.Entry<String, String> zoneText : zoneTexts.entrySet()) {
+								outFileAttributes.put(OCR_ZONE_PREFIX + zoneText.getKey(), zoneText.getValue());
+							}
+						}
+						outFileAttributes.put(OCR_ZONE_COUNT, String.valueOf(zoneTexts.size()));
+						txt = JSON.encode(zoneTexts);
+					} else if (documentOutput || pdfInput || multiFrame) {
+						// recognized page by page while the output is written
+						txt = null;
+					} else {
+						final OcrResultCache cache = ocrCache;
+						String cacheKey = cache == null ? null : OcrResultCache.key(imBuff, null, engineKey);
+						String imageText = cacheKey == null ? null : getCachedText(session, cache, cacheKey);
+						if (imageText == null) {
+							long engineStart = System.nanoTime();
+							TesseractEngine engine = borrowEngine(session, engineKey);
+							try {
+								long recognizeStart = timings.since(STAGE_ENGINE, engineStart);
+								PageRecognition<String> recognition = recognizeWithinBudget(session, engine, imBuff,
+										null, imageDpi, TesseractEngine::recognize);
+								imageText = recognition.getResult();
+								confidence.addAll(engine.getWordConfidences());
+								outFileAttributes.put(OCR_RETRY_COUNT, recognition.isRetried() ? "1" : "0");
+								putMemoryAttributes(outFileAttributes, recognition.getHeapBytes(),
+										recognition.getNativeBytes());
+								timings.since(STAGE_RECOGNIZE, recognizeStart);
+								if (recognition.isRetried()) {
+									// a later attempt may be given more time
+									cacheKey = null;
+								}
+							} catch (Exception e) {
+								if (!(e instanceof OcrTimeoutException)) {
+									enginePool.invalidate(engine);
+									engine = null;
+								}
+								throw e;
+							} finally {
+								if (engine != null) {
+									enginePool.release(engine);
+								}
+							}
+							if (cacheKey != null) {
+								cacheText(cache, cacheKey, imageText);
+							}
+							putCacheAttributes(outFileAttributes, 0, 1);
+						} else {
+							putCacheAttributes(outFileAttributes, 1, 1);
+						}
+						txt = imageText;
+					}
+					getLogger().debug("End processing OCR.");
 
 					FlowFile outFileFlow = session.create(originalFlowFile);
-					/**
-					 * TODO IMPLEMENT PRODUCTION OF PDF DOCUMENT
-					 */
 					try {
-						outFileFlow = session.append(outFileFlow, new OutputStreamCallback() {
+						final String documentLanguage = isoLanguage;
+						final int textLayerMinChars = Integer.parseInt(
+								getPropertyValue(context, TEXT_LAYER_MIN_CHARACTERS, originalFlowFile));
+						outFileFlow = session.write(outFileFlow, new OutputStreamCallback() {
 							@Override
 							public void process(OutputStream out) throws IOException {
-								getLogger().info("Start writing result to outFile.");
-								IOUtils.copy(new ByteArrayInputStream(txt.getBytes("UTF-8")), out);
-								getLogger().info("End writing result to outFile.");
+								getLogger().debug("Start writing {} result to outFile.", new Object[] { outputFormat });
+								TextEncoder encoder = textEncoders.poll();
+								try {
+									if (documentOutput && multiFrame) {
+										try (OcrDocumentWriter writer = createDocumentWriter(outputFormat, out,
+												documentLanguage, fontFile)) {
+											recognizeFrames(session, engineKey, imagePages, imBuff, writer, null, out,
+													confidence, outFileAttributes, timings);
+											long finishStart = System.nanoTime();
+											writer.finish();
+											timings.since(STAGE_WRITE, finishStart);
+										}
+									} else if (documentOutput) {
+										try (OcrDocumentWriter writer = createDocumentWriter(outputFormat, out,
+												documentLanguage, fontFile)) {
+											recognizeDocument(session, engineKey, pdfPages, imBuff, imageDpi, writer,
+													confidence, outFileAttributes, timings);
+											long finishStart = System.nanoTime();
+											writer.finish();
+											timings.since(STAGE_WRITE, finishStart);
+										}
+									} else {
+										if (encoder == null) {
+											encoder = new TextEncoder();
+										}
+										if (txt != null) {
+											long writeStart = System.nanoTime();
+											encoder.write(txt, out);
+											timings.since(STAGE_WRITE, writeStart);
+										} else if (multiFrame) {
+											recognizeFrames(session, engineKey, imagePages, imBuff, null, encoder, out,
+													confidence, outFileAttributes, timings);
+										} else {
+											recognizePdf(session, engineKey, pdfPages, textLayerMinChars,
+													confidence, outFileAttributes, timings, encoder, out);
+										}
+									}
+								} catch (TesseractException e) {
+									throw new ProcessException(e);
+								} catch (InterruptedException e) {
+									Thread.currentThread().interrupt();
+									throw new ProcessException(e);
+								} finally {
+									if (encoder != null) {
+										textEncoders.offer(encoder);
+									}
+								}
+								getLogger().debug("End writing {} result to outFile.", new Object[] { outputFormat });
 							}
 						});
+						String extension;
+						String mimeType;
+						if (zones != null || OUTPUT_FORMAT_WORDS.equals(outputFormat)) {
+							extension = "json";
+							mimeType = "application/json";
+						} else if (OUTPUT_FORMAT_TXT.equals(outputFormat)) {
+							extension = textContent.getFileExtensions()[0];
+							mimeType = textContent.getMimeType();
+						} else if (OUTPUT_FORMAT_HOCR.equals(outputFormat)) {
+							extension = "hocr";
+							mimeType = "text/html";
+						} else if (OUTPUT_FORMAT_ALTO.equals(outputFormat)) {
+							extension = "xml";
+							mimeType = "application/xml";
+						} else {
+							extension = "pdf";
+							mimeType = "application/pdf";
+						}
 						String[] oriFileInfos = getFileInfos(originalFileName);
-						String[] extensions = textContent.getFileExtensions();
-						outFileAttributes.put(CoreAttributes.FILENAME.key(), oriFileInfos[0] + "." + extensions[0]);
-						outFileAttributes.put(CoreAttributes.MIME_TYPE.key(), textContent.getMimeType());
-						outFileAttributes.put(MIME_EXTENSION, "." + extensions[0]);						
+						outFileAttributes.put(CoreAttributes.FILENAME.key(), oriFileInfos[0] + "." + extension);
+						outFileAttributes.put(CoreAttributes.MIME_TYPE.key(), mimeType);
+						outFileAttributes.put(MIME_EXTENSION, "." + extension);						
 						outFileAttributes.put(OUTPUT_LANGUAGE, isoLanguage);						
 						outFileAttributes.put(SOURCE_UUID, originalUUID);
 						outFileAttributes.put(SOURCE_FILENAME, originalFileName);
+						confidence.putAttributes(outFileAttributes, "ocr");
+						outFileAttributes.putAll(timings.toAttributes("ocr"));
+						timings.record(session);
 						outFileFlow = session.putAllAttributes(outFileFlow, outFileAttributes);
-						outputFlowFileList.add(outFileFlow);
+						final float minConfidence = minMeanConfidence;
+						if (minConfidence > 0 && confidence.getWordCount() > 0
+								&& confidence.getMean() < minConfidence) {
+							lowConfidenceFlowFileList.add(outFileFlow);
+						} else {
+							outputFlowFileList.add(outFileFlow);
+						}
 					} catch (Exception e) {
 						getLogger().error("Error during processing text file result of OCR {}",
 								new Object[] { outFileFlow, e });
 						e.printStackTrace();
+						session.remove(outFileFlow);
 						throw e;
 					}
 					oriFlowFilesList.add(originalFlowFile);
 				} catch (Exception e) {
-					getLogger().error("Error during processing OCR {}", new Object[] { originalFlowFile, e });
-					e.printStackTrace();
-					invalidFlowFilesList.add(originalFlowFile);
+					final OcrTimeoutException timeout = findTimeout(e);
+					if (timeout != null) {
+						getLogger().warn("A page of {} exceeded its OCR time budget of {} ms, retry included",
+								new Object[] { originalFlowFile, timeout.getBudgetMillis() });
+						session.adjustCounter(COUNTER_PAGE_TIMEOUTS, 1, false);
+						timeoutBudgets.put(originalFlowFile, timeout.getBudgetMillis());
+					} else {
+						getLogger().error("Error during processing OCR {}", new Object[] { originalFlowFile, e });
+						e.printStackTrace();
+						invalidFlowFilesList.add(originalFlowFile);
+					}
 				} finally {
-					getLogger().info("End Image Processing.");
+					getLogger().debug("End Image Processing.");
 				}
 			}
 		});
+	}
 
-		session.transfer(oriFlowFilesList, REL_ORI);
-		session.transfer(invalidFlowFilesList, REL_FAILURE);
-		session.transfer(outputFlowFileList, REL_OCR);
-		getLogger().info("File output queue 'ori' have {} files: {}",
-				new Object[] { oriFlowFilesList.size(), outputFlowFileList });		
-		getLogger().info("File output queue 'files' have {} files: {}",
-				new Object[] { outputFlowFileList.size(), outputFlowFileList });
-		getLogger().info("File output queue 'failure' have {} files: {}",
-				new Object[] { invalidFlowFilesList.size(), invalidFlowFilesList });
-		getLogger().info("End Processing.");
+	/**
+	 * First pass of the ocrsample language extraction mode : a crop of the
+	 * first page, at a low resolution, is recognized with the default language
+	 * and the language of the text found is detected.
+	 *
+	 * @return the detected language, null if no language could be detected
+	 */
+	private String detectLanguageFromSample(ProcessSession session, PdfPageSource pdfPages, BufferedImage image,
+			TesseractEnginePool.Key sampleKey) throws IOException, TesseractException, InterruptedException {
+		BufferedImage page;
+		if (pdfPages != null) {
+			if (pdfPages.getPageCount() == 0) {
+				return null;
+			}
+			page = pdfPages.readPage(0, LANGUAGE_SAMPLE_DPI);
+		} else {
+			page = downscale(image, LANGUAGE_SAMPLE_MAX_WIDTH);
+		}
+		Rectangle crop = new Rectangle(page.getWidth() / 10, page.getHeight() / 10, page.getWidth() * 8 / 10,
+				page.getHeight() / 2);
+		String sampleText;
+		TesseractEngine engine = borrowEngine(session, sampleKey);
+		try {
+			sampleText = engine.recognize(page, crop);
+		} catch (TesseractException | RuntimeException e) {
+			enginePool.invalidate(engine);
+			engine = null;
+			throw e;
+		} finally {
+			if (engine != null) {
+				enginePool.release(engine);
+			}
+		}
+		try {
+			return countNonBlank(sampleText) == 0 ? null : detectLanguage(sampleText);
+		} catch (LangDetectException e) {
+			getLogger().debug("No language detected in OCR sample : {}", new Object[] { e.getMessage() });
+			return null;
+		}
 	}
 
-	private String extractIsoFromFileName(ProcessContext context, String txt) {
-		String isoLanguage = null;
-		/*
-		 * Process regex extraction on filename
-		 */
-		final String strPatternFileExtract = context.getProperty(FILENAME_LANGUAGE_EXTRACTION_REGEX).getValue();
-		
-		getLogger().info("File Language extraction regex : {}",
-				new Object[] {strPatternFileExtract});	
-		getLogger().info("File Language extraction, input text : {}",
-				new Object[] {txt});		
-		
+	private static BufferedImage downscale(BufferedImage image, int maxWidth) {
+		if (image.getWidth() <= maxWidth) {
+			return image;
+		}
+		int height = Math.max(1, image.getHeight() * maxWidth / image.getWidth());
+		BufferedImage scaled = new BufferedImage(maxWidth, height, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D graphics = scaled.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.drawImage(image, 0, 0, maxWidth, height, null);
+		} finally {
+			graphics.dispose();
+		}
+		return scaled;
+	}
 
-		final Pattern fileExtractPattern = strPatternFileExtract == null ? null
-				: Pattern.compile(strPatternFileExtract);
-		Matcher matcherLanguage = fileExtractPattern.matcher(txt);
+	private TesseractEngine borrowEngine(ProcessSession session, TesseractEnginePool.Key engineKey)
+			throws InterruptedException {
+		TesseractEngine engine = enginePool.borrow(engineKey);
+		session.adjustCounter(engine.getUseCount() == 0 ? COUNTER_POOL_MISSES : COUNTER_POOL_HITS, 1, false);
+		return engine;
+	}
 
-		if (matcherLanguage.find()) {
-			getLogger().info("File Language extraction, regex find group extraction");					
-			isoLanguage = matcherLanguage.group(1);
+	/**
+	 * Recognizes the pages of a PDF one at a time and writes the text of each
+	 * page as soon as it is known, pages separated by a form feed. A page whose
+	 * text layer has at least textLayerMinChars non blank characters is taken
+	 * as is, the other pages are rendered, in an image reused for every page,
+	 * and recognized by Tesseract. No engine is borrowed if every page has a
+	 * text layer.
+	 */
+	private void recognizePdf(ProcessSession session, TesseractEnginePool.Key engineKey, PdfPageSource pages,
+			int textLayerMinChars, ConfidenceStats confidence, Map<String, String> attributes,
+			StageMetrics.Timings timings, TextEncoder encoder, OutputStream out) throws IOException, TesseractException, InterruptedException {
+		final OcrResultCache cache = ocrCache;
+		final PagePreprocessor pagePreprocessor = preprocessor;
+		BufferedImage pageImage = pageImages.poll();
+		TesseractEngine engine = null;
+		int cacheHits = 0;
+		try {
+			PDFTextStripper stripper = null;
+			if (textLayerMinChars > 0) {
+				stripper = new PDFTextStripper();
+				stripper.setSortByPosition(true);
+			}
+			int textLayerPages = 0;
+			int retries = 0;
+			long preprocessInputBytes = 0;
+			long preprocessOutputBytes = 0;
+			long heapPeak = 0;
+			long nativePeak = 0;
+			for (int i = 0; i < pages.getPageCount(); i++) {
+				long stageStart = System.nanoTime();
+				if (i > 0) {
+					out.write(PAGE_SEPARATOR);
+				}
+				if (stripper != null) {
+					stripper.setStartPage(i + 1);
+					stripper.setEndPage(i + 1);
+					String pageText = stripper.getText(pages.getDocument());
+					stageStart = timings.since(STAGE_TEXT_LAYER, stageStart);
+					if (countNonBlank(pageText) >= textLayerMinChars) {
+						encoder.write(pageText, out);
+						timings.since(STAGE_WRITE, stageStart);
+						textLayerPages++;
+						continue;
+					}
+				}
+				pageImage = fitPageImage(pageImage, pages.getPageSize(i));
+				Rectangle area = pages.renderPage(i, pageImage);
+				stageStart = timings.since(STAGE_DECODE, stageStart);
+				BufferedImage ocrImage = pageImage;
+				Rectangle ocrArea = area;
+				float dpi = pages.getResolution(i);
+				if (pagePreprocessor != null) {
+					PagePreprocessor.Result preprocessed = pagePreprocessor.process(pageImage, area, dpi);
+					ocrImage = preprocessed.getImage();
+					ocrArea = null;
+					dpi = preprocessed.getResolution();
+					preprocessInputBytes += preprocessed.getInputBytes();
+					preprocessOutputBytes += preprocessed.getOutputBytes();
+					stageStart = timings.since(STAGE_PREPROCESS, stageStart);
+				}
+				String cacheKey = cache == null ? null : OcrResultCache.key(ocrImage, ocrArea, engineKey);
+				String pageText = cacheKey == null ? null : getCachedText(session, cache, cacheKey);
+				if (pageText != null) {
+					cacheHits++;
+				} else {
+					if (engine == null) {
+						engine = borrowEngine(session, engineKey);
+						stageStart = timings.since(STAGE_ENGINE, stageStart);
+					}
+					PageRecognition<String> recognition = recognizeWithinBudget(session, engine, ocrImage, ocrArea,
+							dpi, TesseractEngine::recognize);
+					pageText = recognition.getResult();
+					confidence.addAll(engine.getWordConfidences());
+					heapPeak = Math.max(heapPeak, recognition.getHeapBytes() + sourceBytes(pageImage, ocrImage));
+					nativePeak = Math.max(nativePeak, recognition.getNativeBytes());
+					stageStart = timings.since(STAGE_RECOGNIZE, stageStart);
+					if (recognition.isRetried()) {
+						retries++;
+					} else if (cacheKey != null) {
+						cacheText(cache, cacheKey, pageText);
+					}
+				}
+				encoder.write(pageText, out);
+				timings.since(STAGE_WRITE, stageStart);
+			}
+			attributes.put(OCR_PAGE_COUNT, String.valueOf(pages.getPageCount()));
+			if (pagePreprocessor != null) {
+				putPreprocessAttributes(attributes, preprocessInputBytes, preprocessOutputBytes);
+			}
+			putCacheAttributes(attributes, cacheHits, pages.getPageCount() - textLayerPages);
+			attributes.put(OCR_TEXT_LAYER_PAGE_COUNT, String.valueOf(textLayerPages));
+			attributes.put(OCR_RECOGNIZED_PAGE_COUNT, String.valueOf(pages.getPageCount() - textLayerPages));
+			attributes.put(OCR_RETRY_COUNT, String.valueOf(retries));
+			if (heapPeak > 0) {
+				putMemoryAttributes(attributes, heapPeak, nativePeak);
+			}
+		} catch (IOException | TesseractException | RuntimeException e) {
+			if (engine != null && !(e instanceof OcrTimeoutException)) {
+				enginePool.invalidate(engine);
+				engine = null;
+			}
+			throw e;
+		} finally {
+			if (engine != null) {
+				enginePool.release(engine);
+			}
+			if (pageImage != null) {
+				pageImages.offer(pageImage);
+			}
+		}
+	}
+
+	/**
+	 * @return the page image if it is large enough for a page of the given
+	 *         size, a larger gray image otherwise
+	 */
+	private static BufferedImage fitPageImage(BufferedImage pageImage, Dimension size) {
+		if (pageImage != null && pageImage.getWidth() >= size.width && pageImage.getHeight() >= size.height) {
+			return pageImage;
+		}
+		int width = pageImage == null ? size.width : Math.max(size.width, pageImage.getWidth());
+		int height = pageImage == null ? size.height : Math.max(size.height, pageImage.getHeight());
+		return new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+	}
+
+	/**
+	 * Recognizes the words of each page and adds the page to the writer as soon
+	 * as it is recognized, so that the document is never held in memory. PDF
+	 * pages are rendered in an image reused for every page. When preprocessing
+	 * is enabled the writer is given the preprocessed page, the one the word
+	 * boxes refer to. The text layer and the OCR result cache are not used, they
+	 * hold no word boxes.
+	 *
+	 * @param image
+	 *            the decoded image, image input mode only
+	 */
+	private void recognizeDocument(ProcessSession session, TesseractEnginePool.Key engineKey, PdfPageSource pdfPages,
+			BufferedImage image, float imageDpi, OcrDocumentWriter writer, ConfidenceStats confidence,
+			Map<String, String> attributes, StageMetrics.Timings timings) throws IOException, TesseractException, InterruptedException {
+		final PagePreprocessor pagePreprocessor = preprocessor;
+		final int pageCount = pdfPages == null ? 1 : pdfPages.getPageCount();
+		BufferedImage pageImage = pdfPages == null ? null : pageImages.poll();
+		TesseractEngine engine = null;
+		try {
+			int retries = 0;
+			long preprocessInputBytes = 0;
+			long preprocessOutputBytes = 0;
+			long heapPeak = 0;
+			long nativePeak = 0;
+			for (int i = 0; i < pageCount; i++) {
+				long stageStart = System.nanoTime();
+				BufferedImage ocrImage = image;
+				Rectangle ocrArea = null;
+				float dpi = imageDpi;
+				if (pdfPages != null) {
+					pageImage = fitPageImage(pageImage, pdfPages.getPageSize(i));
+					ocrImage = pageImage;
+					ocrArea = pdfPages.renderPage(i, pageImage);
+					dpi = pdfPages.getResolution(i);
+					stageStart = timings.since(STAGE_DECODE, stageStart);
+					if (pagePreprocessor != null) {
+						PagePreprocessor.Result preprocessed = pagePreprocessor.process(pageImage, ocrArea, dpi);
+						ocrImage = preprocessed.getImage();
+						ocrArea = null;
+						dpi = preprocessed.getResolution();
+						preprocessInputBytes += preprocessed.getInputBytes();
+						preprocessOutputBytes += preprocessed.getOutputBytes();
+						stageStart = timings.since(STAGE_PREPROCESS, stageStart);
+					}
+				}
+				if (engine == null) {
+					engine = borrowEngine(session, engineKey);
+					stageStart = timings.since(STAGE_ENGINE, stageStart);
+				}
+				PageRecognition<List<OcrWord>> recognition = recognizeWithinBudget(session, engine, ocrImage, ocrArea,
+						dpi, TesseractEngine::recognizeWords);
+				stageStart = timings.since(STAGE_RECOGNIZE, stageStart);
+				if (recognition.isRetried()) {
+					retries++;
+				}
+				heapPeak = Math.max(heapPeak, recognition.getHeapBytes() + sourceBytes(pageImage, ocrImage));
+				nativePeak = Math.max(nativePeak, recognition.getNativeBytes());
+				confidence.addWords(recognition.getResult());
+				// the word boxes refer to the image recognized, the downscaled one after a retry
+				ocrImage = recognition.getImage();
+				ocrArea = recognition.getArea();
+				// the rendered page is in the top left corner of the reused image
+				writer.addPage(ocrArea == null ? ocrImage
+						: ocrImage.getSubimage(ocrArea.x, ocrArea.y, ocrArea.width, ocrArea.height),
+						recognition.getDpi(), recognition.getResult());
+				timings.since(STAGE_WRITE, stageStart);
+			}
+			attributes.put(OCR_PAGE_COUNT, String.valueOf(pageCount));
+			attributes.put(OCR_RETRY_COUNT, String.valueOf(retries));
+			putMemoryAttributes(attributes, heapPeak, nativePeak);
+			if (pdfPages != null && pagePreprocessor != null) {
+				putPreprocessAttributes(attributes, preprocessInputBytes, preprocessOutputBytes);
+			}
+		} catch (IOException | TesseractException | RuntimeException e) {
+			if (engine != null && !(e instanceof OcrTimeoutException)) {
+				enginePool.invalidate(engine);
+				engine = null;
+			}
+			throw e;
+		} finally {
+			if (engine != null) {
+				enginePool.release(engine);
+			}
+			if (pageImage != null) {
+				pageImages.offer(pageImage);
+			}
 		}
-		getLogger().info("File Language extraction, matcher group value : {}",
-				new Object[] {isoLanguage});				
-		return isoLanguage;
 	}
 
+	/**
+	 * Recognizes a page within its time budget : the page timeout plus the page
+	 * timeout per megapixel of the recognized area. A page exceeding it is
+	 * recognized once more, downscaled to the retry resolution and with the
+	 * retry page segmentation mode, within the same budget. A first attempt
+	 * exceeding the budget counts as a failure for the circuit breaker.
+	 *
+	 * @param session
+	 *            session adjusting the circuit breaker counter, null on the
+	 *            workers, the opening of the breaker is then only logged
+	 * @param dpi
+	 *            resolution of the image, 0 if unknown
+	 * @throws OcrTimeoutException
+	 *             if the retry exceeded the budget as well, or if the retry is
+	 *             disabled
+	 */
+	private <T> PageRecognition<T> recognizeWithinBudget(ProcessSession session, TesseractEngine engine,
+			BufferedImage image, Rectangle area, float dpi, Recognition<T> recognition) throws TesseractException {
+		final long budgetMillis = getPageBudget(image, area);
+		try {
+			T result = recognition.recognize(engine, image, area, budgetMillis);
+			recordPageOutcome(session, false);
+			return new PageRecognition<>(result, image, area, dpi, false, PixelBuffer.rasterBytes(image),
+					engine.getNativeImageBytes());
+		} catch (OcrTimeoutException e) {
+			recordPageOutcome(session, true);
+			final long nativeBytes = engine.getNativeImageBytes();
+			final float retryDpi = pageRetryDpi;
+			if (retryDpi <= 0) {
+				throw e;
+			}
+			BufferedImage retryImage = image;
+			Rectangle retryArea = area;
+			float retryImageDpi = dpi;
+			final float sourceDpi = dpi > 0 ? dpi : UNKNOWN_DPI;
+			final int width = area == null ? image.getWidth() : area.width;
+			final int retryWidth = Math.round(width * retryDpi / sourceDpi);
+			if (retryWidth < width) {
+				retryImage = downscale(area == null ? image
+						: image.getSubimage(area.x, area.y, area.width, area.height), Math.max(1, retryWidth));
+				retryArea = null;
+				retryImageDpi = sourceDpi * retryImage.getWidth() / width;
+			}
+			getLogger().debug("Page exceeded its OCR time budget of {} ms, retrying {}x{} with page segmentation "
+					+ "mode {}", new Object[] { budgetMillis, retryImage.getWidth(), retryImage.getHeight(),
+							pageRetrySegMode });
+			engine.overridePageSegMode(pageRetrySegMode);
+			try {
+				T result = recognition.recognize(engine, retryImage, retryArea, budgetMillis);
+				return new PageRecognition<>(result, retryImage, retryArea, retryImageDpi, true,
+						PixelBuffer.rasterBytes(image) + sourceBytes(retryImage, image), nativeBytes);
+			} finally {
+				engine.resetPageSegMode();
+			}
+		}
+	}
+
+	/**
+	 * @return the time budget of the recognition of the area, or of the whole
+	 *         image if the area is null, 0 for none
+	 */
+	private long getPageBudget(BufferedImage image, Rectangle area) {
+		final long timeoutMillis = pageTimeoutMillis;
+		if (timeoutMillis == 0) {
+			return 0;
+		}
+		long pixels = area == null ? (long) image.getWidth() * image.getHeight() : (long) area.width * area.height;
+		return timeoutMillis + pageTimeoutMillisPerMegapixel * pixels / 1000000L;
+	}
+
+	private void recordPageOutcome(ProcessSession session, boolean timedOut) {
+		final CircuitBreaker breaker = circuitBreaker;
+		if (breaker != null && breaker.record(timedOut)) {
+			getLogger().warn("OCR circuit breaker opened, too many of the last {} pages exceeded their time budget",
+					new Object[] { CIRCUIT_BREAKER_WINDOW });
+			if (session != null) {
+				session.adjustCounter(COUNTER_CIRCUIT_BREAKER_TRIPS, 1, false);
+			}
+		}
+	}
+
+	/**
+	 * @return the heap size of the source of the recognized image, 0 if the
+	 *         image is the source itself
+	 */
+	private static long sourceBytes(BufferedImage source, BufferedImage recognized) {
+		return source == null || source == recognized ? 0 : PixelBuffer.rasterBytes(source);
+	}
+
+	private static void putMemoryAttributes(Map<String, String> attributes, long heapBytes, long nativeBytes) {
+		attributes.put(OCR_PAGE_HEAP_PEAK, String.valueOf(heapBytes));
+		attributes.put(OCR_PAGE_NATIVE_PEAK, String.valueOf(nativeBytes));
+	}
+
+	/**
+	 * @return the timeout the exception is caused by, null if none
+	 */
+	private static OcrTimeoutException findTimeout(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof OcrTimeoutException) {
+				return (OcrTimeoutException) cause;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A recognition of an image on an engine, given a time budget.
+	 */
+	private interface Recognition<T> {
+		T recognize(TesseractEngine engine, BufferedImage image, Rectangle area, long timeoutMillis)
+				throws TesseractException;
+	}
+
+	/**
+	 * The result of a recognition, with the image, area and resolution actually
+	 * recognized and the memory the recognized images took.
+	 */
+	private static final class PageRecognition<T> {
+		private final T result;
+		private final BufferedImage image;
+		private final Rectangle area;
+		private final float dpi;
+		private final boolean retried;
+		private final long heapBytes;
+		private final long nativeBytes;
+
+		PageRecognition(T result, BufferedImage image, Rectangle area, float dpi, boolean retried, long heapBytes,
+				long nativeBytes) {
+			this.result = result;
+			this.image = image;
+			this.area = area;
+			this.dpi = dpi;
+			this.retried = retried;
+			this.heapBytes = heapBytes;
+			this.nativeBytes = nativeBytes;
+		}
+
+		long getHeapBytes() {
+			return heapBytes;
+		}
+
+		long getNativeBytes() {
+			return nativeBytes;
+		}
+
+		T getResult() {
+			return result;
+		}
+
+		BufferedImage getImage() {
+			return image;
+		}
+
+		Rectangle getArea() {
+			return area;
+		}
+
+		float getDpi() {
+			return dpi;
+		}
+
+		boolean isRetried() {
+			return retried;
+		}
+	}
+
+	/**
+	 * Recognizes the frames of a multi-page image, e.g. a TIFF, on the workers.
+	 * Frames are decoded one at a time by the calling thread, at most
+	 * {@code workerCount} frames are in memory until written, and the results are
+	 * written in frame order : to the writer for the document formats, as text
+	 * separated by a form feed otherwise. The OCR result cache holds no word
+	 * boxes, it is used for the text only.
+	 *
+	 * @param firstFrame
+	 *            the already decoded first frame
+	 * @param writer
+	 *            the document writer, null for the text
+	 */
+	private void recognizeFrames(ProcessSession session, TesseractEnginePool.Key engineKey,
+			final ImagePageSource frames, final BufferedImage firstFrame, OcrDocumentWriter writer,
+			TextEncoder encoder, OutputStream out, ConfidenceStats confidence, Map<String, String> attributes,
+			final StageMetrics.Timings timings) throws IOException, TesseractException, InterruptedException {
+		final int frameCount = frames.getPageCount();
+		final float[] resolutions = new float[frameCount];
+		// the image reader is only used by the calling thread
+		final PageSource source = new PageSource() {
+			@Override
+			public int getPageCount() {
+				return frameCount;
+			}
+
+			@Override
+			public BufferedImage readPage(int pageIndex) throws IOException {
+				long decodeStart = System.nanoTime();
+				BufferedImage frame = pageIndex == 0 ? firstFrame : frames.readPage(pageIndex);
+				resolutions[pageIndex] = frames.getResolution(pageIndex);
+				timings.since(STAGE_DECODE, decodeStart);
+				return frame;
+			}
+
+			@Override
+			public float getResolution(int pageIndex) throws IOException {
+				return frames.getResolution(pageIndex);
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		final boolean words = writer != null;
+		final FrameWriter frameWriter = new FrameWriter(session, writer, encoder, out, confidence, timings);
+		try {
+			new OrderedPageExecutor(executor, workerCount).execute(source,
+					(pageIndex, image) -> recognizeFrame(engineKey, image, resolutions[pageIndex], words),
+					frameWriter);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof TesseractException) {
+				throw (TesseractException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("OCR of a frame failed", cause);
+		}
+		attributes.put(OCR_PAGE_COUNT, String.valueOf(frameCount));
+		attributes.put(OCR_RETRY_COUNT, String.valueOf(frameWriter.retries));
+		if (frameWriter.heapPeak > 0) {
+			putMemoryAttributes(attributes, frameWriter.heapPeak, frameWriter.nativePeak);
+		}
+		if (preprocessor != null) {
+			putPreprocessAttributes(attributes, frameWriter.preprocessInputBytes, frameWriter.preprocessOutputBytes);
+		}
+		if (!words) {
+			putCacheAttributes(attributes, frameWriter.cacheHits, frameCount);
+		}
+	}
+
+	/**
+	 * Recognizes a frame on a worker. The session is not thread safe, the
+	 * timings and the counters are returned with the result.
+	 */
+	private Frame recognizeFrame(TesseractEnginePool.Key engineKey, BufferedImage image, float dpi, boolean words)
+			throws IOException, TesseractException, InterruptedException {
+		final Frame frame = new Frame(stageMetrics.start());
+		final BufferedImage decoded = image;
+		long stageStart = System.nanoTime();
+		final PagePreprocessor pagePreprocessor = preprocessor;
+		if (pagePreprocessor != null) {
+			PagePreprocessor.Result preprocessed = pagePreprocessor.process(image, null, dpi);
+			image = preprocessed.getImage();
+			dpi = preprocessed.getResolution();
+			frame.preprocessInputBytes = preprocessed.getInputBytes();
+			frame.preprocessOutputBytes = preprocessed.getOutputBytes();
+			stageStart = frame.timings.since(STAGE_PREPROCESS, stageStart);
+		}
+		// the text only needs the image until it is recognized
+		frame.image = words ? image : null;
+		frame.dpi = dpi;
+		final OcrResultCache cache = words ? null : ocrCache;
+		final String cacheKey = cache == null ? null : OcrResultCache.key(image, null, engineKey);
+		if (cacheKey != null) {
+			frame.text = readCache(cache, cacheKey);
+			frame.cacheLookup = true;
+			if (frame.text != null) {
+				frame.timings.since(STAGE_RECOGNIZE, stageStart);
+				return frame;
+			}
+		}
+		TesseractEngine engine = enginePool.borrow(engineKey);
+		try {
+			frame.newEngine = engine.getUseCount() == 0;
+			stageStart = frame.timings.since(STAGE_ENGINE, stageStart);
+			PageRecognition<?> recognition;
+			if (words) {
+				PageRecognition<List<OcrWord>> wordRecognition = recognizeWithinBudget(null, engine, image, null, dpi,
+						TesseractEngine::recognizeWords);
+				frame.words = wordRecognition.getResult();
+				recognition = wordRecognition;
+			} else {
+				PageRecognition<String> textRecognition = recognizeWithinBudget(null, engine, image, null, dpi,
+						TesseractEngine::recognize);
+				frame.text = textRecognition.getResult();
+				frame.confidences = engine.getWordConfidences();
+				recognition = textRecognition;
+			}
+			frame.timings.since(STAGE_RECOGNIZE, stageStart);
+			// the word boxes refer to the image recognized, the downscaled one after a retry
+			frame.image = words ? recognition.getImage() : null;
+			frame.dpi = recognition.getDpi();
+			frame.retried = recognition.isRetried();
+			frame.heapBytes = recognition.getHeapBytes() + sourceBytes(decoded, image);
+			frame.nativeBytes = recognition.getNativeBytes();
+		} catch (TesseractException | RuntimeException e) {
+			if (!(e instanceof OcrTimeoutException)) {
+				enginePool.invalidate(engine);
+				engine = null;
+			}
+			throw e;
+		} finally {
+			if (engine != null) {
+				enginePool.release(engine);
+			}
+		}
+		if (cacheKey != null && !frame.retried) {
+			cacheText(cache, cacheKey, frame.text);
+		}
+		return frame;
+	}
+
+	/**
+	 * A frame recognized by a worker.
+	 */
+	private static final class Frame {
+		private final StageMetrics.Timings timings;
+		private BufferedImage image;
+		private float dpi;
+		private String text;
+		private List<OcrWord> words;
+		private float[] confidences;
+		private boolean cacheLookup;
+		private boolean newEngine;
+		private boolean retried;
+		private long preprocessInputBytes;
+		private long preprocessOutputBytes;
+		private long heapBytes;
+		private long nativeBytes;
+
+		private Frame(StageMetrics.Timings timings) {
+			this.timings = timings;
+		}
+	}
+
+	/**
+	 * Writes the recognized frames in order, on the session thread, and sums
+	 * their timings and counters.
+	 */
+	private final class FrameWriter implements OrderedPageExecutor.PageConsumer<Frame> {
+		private final ProcessSession session;
+		private final OcrDocumentWriter writer;
+		private final TextEncoder encoder;
+		private final OutputStream out;
+		private final ConfidenceStats confidence;
+		private final StageMetrics.Timings timings;
+		private int retries;
+		private int cacheHits;
+		private long preprocessInputBytes;
+		private long preprocessOutputBytes;
+		private long heapPeak;
+		private long nativePeak;
+
+		private FrameWriter(ProcessSession session, OcrDocumentWriter writer, TextEncoder encoder, OutputStream out,
+				ConfidenceStats confidence, StageMetrics.Timings timings) {
+			this.session = session;
+			this.writer = writer;
+			this.encoder = encoder;
+			this.out = out;
+			this.confidence = confidence;
+			this.timings = timings;
+		}
+
+		@Override
+		public void accept(int pageIndex, Frame frame) throws IOException {
+			timings.addAll(frame.timings);
+			preprocessInputBytes += frame.preprocessInputBytes;
+			preprocessOutputBytes += frame.preprocessOutputBytes;
+			heapPeak = Math.max(heapPeak, frame.heapBytes);
+			nativePeak = Math.max(nativePeak, frame.nativeBytes);
+			if (frame.retried) {
+				retries++;
+			}
+			final boolean cacheHit = frame.cacheLookup && frame.confidences == null;
+			if (frame.cacheLookup) {
+				session.adjustCounter(cacheHit ? COUNTER_CACHE_HITS : COUNTER_CACHE_MISSES, 1, false);
+			}
+			if (cacheHit) {
+				cacheHits++;
+			} else {
+				session.adjustCounter(frame.newEngine ? COUNTER_POOL_MISSES : COUNTER_POOL_HITS, 1, false);
+			}
+			long writeStart = System.nanoTime();
+			if (writer != null) {
+				confidence.addWords(frame.words);
+				writer.addPage(frame.image, frame.dpi, frame.words);
+			} else {
+				if (frame.confidences != null) {
+					confidence.addAll(frame.confidences);
+				}
+				if (pageIndex > 0) {
+					out.write(PAGE_SEPARATOR);
+				}
+				encoder.write(frame.text, out);
+			}
+			timings.since(STAGE_WRITE, writeStart);
+		}
+	}
+
+	private static OcrDocumentWriter createDocumentWriter(String outputFormat, OutputStream out, String language,
+			File fontFile) throws IOException {
+		if (OUTPUT_FORMAT_HOCR.equals(outputFormat)) {
+			return new HocrWriter(out, language);
+		} else if (OUTPUT_FORMAT_ALTO.equals(outputFormat)) {
+			return new AltoWriter(out);
+		} else if (OUTPUT_FORMAT_WORDS.equals(outputFormat)) {
+			return new WordJsonWriter(out);
+		}
+		return new SearchablePdfWriter(out, fontFile);
+	}
+
+	/**
+	 * Recognizes only the zones, page by page. Without preprocessing, the zones
+	 * of a page are recognized on the same engine with a single copy of the
+	 * image, each zone is still thresholded and analysed on its own.
+	 *
+	 * @return the trimmed text of each zone, in the order of the definition
+	 */
+	private Map<String, String> recognizeZones(ProcessSession session, TesseractEnginePool.Key engineKey,
+			PdfPageSource pdfPages, BufferedImage image, float imageDpi, List<OcrZone> zones, boolean relative,
+			Map<String, String> attributes, StageMetrics.Timings timings) throws IOException, TesseractException, InterruptedException {
+		final OcrResultCache cache = ocrCache;
+		final PagePreprocessor pagePreprocessor = preprocessor;
+		final int pageCount = pdfPages == null ? 1 : pdfPages.getPageCount();
+		final Map<String, String> texts = new LinkedHashMap<>();
+		final TreeMap<Integer, List<OcrZone>> zonesByPage = new TreeMap<>();
+		for (OcrZone zone : zones) {
+			if (zone.getPage() > pageCount) {
+				throw new IllegalArgumentException("Zone " + zone.getName() + " is on page " + zone.getPage()
+						+ " of a document of " + pageCount + " pages");
+			}
+			texts.put(zone.getName(), "");
+			zonesByPage.computeIfAbsent(zone.getPage(), page -> new ArrayList<>()).add(zone);
+		}
+		int cacheHits = 0;
+		TesseractEngine engine = null;
+		try {
+			for (Map.Entry<Integer, List<OcrZone>> pageZones : zonesByPage.entrySet()) {
+				long stageStart = System.nanoTime();
+				final int pageIndex = pageZones.getKey() - 1;
+				final BufferedImage page = pdfPages == null ? image : pdfPages.readPage(pageIndex);
+				final float dpi = pdfPages == null ? imageDpi : pdfPages.getResolution(pageIndex);
+				stageStart = timings.since(STAGE_DECODE, stageStart);
+				// zones left to recognize, with the image and area given to Tesseract
+				List<String> names = new ArrayList<>();
+				List<BufferedImage> zoneImages = new ArrayList<>();
+				List<Rectangle> areas = new ArrayList<>();
+				List<String> cacheKeys = new ArrayList<>();
+				for (OcrZone zone : pageZones.getValue()) {
+					Rectangle area = zone.toRectangle(page.getWidth(), page.getHeight(), relative);
+					if (area.isEmpty()) {
+						continue;
+					}
+					BufferedImage zoneImage = page;
+					if (pagePreprocessor != null) {
+						zoneImage = pagePreprocessor.process(page, area, dpi).getImage();
+						area = new Rectangle(zoneImage.getWidth(), zoneImage.getHeight());
+					}
+					String cacheKey = cache == null ? null : OcrResultCache.key(zoneImage, area, engineKey);
+					String text = cacheKey == null ? null : getCachedText(session, cache, cacheKey);
+					if (text != null) {
+						texts.put(zone.getName(), text.trim());
+						cacheHits++;
+					} else {
+						names.add(zone.getName());
+						zoneImages.add(zoneImage);
+						areas.add(area);
+						cacheKeys.add(cacheKey);
+					}
+				}
+				if (pagePreprocessor != null) {
+					stageStart = timings.since(STAGE_PREPROCESS, stageStart);
+				}
+				if (names.isEmpty()) {
+					continue;
+				}
+				if (engine == null) {
+					engine = borrowEngine(session, engineKey);
+					stageStart = timings.since(STAGE_ENGINE, stageStart);
+				}
+				List<String> zoneTexts;
+				if (pagePreprocessor == null) {
+					zoneTexts = engine.recognizeAreas(page, areas);
+				} else {
+					zoneTexts = new ArrayList<>();
+					for (BufferedImage zoneImage : zoneImages) {
+						zoneTexts.add(engine.recognize(zoneImage, null));
+					}
+				}
+				timings.since(STAGE_RECOGNIZE, stageStart);
+				for (int i = 0; i < names.size(); i++) {
+					texts.put(names.get(i), zoneTexts.get(i).trim());
+					if (cacheKeys.get(i) != null) {
+						cacheText(cache, cacheKeys.get(i), zoneTexts.get(i));
+					}
+				}
+			}
+			putCacheAttributes(attributes, cacheHits, zones.size());
+			return texts;
+		} catch (IOException | TesseractException | RuntimeException e) {
+			if (engine != null) {
+				enginePool.invalidate(engine);
+				engine = null;
+			}
+			throw e;
+		} finally {
+			if (engine != null) {
+				enginePool.release(engine);
+			}
+		}
+	}
+
+	/**
+	 * Looks the text up in the OCR result cache. A failure of the cache is
+	 * logged and handled as a miss.
+	 */
+	private String getCachedText(ProcessSession session, OcrResultCache cache, String cacheKey) {
+		String text = readCache(cache, cacheKey);
+		session.adjustCounter(text == null ? COUNTER_CACHE_MISSES : COUNTER_CACHE_HITS, 1, false);
+		return text;
+	}
+
+	private String readCache(OcrResultCache cache, String cacheKey) {
+		try {
+			return cache.get(cacheKey);
+		} catch (IOException e) {
+			getLogger().warn("Unable to read OCR result cache entry {}", new Object[] { cacheKey, e });
+			return null;
+		}
+	}
+
+	private void cacheText(OcrResultCache cache, String cacheKey, String text) {
+		try {
+			cache.put(cacheKey, text);
+		} catch (IOException e) {
+			getLogger().warn("Unable to write OCR result cache entry {}", new Object[] { cacheKey, e });
+		}
+	}
+
+	/**
+	 * @param hits
+	 *            number of pages whose text came from the cache
+	 * @param pages
+	 *            number of pages which had to be recognized
+	 */
+	private void putCacheAttributes(Map<String, String> attributes, int hits, int pages) {
+		if (ocrCache != null) {
+			attributes.put(OCR_CACHE_HIT_COUNT, String.valueOf(hits));
+			attributes.put(OCR_CACHE_HIT, String.valueOf(pages > 0 && hits == pages));
+		}
+	}
+
+	private static void putPreprocessAttributes(Map<String, String> attributes, long inputBytes, long outputBytes) {
+		attributes.put(OCR_PREPROCESS_INPUT_SIZE, String.valueOf(inputBytes));
+		attributes.put(OCR_PREPROCESS_OUTPUT_SIZE, String.valueOf(outputBytes));
+	}
+
+	private static int countNonBlank(String text) {
+		int count = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if (!Character.isWhitespace(text.charAt(i))) {
+				count++;
+			}
+		}
+		return count;
+	}
 
 	@Override
 	public Set<Relationship> getRelationships() {
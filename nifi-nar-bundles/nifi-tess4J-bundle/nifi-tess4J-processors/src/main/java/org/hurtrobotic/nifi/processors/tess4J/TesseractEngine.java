@@ -0,0 +1,345 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.jna.Pointer;
+
+import net.sourceforge.tess4j.ITessAPI;
+import net.sourceforge.tess4j.ITessAPI.CANCEL_FUNC;
+import net.sourceforge.tess4j.ITessAPI.ETEXT_DESC;
+import net.sourceforge.tess4j.ITessAPI.TessPageIterator;
+import net.sourceforge.tess4j.ITessAPI.TessPageIteratorLevel;
+import net.sourceforge.tess4j.ITessAPI.TessResultIterator;
+import net.sourceforge.tess4j.TessAPI;
+import net.sourceforge.tess4j.Tesseract;
+import net.sourceforge.tess4j.TesseractException;
+
+/**
+ * A {@link Tesseract} whose native handle stays initialized between pages.
+ * <p>
+ * {@link Tesseract#doOCR(BufferedImage)} creates the native handle, loads the
+ * tessdata and disposes everything for each call. A {@code TesseractEngine} is
+ * opened once, then {@link #recognize(BufferedImage, Rectangle)} only sets the
+ * image on the already loaded handle. Instances are not thread safe and are
+ * meant to be shared through a {@link TesseractEnginePool}.
+ * <p>
+ * Pixels are handed to Tesseract through a {@link PixelBuffer} reused from page
+ * to page, off heap. Tess4J would first write each image to an uncompressed
+ * TIFF in memory and decode it again, three copies of the raster on the heap.
+ * <p>
+ * A recognition given a timeout is cancelled by Tesseract between two words
+ * once the deadline is reached. Only the cancel callback of the monitor is
+ * set, the deadline is checked on the Java side, as the layout of the monitor
+ * after the callback differs between Tesseract versions.
+ */
+public class TesseractEngine extends Tesseract implements Closeable {
+	private final TesseractEnginePool.Key key;
+	private volatile long lastReleased;
+	private long useCount;
+	private boolean open;
+	private long deadline;
+	private boolean cancelled;
+	private float[] wordConfidences = new float[0];
+	private final CANCEL_FUNC cancel = new CANCEL_FUNC() {
+		@Override
+		public boolean invoke(Pointer cancelThis, int words) {
+			if (System.nanoTime() - deadline >= 0) {
+				cancelled = true;
+			}
+			return cancelled;
+		}
+	};
+	private final ETEXT_DESC monitor = new ETEXT_DESC();
+	private final PixelBuffer pixels = new PixelBuffer();
+
+	public TesseractEngine(TesseractEnginePool.Key key) {
+		this.key = key;
+		setLanguage(key.getLanguage());
+		setDatapath(key.getDatapath());
+		setOcrEngineMode(key.getEngineMode());
+		setPageSegMode(key.getPageSegMode());
+		monitor.cancel = cancel;
+	}
+
+	/**
+	 * Creates the native handle and loads the language pack.
+	 */
+	public synchronized void open() {
+		if (!open) {
+			init();
+			setTessVariables();
+			open = true;
+		}
+	}
+
+	@Override
+	protected void setImage(RenderedImage image, Rectangle rect) throws IOException {
+		if (!(image instanceof BufferedImage)) {
+			super.setImage(image, rect);
+			return;
+		}
+		// Tesseract copies the pixels, the buffer can be reused as soon as it returns
+		setImage(image.getWidth(), image.getHeight(), pixels.load((BufferedImage) image), rect,
+				pixels.getBitsPerPixel());
+	}
+
+	/**
+	 * @return size in bytes of the native copy of the last image recognized
+	 */
+	public long getNativeImageBytes() {
+		return pixels.getSize();
+	}
+
+	/**
+	 * Performs OCR on the given image, restricted to the rectangle if not null.
+	 */
+	public String recognize(BufferedImage image, Rectangle rect) throws TesseractException {
+		return recognize(image, rect, 0);
+	}
+
+	/**
+	 * Performs OCR on the given image, restricted to the rectangle if not null.
+	 *
+	 * @param timeoutMillis
+	 *            time budget of the recognition, 0 for none
+	 * @throws OcrTimeoutException
+	 *             if the recognition was cancelled at the end of the budget
+	 */
+	public String recognize(BufferedImage image, Rectangle rect, long timeoutMillis) throws TesseractException {
+		if (!open) {
+			throw new IllegalStateException("Tesseract engine " + key + " is not open");
+		}
+		try {
+			setImage(image, rect);
+			if (timeoutMillis > 0) {
+				// the text is then read from the results of this recognition
+				recognize(timeoutMillis);
+			}
+			String text = getOCRText(null, 1);
+			wordConfidences = readWordConfidences();
+			return text;
+		} catch (IOException e) {
+			throw new TesseractException(e);
+		} finally {
+			getAPI().TessBaseAPIClear(getHandle());
+		}
+	}
+
+	/**
+	 * Performs OCR on several rectangles of the same image. The image is
+	 * copied to Tesseract once, but each rectangle clears the previous results
+	 * and is thresholded and analysed on its own.
+	 *
+	 * @return the text of each rectangle, in the same order
+	 */
+	public List<String> recognizeAreas(BufferedImage image, List<Rectangle> rects) throws TesseractException {
+		if (!open) {
+			throw new IllegalStateException("Tesseract engine " + key + " is not open");
+		}
+		try {
+			setImage(image, null);
+			List<String> texts = new ArrayList<>(rects.size());
+			for (Rectangle rect : rects) {
+				// each SetRectangle clears the results of the previous one
+				getAPI().TessBaseAPISetRectangle(getHandle(), rect.x, rect.y, rect.width, rect.height);
+				texts.add(getOCRText(null, 1));
+			}
+			return texts;
+		} catch (IOException e) {
+			throw new TesseractException(e);
+		} finally {
+			getAPI().TessBaseAPIClear(getHandle());
+		}
+	}
+
+	/**
+	 * Performs OCR on the given image, restricted to the rectangle if not null,
+	 * and returns the words found with their bounding box and confidence.
+	 */
+	public List<OcrWord> recognizeWords(BufferedImage image, Rectangle rect) throws TesseractException {
+		return recognizeWords(image, rect, 0);
+	}
+
+	/**
+	 * Performs OCR on the given image, restricted to the rectangle if not null,
+	 * and returns the words found with their bounding box and confidence.
+	 *
+	 * @param timeoutMillis
+	 *            time budget of the recognition, 0 for none
+	 * @throws OcrTimeoutException
+	 *             if the recognition was cancelled at the end of the budget
+	 */
+	public List<OcrWord> recognizeWords(BufferedImage image, Rectangle rect, long timeoutMillis)
+			throws TesseractException {
+		if (!open) {
+			throw new IllegalStateException("Tesseract engine " + key + " is not open");
+		}
+		final TessAPI api = getAPI();
+		try {
+			setImage(image, rect);
+			recognize(timeoutMillis);
+			List<OcrWord> words = new ArrayList<>();
+			TessResultIterator results = api.TessBaseAPIGetIterator(getHandle());
+			if (results == null) {
+				return words;
+			}
+			try {
+				TessPageIterator page = api.TessResultIteratorGetPageIterator(results);
+				IntBuffer left = IntBuffer.allocate(1);
+				IntBuffer top = IntBuffer.allocate(1);
+				IntBuffer right = IntBuffer.allocate(1);
+				IntBuffer bottom = IntBuffer.allocate(1);
+				int block = -1;
+				int line = -1;
+				api.TessPageIteratorBegin(page);
+				do {
+					if (api.TessPageIteratorIsAtBeginningOf(page, TessPageIteratorLevel.RIL_BLOCK) == ITessAPI.TRUE) {
+						block++;
+					}
+					if (api.TessPageIteratorIsAtBeginningOf(page, TessPageIteratorLevel.RIL_TEXTLINE) == ITessAPI.TRUE) {
+						line++;
+					}
+					Pointer text = api.TessResultIteratorGetUTF8Text(results, TessPageIteratorLevel.RIL_WORD);
+					if (text == null) {
+						continue;
+					}
+					String word = text.getString(0, "UTF-8");
+					api.TessDeleteText(text);
+					api.TessPageIteratorBoundingBox(page, TessPageIteratorLevel.RIL_WORD, left, top, right, bottom);
+					words.add(new OcrWord(word, api.TessResultIteratorConfidence(results, TessPageIteratorLevel.RIL_WORD),
+							new Rectangle(left.get(0), top.get(0), right.get(0) - left.get(0), bottom.get(0) - top.get(0)),
+							block, line));
+				} while (api.TessPageIteratorNext(page, TessPageIteratorLevel.RIL_WORD) == ITessAPI.TRUE);
+			} finally {
+				api.TessResultIteratorDelete(results);
+			}
+			return words;
+		} catch (IOException e) {
+			throw new TesseractException(e);
+		} finally {
+			api.TessBaseAPIClear(getHandle());
+		}
+	}
+
+	/**
+	 * @return the confidence of each word of the last recognition
+	 */
+	private float[] readWordConfidences() {
+		final TessAPI api = getAPI();
+		TessResultIterator results = api.TessBaseAPIGetIterator(getHandle());
+		if (results == null) {
+			return new float[0];
+		}
+		try {
+			float[] confidences = new float[16];
+			int count = 0;
+			TessPageIterator page = api.TessResultIteratorGetPageIterator(results);
+			api.TessPageIteratorBegin(page);
+			do {
+				Pointer text = api.TessResultIteratorGetUTF8Text(results, TessPageIteratorLevel.RIL_WORD);
+				if (text == null) {
+					continue;
+				}
+				api.TessDeleteText(text);
+				if (count == confidences.length) {
+					confidences = Arrays.copyOf(confidences, count * 2);
+				}
+				confidences[count++] = api.TessResultIteratorConfidence(results, TessPageIteratorLevel.RIL_WORD);
+			} while (api.TessPageIteratorNext(page, TessPageIteratorLevel.RIL_WORD) == ITessAPI.TRUE);
+			return Arrays.copyOf(confidences, count);
+		} finally {
+			api.TessResultIteratorDelete(results);
+		}
+	}
+
+	/**
+	 * @return the confidence, from 0 to 100, of each word found by the last
+	 *         {@link #recognize(BufferedImage, Rectangle, long)}
+	 */
+	public float[] getWordConfidences() {
+		return wordConfidences;
+	}
+
+	private void recognize(long timeoutMillis) throws TesseractException {
+		ETEXT_DESC recognitionMonitor = null;
+		if (timeoutMillis > 0) {
+			deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+			cancelled = false;
+			recognitionMonitor = monitor;
+		}
+		int result = getAPI().TessBaseAPIRecognize(getHandle(), recognitionMonitor);
+		if (recognitionMonitor != null && cancelled) {
+			throw new OcrTimeoutException("Tesseract engine " + key + " cancelled after " + timeoutMillis + " ms",
+					timeoutMillis);
+		}
+		if (result != 0) {
+			throw new TesseractException("Tesseract engine " + key + " failed to recognize the image");
+		}
+	}
+
+	/**
+	 * Changes the page segmentation mode of the loaded handle, until
+	 * {@link #resetPageSegMode()}.
+	 */
+	public void overridePageSegMode(int pageSegMode) {
+		getAPI().TessBaseAPISetPageSegMode(getHandle(), pageSegMode);
+	}
+
+	public void resetPageSegMode() {
+		getAPI().TessBaseAPISetPageSegMode(getHandle(), key.getPageSegMode());
+	}
+
+	public TesseractEnginePool.Key getKey() {
+		return key;
+	}
+
+	/**
+	 * @return number of times this engine has been given back to its pool, 0
+	 *         means the engine has just been created.
+	 */
+	public long getUseCount() {
+		return useCount;
+	}
+
+	long getLastReleased() {
+		return lastReleased;
+	}
+
+	void released(long timestamp) {
+		useCount++;
+		lastReleased = timestamp;
+	}
+
+	@Override
+	public synchronized void close() {
+		if (open) {
+			open = false;
+			dispose();
+		}
+	}
+}
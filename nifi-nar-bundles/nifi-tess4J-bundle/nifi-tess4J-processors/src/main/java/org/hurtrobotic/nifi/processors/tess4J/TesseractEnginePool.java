@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sourceforge.tess4j.TesseractException;
+
+/**
+ * Bounded pool of warm {@link TesseractEngine}s keyed by language, datapath,
+ * engine mode and page segmentation mode.
+ * <p>
+ * At most {@code maxPerKey} engines are borrowed at the same time for a given
+ * key, borrowers wait for an engine to be returned beyond that limit. Engines
+ * which stayed idle longer than {@code maxIdleMillis} are closed by
+ * {@link #evictIdle()}.
+ */
+public class TesseractEnginePool implements Closeable {
+	private final int maxPerKey;
+	private final long maxIdleMillis;
+	private final ConcurrentMap<Key, Slots> slots = new ConcurrentHashMap<>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private volatile boolean closed;
+
+	public TesseractEnginePool(int maxPerKey, long maxIdleMillis) {
+		if (maxPerKey < 1) {
+			throw new IllegalArgumentException("maxPerKey must be greater than 0");
+		}
+		this.maxPerKey = maxPerKey;
+		this.maxIdleMillis = maxIdleMillis;
+	}
+
+	/**
+	 * Borrows an engine for the given key, creating and opening it if no idle
+	 * engine is available. Waits when {@code maxPerKey} engines are already in
+	 * use for this key.
+	 */
+	public TesseractEngine borrow(Key key) throws InterruptedException {
+		if (closed) {
+			throw new IllegalStateException("Tesseract engine pool is closed");
+		}
+		Slots keySlots = slots.computeIfAbsent(key, k -> new Slots(maxPerKey));
+		keySlots.permits.acquire();
+		TesseractEngine engine = keySlots.idle.pollFirst();
+		if (engine != null) {
+			hits.incrementAndGet();
+			return engine;
+		}
+		misses.incrementAndGet();
+		try {
+			engine = new TesseractEngine(key);
+			engine.open();
+			return engine;
+		} catch (RuntimeException | Error e) {
+			keySlots.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a new engine for the given key straight into the idle engines,
+	 * without taking a slot, so that borrowers are never held while it opens.
+	 * No engine is opened when the idle engines and the engines being opened
+	 * already fill the free slots of the key.
+	 *
+	 * @param warmer
+	 *            run on the engine once open, before it becomes idle
+	 * @return false if the key has no room for another idle engine
+	 */
+	public boolean openIdle(Key key, Warmer warmer) throws TesseractException {
+		if (closed) {
+			throw new IllegalStateException("Tesseract engine pool is closed");
+		}
+		Slots keySlots = slots.computeIfAbsent(key, k -> new Slots(maxPerKey));
+		synchronized (keySlots) {
+			if (keySlots.idle.size() + keySlots.opening >= keySlots.permits.availablePermits()) {
+				return false;
+			}
+			keySlots.opening++;
+		}
+		TesseractEngine engine = null;
+		try {
+			engine = new TesseractEngine(key);
+			engine.open();
+			warmer.warm(engine);
+		} catch (TesseractException | RuntimeException | Error e) {
+			if (engine != null) {
+				engine.close();
+			}
+			synchronized (keySlots) {
+				keySlots.opening--;
+			}
+			throw e;
+		}
+		engine.released(System.currentTimeMillis());
+		synchronized (keySlots) {
+			keySlots.opening--;
+			if (!closed) {
+				// least recently used end, borrowers take the engines released last first
+				keySlots.idle.offerLast(engine);
+				return true;
+			}
+		}
+		engine.close();
+		return true;
+	}
+
+	/**
+	 * Gives a borrowed engine back to the pool.
+	 */
+	public void release(TesseractEngine engine) {
+		Slots keySlots = slots.get(engine.getKey());
+		engine.released(System.currentTimeMillis());
+		if (closed || keySlots == null) {
+			engine.close();
+		} else {
+			keySlots.idle.offerFirst(engine);
+		}
+		if (keySlots != null) {
+			keySlots.permits.release();
+		}
+	}
+
+	/**
+	 * Closes a borrowed engine which is no longer usable, for instance after a
+	 * native failure, and frees its slot.
+	 */
+	public void invalidate(TesseractEngine engine) {
+		engine.close();
+		Slots keySlots = slots.get(engine.getKey());
+		if (keySlots != null) {
+			keySlots.permits.release();
+		}
+	}
+
+	/**
+	 * Closes the engines idle for longer than the configured idle time.
+	 *
+	 * @return number of engines evicted
+	 */
+	public int evictIdle() {
+		long limit = System.currentTimeMillis() - maxIdleMillis;
+		int evicted = 0;
+		for (Slots keySlots : slots.values()) {
+			// least recently used engines are at the tail of the deque
+			Iterator<TesseractEngine> it = keySlots.idle.descendingIterator();
+			while (it.hasNext()) {
+				TesseractEngine engine = it.next();
+				if (engine.getLastReleased() > limit) {
+					break;
+				}
+				if (keySlots.idle.removeLastOccurrence(engine)) {
+					engine.close();
+					evicted++;
+				}
+			}
+		}
+		evictions.addAndGet(evicted);
+		return evicted;
+	}
+
+	public int getMaxPerKey() {
+		return maxPerKey;
+	}
+
+	public int getIdleCount() {
+		int count = 0;
+		for (Slots keySlots : slots.values()) {
+			count += keySlots.idle.size();
+		}
+		return count;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "TesseractEnginePool[maxPerKey=" + maxPerKey + ", idle=" + getIdleCount() + ", hits=" + hits.get()
+				+ ", misses=" + misses.get() + ", evictions=" + evictions.get() + "]";
+	}
+
+	/**
+	 * Closes every idle engine. Engines still borrowed are closed when they are
+	 * released.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for (Slots keySlots : slots.values()) {
+			TesseractEngine engine;
+			while ((engine = keySlots.idle.pollFirst()) != null) {
+				engine.close();
+			}
+		}
+	}
+
+	private static class Slots {
+		private final Semaphore permits;
+		private final ConcurrentLinkedDeque<TesseractEngine> idle = new ConcurrentLinkedDeque<>();
+		/** engines being opened by {@link TesseractEnginePool#openIdle}, guarded by the slots */
+		private int opening;
+
+		private Slots(int maxPerKey) {
+			this.permits = new Semaphore(maxPerKey, true);
+		}
+	}
+
+	/**
+	 * Prepares an engine opened by {@link TesseractEnginePool#openIdle}.
+	 */
+	public interface Warmer {
+		void warm(TesseractEngine engine) throws TesseractException;
+	}
+
+	/**
+	 * Identifies the engines which can be shared, i.e. loaded with the same
+	 * language pack and the same modes.
+	 */
+	public static final class Key {
+		private final String language;
+		private final String datapath;
+		private final int engineMode;
+		private final int pageSegMode;
+
+		public Key(String language, String datapath, int engineMode, int pageSegMode) {
+			this.language = language;
+			this.datapath = datapath;
+			this.engineMode = engineMode;
+			this.pageSegMode = pageSegMode;
+		}
+
+		public String getLanguage() {
+			return language;
+		}
+
+		public String getDatapath() {
+			return datapath;
+		}
+
+		public int getEngineMode() {
+			return engineMode;
+		}
+
+		public int getPageSegMode() {
+			return pageSegMode;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = language == null ? 0 : language.hashCode();
+			result = 31 * result + (datapath == null ? 0 : datapath.hashCode());
+			result = 31 * result + engineMode;
+			return 31 * result + pageSegMode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return engineMode == other.engineMode && pageSegMode == other.pageSegMode
+					&& (language == null ? other.language == null : language.equals(other.language))
+					&& (datapath == null ? other.datapath == null : datapath.equals(other.datapath));
+		}
+
+		@Override
+		public String toString() {
+			return language + "|" + datapath + "|oem=" + engineMode + "|psm=" + pageSegMode;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes text to UTF-8 straight into an output stream through a reused
+ * buffer, the text is never copied to a byte array of its own size.
+ * <p>
+ * Not thread safe, the processors keep one encoder per concurrent task.
+ */
+public class TextEncoder {
+	private static final int BUFFER_SIZE = 8192;
+
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/**
+	 * Writes the text, unpaired surrogates are replaced.
+	 */
+	public void write(CharSequence text, OutputStream out) throws IOException {
+		CharBuffer chars = CharBuffer.wrap(text);
+		encoder.reset();
+		CoderResult result;
+		do {
+			result = encoder.encode(chars, buffer, true);
+			drain(out);
+		} while (result.isOverflow());
+		do {
+			result = encoder.flush(buffer);
+			drain(out);
+		} while (result.isOverflow());
+	}
+
+	private void drain(OutputStream out) throws IOException {
+		if (buffer.position() > 0) {
+			out.write(buffer.array(), 0, buffer.position());
+			buffer.clear();
+		}
+	}
+}
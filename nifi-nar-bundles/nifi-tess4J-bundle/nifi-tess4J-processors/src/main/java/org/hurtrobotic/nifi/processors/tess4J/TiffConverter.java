@@ -16,6 +16,9 @@
  */
 package org.hurtrobotic.nifi.processors.tess4J;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -23,8 +26,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.FileInputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -32,15 +35,30 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
 import org.apache.nifi.annotation.behavior.EventDriven;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
@@ -48,9 +66,14 @@ import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.commons.io.IOUtils;
-import org.apache.pdfbox.multipdf.Splitter;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
 
 import com.j256.simplemagic.ContentInfo;
 import com.j256.simplemagic.ContentInfoUtil;
@@ -62,17 +85,80 @@ import net.sourceforge.tess4j.util.PdfGsUtilities;
 @Tags({ "tiff", "converter", "tiffconverter", "tess4J" })
 @EventDriven
 @InputRequirement(InputRequirement.Requirement.INPUT_ALLOWED)
-@CapabilityDescription("Perform a Tiff conversion of each page of a PDF flowfile. ")
+@CapabilityDescription("Perform a Tiff conversion of each page of a PDF flowfile, with Ghostscript or in-process with PDFBox. ")
 @WritesAttributes({
 		@WritesAttribute(attribute = "file.source.tiffconvert.filename", description = "The filename of the source FlowFile."),
-		@WritesAttribute(attribute = "file.source.tiffconvert.uuid", description = "The UUID of the source FlowFile.")})
+		@WritesAttribute(attribute = "file.source.tiffconvert.uuid", description = "The UUID of the source FlowFile."),
+		@WritesAttribute(attribute = "tiff.convert.time", description = "Milliseconds spent converting the source FlowFile.")})
 
 public class TiffConverter extends AbstractTesseractOcr {
 	private static final String SOURCE_FILENAME = "file.source.tiffconvert.filename";
 	private static final String SOURCE_UUID = "file.source.tiffconvert.uuid";
+	private static final String STAGE_CONVERT = "convert";
+
+	private static final String ENGINE_GHOSTSCRIPT = "ghostscript";
+	private static final String ENGINE_PDFBOX = "pdfbox";
+	private static final String COLOR_BILEVEL = "bilevel";
+	private static final String COLOR_GRAY = "gray";
+	private static final String COMPRESSION_CCITT_G4 = "CCITT T.6";
+	private static final String COMPRESSION_LZW = "LZW";
+	private static final String ACCESS_SCRATCH = "scratch";
+	private static final String ACCESS_MAPPED = "mapped";
+	private static final String STANDARD_METADATA_FORMAT = "javax_imageio_1.0";
 
 	private List<PropertyDescriptor> descriptors;
 	private Set<Relationship> relationships;
+	private volatile boolean pdfbox;
+	private volatile float dpi;
+	private volatile ImageType imageType;
+	private volatile String compression;
+	private volatile boolean mapped;
+	private volatile MemoryUsageSetting memoryUsage;
+
+	public static final PropertyDescriptor TIFF_RENDERING_ENGINE = new PropertyDescriptor.Builder()
+			.name("tiff.rendering.engine").displayName("Rendering engine")
+			.description("ghostscript : the PDF is copied to a temporary file and converted by a Ghostscript process. "
+					+ "pdfbox : pages are rendered in the JVM by PDFBox one at a time, the PDF is buffered as set by the "
+					+ "PDF access and max main memory properties, and the encoded TIFF is held on the heap until its last "
+					+ "page is written, the TIFF writer links each page to the previous one.")
+			.allowableValues(ENGINE_GHOSTSCRIPT, ENGINE_PDFBOX).defaultValue(ENGINE_GHOSTSCRIPT)
+			.required(true).build();
+
+	public static final PropertyDescriptor TIFF_RENDER_DPI = new PropertyDescriptor.Builder()
+			.name("tiff.render.dpi").displayName("Render DPI")
+			.description("Resolution of the rendered pages, pdfbox rendering engine only.")
+			.addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).defaultValue("300")
+			.required(true).build();
+
+	public static final PropertyDescriptor TIFF_COLOR_MODE = new PropertyDescriptor.Builder()
+			.name("tiff.color.mode").displayName("Color mode")
+			.description("Color mode of the rendered pages, pdfbox rendering engine only.")
+			.allowableValues(COLOR_BILEVEL, COLOR_GRAY).defaultValue(COLOR_BILEVEL)
+			.required(true).build();
+
+	public static final PropertyDescriptor TIFF_COMPRESSION = new PropertyDescriptor.Builder()
+			.name("tiff.compression").displayName("Compression")
+			.description("TIFF compression, pdfbox rendering engine only. CCITT T.6 (Group 4) requires the bilevel color mode.")
+			.allowableValues(COMPRESSION_CCITT_G4, COMPRESSION_LZW).defaultValue(COMPRESSION_CCITT_G4)
+			.required(true).build();
+
+	public static final PropertyDescriptor TIFF_PDF_ACCESS = new PropertyDescriptor.Builder()
+			.name("tiff.pdf.access").displayName("PDF access")
+			.description("How PDFBox reads the PDF, pdfbox rendering engine only. "
+					+ "scratch : the PDF is buffered by PDFBox on the heap up to the max main memory, "
+					+ "beyond in a temporary scratch file. "
+					+ "mapped : the PDF is copied once to a temporary file parsed through a memory map, "
+					+ "pages are read from the page cache without intermediate buffers, suited to very large documents.")
+			.allowableValues(ACCESS_SCRATCH, ACCESS_MAPPED).defaultValue(ACCESS_SCRATCH)
+			.required(true).build();
+
+	public static final PropertyDescriptor TIFF_MAX_MAIN_MEMORY = new PropertyDescriptor.Builder()
+			.name("tiff.max.main.memory").displayName("Max main memory per document")
+			.description("Heap used by PDFBox to buffer a document, pdfbox rendering engine only, "
+					+ "beyond this size the document is buffered in a temporary scratch file. "
+					+ "In mapped access, heap used to buffer the streams decoded while rendering.")
+			.addValidator(StandardValidators.DATA_SIZE_VALIDATOR).defaultValue("50 MB")
+			.required(true).build();
 
 	public static final Relationship REL_FILES = new Relationship.Builder().name("files")
 			.description("Each individual file will be routed to the files relationship").build();
@@ -93,31 +179,97 @@ public class TiffConverter extends AbstractTesseractOcr {
 		relationships.add(REL_FAILURE);
 
 		this.relationships = Collections.unmodifiableSet(relationships);
+		descriptors.add(BATCH_SIZE);
+		descriptors.add(TIFF_RENDERING_ENGINE);
+		descriptors.add(TIFF_RENDER_DPI);
+		descriptors.add(TIFF_COLOR_MODE);
+		descriptors.add(TIFF_COMPRESSION);
+		descriptors.add(TIFF_PDF_ACCESS);
+		descriptors.add(TIFF_MAX_MAIN_MEMORY);
+		descriptors.add(METRICS_REPORT_INTERVAL);
 		this.descriptors = Collections.unmodifiableList(descriptors);
 		getLogger().info("End Init.");
 	}
 
+	@OnScheduled
+	public void onScheduled(final ProcessContext context) {
+		pdfbox = ENGINE_PDFBOX.equals(context.getProperty(TIFF_RENDERING_ENGINE).getValue());
+		dpi = context.getProperty(TIFF_RENDER_DPI).asInteger();
+		imageType = COLOR_GRAY.equals(context.getProperty(TIFF_COLOR_MODE).getValue()) ? ImageType.GRAY : ImageType.BINARY;
+		compression = context.getProperty(TIFF_COMPRESSION).getValue();
+		mapped = ACCESS_MAPPED.equals(context.getProperty(TIFF_PDF_ACCESS).getValue());
+		memoryUsage = MemoryUsageSetting
+				.setupMixed(context.getProperty(TIFF_MAX_MAIN_MEMORY).asDataSize(DataUnit.B).longValue());
+	}
+
 	public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-		getLogger().info("Start Processing.");
-		FlowFile originalFlowFile = session.get();
-		String originalFileName = originalFlowFile.getAttribute(CoreAttributes.FILENAME.key());
-		String originalUUID = originalFlowFile.getAttribute(CoreAttributes.UUID.key());
-		
-		Map<String, String> tiffFileAttributes = new HashMap<>();
-	
+		getLogger().debug("Start Processing.");
+		reportStageMetrics(context);
+		final List<FlowFile> flowFiles = session.get(context.getProperty(BATCH_SIZE).asInteger());
+		if (flowFiles.isEmpty()) {
+			return;
+		}
+
 		List<FlowFile> outputFlowFileList = new ArrayList<>();
 		List<FlowFile> originalFlowFileList = new ArrayList<>();
 		List<FlowFile> invalidFlowFilesList = new ArrayList<>();
 
-		session.read(originalFlowFile, new InputStreamCallback() {
+		for (FlowFile originalFlowFile : flowFiles) {
+			FlowFile tiffFileFlow = session.create(originalFlowFile);
+			try {
+				tiffFileFlow = convert(session, originalFlowFile, tiffFileFlow);
+				originalFlowFileList.add(originalFlowFile);
+				outputFlowFileList.add(tiffFileFlow);
+			} catch (Exception e) {
+				getLogger().error("Error during TIFF conversion of PDF Flowfile {}",
+						new Object[] { originalFlowFile, e });
+				invalidFlowFilesList.add(originalFlowFile);
+				// Removing the tiff that may have been created
+				session.remove(tiffFileFlow);
+			}
+		}
+		session.transfer(invalidFlowFilesList, REL_FAILURE);
+		session.transfer(outputFlowFileList, REL_FILES);
+		session.transfer(originalFlowFileList, REL_ORIGINAL);
+
+		getLogger().debug("File output queue 'files' have {} files: {}",
+				new Object[] { outputFlowFileList.size(), outputFlowFileList });
+		getLogger().debug("File output queue 'originalFile' have {} files: {}",
+				new Object[] { originalFlowFileList.size(), originalFlowFileList });
 
-			public void process(InputStream rawIn) throws IOException {
-				try {
-				
-					FlowFile tiffFileFlow = session.create(originalFlowFile);
-					tiffFileFlow = session.append(tiffFileFlow, new OutputStreamCallback() {
-						@Override
-						public void process(OutputStream out) throws IOException {
+		getLogger().debug("File output queue 'failure' have {} files: {}",
+				new Object[] { invalidFlowFilesList.size(), invalidFlowFilesList });
+		getLogger().debug("End Processing.");
+		
+	}
+
+	private FlowFile convert(final ProcessSession session, final FlowFile originalFlowFile,
+			FlowFile tiffFileFlow) {
+		String originalFileName = originalFlowFile.getAttribute(CoreAttributes.FILENAME.key());
+		String originalUUID = originalFlowFile.getAttribute(CoreAttributes.UUID.key());
+		Map<String, String> tiffFileAttributes = new HashMap<>();
+		final StageMetrics.Timings timings = stageMetrics.start();
+		final long stageStart = System.nanoTime();
+
+		if (pdfbox) {
+			tiffFileFlow = session.write(tiffFileFlow, new OutputStreamCallback() {
+				@Override
+				public void process(OutputStream out) throws IOException {
+					session.read(originalFlowFile, new InputStreamCallback() {
+						public void process(InputStream rawIn) throws IOException {
+							getLogger().debug("Start rendering TIFF with PDFBox.");
+							renderTiff(rawIn, out, dpi, imageType, compression, mapped, memoryUsage);
+							getLogger().debug("End rendering TIFF with PDFBox.");
+						}
+					});
+				}
+			});
+		} else {
+			tiffFileFlow = session.write(tiffFileFlow, new OutputStreamCallback() {
+				@Override
+				public void process(OutputStream out) throws IOException {
+					session.read(originalFlowFile, new InputStreamCallback() {
+						public void process(InputStream rawIn) throws IOException {
 							File tmpProcessing = null;
 							File imgFile = null;
 							try {
@@ -125,52 +277,133 @@ public class TiffConverter extends AbstractTesseractOcr {
 								FileOutputStream fos = new FileOutputStream(tmpProcessing);
 								IOUtils.copy(rawIn, fos);
 								fos.close();
-								getLogger().info("Start writing result to textFile.");
+								getLogger().debug("Start writing result to textFile.");
 								imgFile = PdfGsUtilities.convertPdf2Tiff(tmpProcessing);
-								IOUtils.copy(new FileInputStream(imgFile), out);
-								getLogger().info("End writing result to textFile.");
+								try (InputStream imgIn = new FileInputStream(imgFile)) {
+									IOUtils.copy(imgIn, out);
+								}
+								getLogger().debug("End writing result to textFile.");
 							} finally {
 								FileUtils.deleteQuietly(imgFile);					
 								FileUtils.deleteQuietly(tmpProcessing);							
 							}
 						}
 					});
-					String[] oriFileInfos = getFileInfos(originalFileName);
-					ContentInfo tiffContent = ContentInfoUtil.findExtensionMatch(oriFileInfos[1]);
-					tiffFileAttributes.put(CoreAttributes.FILENAME.key(), oriFileInfos[0] + "." + tiffContent.getFileExtensions()[0]);
-					tiffFileAttributes.put(CoreAttributes.MIME_TYPE.key(), tiffContent.getMimeType());
-					tiffFileAttributes.put(SOURCE_UUID, originalUUID);
-					tiffFileAttributes.put(SOURCE_FILENAME, originalFileName);
-					tiffFileFlow = session.putAllAttributes(tiffFileFlow, tiffFileAttributes);
-					originalFlowFileList.add(originalFlowFile);
-					outputFlowFileList.add(tiffFileFlow);						
-				} catch (Exception e) {
-					getLogger().error("Error during TIFF conversion of PDF Flowfile {}",
-							new Object[] { originalFlowFile, e });
-					invalidFlowFilesList.add(originalFlowFile);
-		            // Removing splits that may have been created
-		            session.remove(outputFlowFileList);			            
-		            // Removing the original flow from its list
-		            originalFlowFileList.remove(originalFlowFile);						
-					throw e;
-				} 	
+				}
+			});
+		}
+		timings.since(STAGE_CONVERT, stageStart);
+		String[] oriFileInfos = getFileInfos(originalFileName);
+		ContentInfo tiffContent = ContentInfoUtil.findExtensionMatch(oriFileInfos[1]);
+		tiffFileAttributes.put(CoreAttributes.FILENAME.key(), oriFileInfos[0] + "." + tiffContent.getFileExtensions()[0]);
+		tiffFileAttributes.put(CoreAttributes.MIME_TYPE.key(), tiffContent.getMimeType());
+		tiffFileAttributes.put(SOURCE_UUID, originalUUID);
+		tiffFileAttributes.put(SOURCE_FILENAME, originalFileName);
+		tiffFileAttributes.putAll(timings.toAttributes("tiff"));
+		timings.record(session);
+		return session.putAllAttributes(tiffFileFlow, tiffFileAttributes);
+	}
+	
+	/**
+	 * Renders every page of the PDF and writes it to a multi-page TIFF. Only one
+	 * rendered page is in memory at a time, and pages of the same size are
+	 * rendered in the same image instead of allocating a new large raster for
+	 * each of them.
+	 * <p>
+	 * TIFF writers update the link of the previous IFD when a page is added to
+	 * the sequence, so the encoded TIFF is cached on the heap until the sequence
+	 * is complete. The PDF itself is buffered as set by the memory usage, in a
+	 * scratch file beyond its main memory.
+	 */
+	private void renderTiff(InputStream in, OutputStream out, float dpi, ImageType imageType, String compression,
+			boolean mapped, MemoryUsageSetting memoryUsage) throws IOException {
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("tiff");
+		if (!writers.hasNext()) {
+			throw new IOException("No TIFF image writer available");
+		}
+		ImageWriter writer = writers.next();
+		try (PDDocument document = mapped ? MappedRandomAccessRead.load(in, memoryUsage)
+				: PDDocument.load(in, memoryUsage);
+				ImageOutputStream ios = new MemoryCacheImageOutputStream(out)) {
+			PDFRenderer renderer = new PDFRenderer(document);
+			writer.setOutput(ios);
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionType(compression);
+			writer.prepareWriteSequence(null);
+			BufferedImage image = null;
+			for (int i = 0; i < document.getNumberOfPages(); i++) {
+				image = renderPage(renderer, document.getPage(i), i, dpi, imageType, image);
+				IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), param);
+				setResolution(metadata, dpi);
+				writer.writeToSequence(new IIOImage(image, null, metadata), param);
 			}
-		});
-		session.transfer(invalidFlowFilesList, REL_FAILURE);
-		session.transfer(outputFlowFileList, REL_FILES);
-		session.transfer(originalFlowFileList, REL_ORIGINAL);
+			writer.endWriteSequence();
+		} finally {
+			writer.dispose();
+		}
+	}
 
-		getLogger().info("File output queue 'files' have {} files: {}",
-				new Object[] { outputFlowFileList.size(), outputFlowFileList });
-		getLogger().info("File output queue 'originalFile' have {} files: {}",
-				new Object[] { originalFlowFileList.size(), originalFlowFileList });
+	/**
+	 * Renders a page like {@link PDFRenderer#renderImageWithDPI(int, float, ImageType)},
+	 * in the previous image when it has the size of the page.
+	 */
+	private static BufferedImage renderPage(PDFRenderer renderer, PDPage page, int pageIndex, float dpi,
+			ImageType imageType, BufferedImage previous) throws IOException {
+		float scale = dpi / 72f;
+		PDRectangle cropBox = page.getCropBox();
+		int width = Math.round(cropBox.getWidth() * scale);
+		int height = Math.round(cropBox.getHeight() * scale);
+		if (page.getRotation() == 90 || page.getRotation() == 270) {
+			int swap = width;
+			width = height;
+			height = swap;
+		}
+		if (previous == null || previous.getWidth() != width || previous.getHeight() != height) {
+			return renderer.renderImage(pageIndex, scale, imageType);
+		}
+		Graphics2D graphics = previous.createGraphics();
+		try {
+			graphics.setBackground(Color.WHITE);
+			graphics.clearRect(0, 0, width, height);
+			renderer.renderPageToGraphics(pageIndex, graphics, scale);
+		} finally {
+			graphics.dispose();
+		}
+		return previous;
+	}
 
-		getLogger().info("File output queue 'failure' have {} files: {}",
-				new Object[] { invalidFlowFilesList.size(), invalidFlowFilesList });
-		getLogger().info("End Processing.");
-		
+	/**
+	 * Records the resolution in the TIFF so that Tesseract does not have to
+	 * estimate it.
+	 */
+	private static void setResolution(IIOMetadata metadata, float dpi) throws IIOInvalidTreeException {
+		String pixelSize = String.valueOf(25.4f / dpi);
+		IIOMetadataNode horizontal = new IIOMetadataNode("HorizontalPixelSize");
+		horizontal.setAttribute("value", pixelSize);
+		IIOMetadataNode vertical = new IIOMetadataNode("VerticalPixelSize");
+		vertical.setAttribute("value", pixelSize);
+		IIOMetadataNode dimension = new IIOMetadataNode("Dimension");
+		dimension.appendChild(horizontal);
+		dimension.appendChild(vertical);
+		IIOMetadataNode root = new IIOMetadataNode(STANDARD_METADATA_FORMAT);
+		root.appendChild(dimension);
+		metadata.mergeTree(STANDARD_METADATA_FORMAT, root);
 	}
-	
+
+	@Override
+	protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+		final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
+		if (ENGINE_PDFBOX.equals(validationContext.getProperty(TIFF_RENDERING_ENGINE).getValue())
+				&& COMPRESSION_CCITT_G4.equals(validationContext.getProperty(TIFF_COMPRESSION).getValue())
+				&& !COLOR_BILEVEL.equals(validationContext.getProperty(TIFF_COLOR_MODE).getValue())) {
+			results.add(new ValidationResult.Builder().subject(TIFF_COMPRESSION.getDisplayName()).valid(false)
+					.explanation(COMPRESSION_CCITT_G4 + " compression requires the " + COLOR_BILEVEL + " color mode")
+					.build());
+		}
+		return results;
+	}
+
 	@Override
 	public Set<Relationship> getRelationships() {
 		return this.relationships;
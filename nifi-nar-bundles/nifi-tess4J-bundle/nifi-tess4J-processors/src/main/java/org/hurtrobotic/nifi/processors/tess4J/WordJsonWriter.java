@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes the words of a document as compact JSON, one array per word :
+ * <pre>
+ * {"pages":[{"page":1,"width":2480,"height":3508,"dpi":300,
+ *   "words":[["Invoice",96.2,120,80,310,52,0,0],...]},...]}
+ * </pre>
+ * A word is its text, its confidence from 0 to 100, the x, y, width and height
+ * of its box in pixels of the page, then the index of its block and of its
+ * line in the page.
+ */
+public class WordJsonWriter implements OcrDocumentWriter {
+	private final Writer writer;
+	private int pageCount;
+
+	public WordJsonWriter(OutputStream out) throws IOException {
+		writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+		writer.write("{\"pages\":[");
+	}
+
+	@Override
+	public void addPage(BufferedImage image, float dpi, List<OcrWord> words) throws IOException {
+		if (pageCount > 0) {
+			writer.write(',');
+		}
+		pageCount++;
+		writer.write("{\"page\":" + pageCount + ",\"width\":" + image.getWidth() + ",\"height\":" + image.getHeight()
+				+ ",\"dpi\":" + Math.round(dpi) + ",\"words\":[");
+		for (int i = 0; i < words.size(); i++) {
+			OcrWord word = words.get(i);
+			if (i > 0) {
+				writer.write(',');
+			}
+			writer.write('[');
+			writeString(word.getText());
+			Rectangle bounds = word.getBounds();
+			writer.write("," + Math.round(word.getConfidence() * 10) / 10f + "," + bounds.x + "," + bounds.y + ","
+					+ bounds.width + "," + bounds.height + "," + word.getBlock() + "," + word.getLine() + "]");
+		}
+		writer.write("]}");
+		writer.flush();
+	}
+
+	private void writeString(String text) throws IOException {
+		writer.write('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\') {
+				writer.write('\\');
+				writer.write(c);
+			} else if (c < 0x20) {
+				writer.write(String.format("\\u%04x", (int) c));
+			} else {
+				writer.write(c);
+			}
+		}
+		writer.write('"');
+	}
+
+	@Override
+	public void finish() throws IOException {
+		writer.write("]}");
+		writer.flush();
+	}
+
+	/**
+	 * Does not close the output stream, it belongs to the caller.
+	 */
+	@Override
+	public void close() throws IOException {
+		writer.flush();
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+	private static final long OPEN_MILLIS = 1000;
+
+	private final AtomicLong now = new AtomicLong();
+	// opens when 2 of the last 4 calls failed
+	private final CircuitBreaker breaker = new CircuitBreaker(4, 0.5, OPEN_MILLIS, now::get);
+
+	@Test
+	public void testOpensOnFailureRate() {
+		assertFalse(breaker.record(true));
+		assertFalse(breaker.record(false));
+		assertFalse(breaker.record(false));
+		assertFalse(breaker.isOpen());
+		assertTrue(breaker.allowRequest());
+
+		// the window is full and holds 2 failures
+		assertTrue(breaker.record(true));
+		assertTrue(breaker.isOpen());
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void testFailuresLeaveTheWindow() {
+		breaker.record(true);
+		breaker.record(false);
+		breaker.record(false);
+		breaker.record(false);
+		// the first failure leaves the window as the second one enters it
+		assertFalse(breaker.record(true));
+		assertFalse(breaker.isOpen());
+	}
+
+	@Test
+	public void testRejectsDuringOpenTime() {
+		trip();
+		advance(OPEN_MILLIS - 1);
+		assertFalse(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+		assertTrue(breaker.isOpen());
+	}
+
+	@Test
+	public void testSingleTrialWhenHalfOpen() {
+		trip();
+		advance(OPEN_MILLIS);
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.isOpen());
+		// concurrent callers are rejected while the trial is in flight
+		assertFalse(breaker.allowRequest());
+		advance(OPEN_MILLIS - 1);
+		assertFalse(breaker.allowRequest());
+	}
+
+	@Test
+	public void testSuccessfulTrialCloses() {
+		trip();
+		advance(OPEN_MILLIS);
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.record(false));
+
+		assertFalse(breaker.isOpen());
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.allowRequest());
+		// the window starts empty again
+		assertFalse(breaker.record(true));
+		assertFalse(breaker.record(false));
+		assertFalse(breaker.record(false));
+	}
+
+	@Test
+	public void testFailedTrialReopens() {
+		trip();
+		advance(OPEN_MILLIS);
+		assertTrue(breaker.allowRequest());
+		assertTrue(breaker.record(true));
+
+		assertTrue(breaker.isOpen());
+		assertFalse(breaker.allowRequest());
+		// open for a whole open time again
+		advance(OPEN_MILLIS - 1);
+		assertFalse(breaker.allowRequest());
+		advance(1);
+		assertTrue(breaker.allowRequest());
+	}
+
+	@Test
+	public void testTrialWithoutOutcomeReplaced() {
+		trip();
+		advance(OPEN_MILLIS);
+		assertTrue(breaker.allowRequest());
+		// the trial call records nothing, a new trial is allowed after an open time
+		advance(OPEN_MILLIS);
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+	}
+
+	private void trip() {
+		breaker.record(true);
+		breaker.record(true);
+		breaker.record(false);
+		assertTrue(breaker.record(false));
+	}
+
+	private void advance(long millis) {
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OcrMergeTest {
+	private TestRunner runner;
+
+	@Before
+	public void init() {
+		runner = TestRunners.newTestRunner(OcrMerge.class);
+	}
+
+	@Test
+	public void testMergeInOrder() {
+		for (int number = 1; number <= 3; number++) {
+			enqueueSplit("A", number, 3);
+		}
+		runner.run();
+
+		runner.assertTransferCount(OcrMerge.REL_MERGED, 1);
+		runner.assertTransferCount(OcrMerge.REL_ORIGINAL, 3);
+		runner.assertTransferCount(OcrMerge.REL_INCOMPLETE, 0);
+		runner.assertTransferCount(OcrMerge.REL_FAILURE, 0);
+		MockFlowFile merged = runner.getFlowFilesForRelationship(OcrMerge.REL_MERGED).get(0);
+		merged.assertContentEquals("page 1\fpage 2\fpage 3");
+		merged.assertAttributeEquals("filename", "doc-A.txt");
+		merged.assertAttributeEquals("merge.split.count", "3");
+		merged.assertAttributeNotExists("merge.split.missing");
+		assertEquals(Long.valueOf(1), runner.getCounterValue("OCR documents merged"));
+	}
+
+	@Test
+	public void testMergeOutOfOrder() {
+		for (int number : new int[] { 3, 1, 5, 2, 4 }) {
+			enqueueSplit("A", number, 5);
+		}
+		runner.run();
+
+		runner.assertTransferCount(OcrMerge.REL_MERGED, 1);
+		runner.assertTransferCount(OcrMerge.REL_ORIGINAL, 5);
+		runner.getFlowFilesForRelationship(OcrMerge.REL_MERGED).get(0)
+				.assertContentEquals("page 1\fpage 2\fpage 3\fpage 4\fpage 5");
+	}
+
+	@Test
+	public void testMergeAcrossTriggers() {
+		enqueueSplit("A", 2, 3);
+		runner.run(1, false, true);
+		enqueueSplit("A", 1, 3);
+		runner.run(1, false, false);
+		// split documents wait in the document until it is complete
+		runner.assertTransferCount(OcrMerge.REL_MERGED, 0);
+		runner.assertTransferCount(OcrMerge.REL_ORIGINAL, 0);
+
+		enqueueSplit("A", 3, 3);
+		runner.run(1, true, false);
+		runner.assertTransferCount(OcrMerge.REL_MERGED, 1);
+		runner.assertTransferCount(OcrMerge.REL_ORIGINAL, 3);
+		runner.getFlowFilesForRelationship(OcrMerge.REL_MERGED).get(0).assertContentEquals("page 1\fpage 2\fpage 3");
+	}
+
+	@Test
+	public void testSeparator() {
+		runner.setProperty(OcrMerge.MERGE_SEPARATOR, "new-line");
+		enqueueSplit("A", 1, 2);
+		enqueueSplit("A", 2, 2);
+		runner.run();
+
+		runner.getFlowFilesForRelationship(OcrMerge.REL_MERGED).get(0).assertContentEquals("page 1\npage 2");
+	}
+
+	@Test
+	public void testDuplicateToFailure() {
+		enqueueSplit("A", 1, 2);
+		enqueueSplit("A", 1, 2);
+		enqueueSplit("A", 2, 2);
+		runner.run();
+
+		runner.assertTransferCount(OcrMerge.REL_MERGED, 1);
+		runner.assertTransferCount(OcrMerge.REL_ORIGINAL, 2);
+		runner.assertTransferCount(OcrMerge.REL_FAILURE, 1);
+		runner.getFlowFilesForRelationship(OcrMerge.REL_MERGED).get(0).assertContentEquals("page 1\fpage 2");
+	}
+
+	@Test
+	public void testTimeoutToIncomplete() throws InterruptedException {
+		runner.setProperty(OcrMerge.MERGE_TIMEOUT, "100 ms");
+		for (int number : new int[] { 1, 2, 4, 5 }) {
+			enqueueSplit("A", number, 6);
+		}
+		runner.run(1, false, true);
+		runner.assertTransferCount(OcrMerge.REL_INCOMPLETE, 0);
+
+		Thread.sleep(200);
+		runner.run(1, true, false);
+		runner.assertTransferCount(OcrMerge.REL_MERGED, 0);
+		runner.assertTransferCount(OcrMerge.REL_INCOMPLETE, 1);
+		runner.assertTransferCount(OcrMerge.REL_ORIGINAL, 4);
+		MockFlowFile incomplete = runner.getFlowFilesForRelationship(OcrMerge.REL_INCOMPLETE).get(0);
+		incomplete.assertContentEquals("page 1\fpage 2\fpage 4\fpage 5");
+		incomplete.assertAttributeEquals("merge.split.missing", "3,6");
+		incomplete.assertAttributeEquals("merge.split.count", "4");
+		assertEquals(Long.valueOf(1), runner.getCounterValue("OCR documents incomplete"));
+	}
+
+	@Test
+	public void testMaxDocuments() {
+		runner.setProperty(OcrMerge.MERGE_MAX_DOCUMENTS, "1");
+		enqueueSplit("A", 1, 2);
+		enqueueSplit("B", 1, 2);
+		enqueueSplit("A", 2, 2);
+		enqueueSplit("B", 2, 2);
+		runner.run(1, false, true);
+
+		// the split documents of B stay queued while A is open
+		runner.assertTransferCount(OcrMerge.REL_MERGED, 1);
+		runner.getFlowFilesForRelationship(OcrMerge.REL_MERGED).get(0).assertAttributeEquals("filename", "doc-A.txt");
+		assertEquals(2, runner.getQueueSize().getObjectCount());
+
+		runner.clearTransferState();
+		runner.run(1, true, false);
+		runner.assertTransferCount(OcrMerge.REL_MERGED, 1);
+		runner.getFlowFilesForRelationship(OcrMerge.REL_MERGED).get(0).assertAttributeEquals("filename", "doc-B.txt");
+		runner.assertQueueEmpty();
+	}
+
+	@Test
+	public void testStopRollsBackOpenDocuments() {
+		enqueueSplit("A", 1, 2);
+		runner.run(1, true, true);
+
+		runner.assertTransferCount(OcrMerge.REL_MERGED, 0);
+		runner.assertTransferCount(OcrMerge.REL_ORIGINAL, 0);
+		runner.assertTransferCount(OcrMerge.REL_FAILURE, 0);
+		assertEquals(1, runner.getQueueSize().getObjectCount());
+		assertNull(runner.getCounterValue("OCR documents incomplete"));
+	}
+
+	@Test
+	public void testInvalidSplitToFailure() {
+		Map<String, String> attributes = new HashMap<>();
+		attributes.put("filename", "doc.txt");
+		attributes.put("mime.type", "text/plain");
+		runner.enqueue("page", attributes);
+		Map<String, String> invalidNumber = splitAttributes("A", 1, 2);
+		invalidNumber.put("file.split.page.count", "zero");
+		runner.enqueue("page", invalidNumber);
+		runner.run();
+
+		runner.assertAllFlowFilesTransferred(OcrMerge.REL_FAILURE, 2);
+	}
+
+	@Test
+	public void testNotTextToFailure() {
+		Map<String, String> pdf = splitAttributes("A", 1, 1);
+		pdf.put("mime.type", "application/pdf");
+		runner.enqueue("%PDF", pdf);
+		Map<String, String> untyped = splitAttributes("B", 1, 1);
+		untyped.remove("mime.type");
+		runner.enqueue("page 1", untyped);
+		Map<String, String> charset = splitAttributes("C", 1, 1);
+		charset.put("mime.type", "text/plain; charset=UTF-8");
+		runner.enqueue("page 1", charset);
+		runner.run();
+
+		runner.assertTransferCount(OcrMerge.REL_FAILURE, 2);
+		runner.assertTransferCount(OcrMerge.REL_MERGED, 1);
+		runner.getFlowFilesForRelationship(OcrMerge.REL_MERGED).get(0).assertAttributeEquals("filename", "doc-C.txt");
+	}
+
+	@Test
+	public void testLateSplitToFailure() throws InterruptedException {
+		runner.setProperty(OcrMerge.MERGE_TIMEOUT, "100 ms");
+		enqueueSplit("A", 1, 1);
+		runner.run(1, false, true);
+		runner.assertTransferCount(OcrMerge.REL_MERGED, 1);
+
+		// a retried split document does not open a document which would expire
+		enqueueSplit("A", 1, 1);
+		runner.run(1, false, false);
+		Thread.sleep(200);
+		runner.run(1, true, false);
+		runner.assertTransferCount(OcrMerge.REL_FAILURE, 1);
+		runner.assertTransferCount(OcrMerge.REL_INCOMPLETE, 0);
+		runner.assertTransferCount(OcrMerge.REL_MERGED, 1);
+	}
+
+	private void enqueueSplit(String uuid, int number, int count) {
+		runner.enqueue("page " + number, splitAttributes(uuid, number, count));
+	}
+
+	private static Map<String, String> splitAttributes(String uuid, int number, int count) {
+		Map<String, String> attributes = new HashMap<>();
+		attributes.put("file.source.split.uuid", uuid);
+		attributes.put("file.split.page.count", String.valueOf(number));
+		attributes.put("file.source.split.count", String.valueOf(count));
+		attributes.put("file.source.split.filename", "doc-" + uuid + ".pdf");
+		attributes.put("filename", "doc-" + uuid + "-" + number + ".txt");
+		attributes.put("mime.type", "text/plain");
+		return attributes;
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OrderedPageExecutorTest {
+	private final RecordingExecutor executor = new RecordingExecutor(4);
+
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testResultsInPageOrder() throws Exception {
+		final FakePageSource source = new FakePageSource(20);
+		final List<Integer> consumed = new ArrayList<>();
+		int processed = new OrderedPageExecutor(executor, 3).execute(source, (pageIndex, image) -> {
+			// later pages finish first
+			Thread.sleep((20 - pageIndex) % 4);
+			return pageIndex * 10;
+		}, (pageIndex, result) -> {
+			assertEquals(consumed.size(), pageIndex);
+			assertEquals(pageIndex * 10, result.intValue());
+			consumed.add(pageIndex);
+		});
+
+		assertEquals(20, processed);
+		assertEquals(20, consumed.size());
+	}
+
+	@Test
+	public void testSlowPageBoundsTheDecodedPages() throws Exception {
+		final int maxInFlight = 3;
+		final FakePageSource source = new FakePageSource(12);
+		final CountDownLatch firstPage = new CountDownLatch(1);
+		final AtomicInteger consumed = new AtomicInteger();
+		source.consumed = consumed;
+		source.maxAhead = maxInFlight;
+		final AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread caller = new Thread(() -> {
+			try {
+				new OrderedPageExecutor(executor, maxInFlight).execute(source, (pageIndex, image) -> {
+					if (pageIndex == 0) {
+						firstPage.await();
+					}
+					return pageIndex;
+				}, (pageIndex, result) -> consumed.incrementAndGet());
+			} catch (Throwable t) {
+				failure.set(t);
+			}
+		});
+		caller.start();
+
+		// the pages after the blocked first page are done, but not consumed
+		assertTrue(source.awaitRead(maxInFlight - 1));
+		Thread.sleep(200);
+		assertEquals(maxInFlight, source.reads.get());
+		assertEquals(0, consumed.get());
+
+		firstPage.countDown();
+		caller.join(10000);
+		assertFalse(caller.isAlive());
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		assertEquals(12, consumed.get());
+		assertEquals(12, source.reads.get());
+	}
+
+	@Test
+	public void testFailureCancelsPendingPages() throws Exception {
+		final FakePageSource source = new FakePageSource(8);
+		final CountDownLatch never = new CountDownLatch(1);
+		final CountDownLatch laterPagesStarted = new CountDownLatch(2);
+		final List<Integer> consumed = new ArrayList<>();
+		try {
+			new OrderedPageExecutor(executor, 4).execute(source, (pageIndex, image) -> {
+				if (pageIndex == 1) {
+					// fails once the pages after it are pending
+					laterPagesStarted.await();
+					throw new IOException("page 1 failed");
+				}
+				if (pageIndex > 1) {
+					laterPagesStarted.countDown();
+					never.await();
+				}
+				return pageIndex;
+			}, (pageIndex, result) -> consumed.add(pageIndex));
+			fail("the failure of page 1 is not reported");
+		} catch (ExecutionException e) {
+			assertEquals("page 1 failed", e.getCause().getMessage());
+		}
+
+		assertEquals(Collections.singletonList(0), consumed);
+		List<Future<?>> futures = executor.getFutures();
+		assertTrue(futures.size() >= 4);
+		assertFalse(futures.get(0).isCancelled());
+		for (Future<?> future : futures.subList(2, futures.size())) {
+			assertTrue(future.isCancelled());
+		}
+	}
+
+	@Test
+	public void testReadFailureCancelsPendingPages() throws Exception {
+		final FakePageSource source = new FakePageSource(8);
+		source.failingPage = 2;
+		final CountDownLatch never = new CountDownLatch(1);
+		try {
+			new OrderedPageExecutor(executor, 4).execute(source, (pageIndex, image) -> {
+				never.await();
+				return pageIndex;
+			}, (pageIndex, result) -> fail("no page is done"));
+			fail("the failure of page 2 is not reported");
+		} catch (IOException e) {
+			assertEquals("page 2 unreadable", e.getMessage());
+		}
+
+		List<Future<?>> futures = executor.getFutures();
+		assertEquals(2, futures.size());
+		for (Future<?> future : futures) {
+			assertTrue(future.isCancelled());
+		}
+	}
+
+	/**
+	 * Fails when a page is read more than {@code maxAhead} pages ahead of the
+	 * pages consumed.
+	 */
+	private static class FakePageSource implements PageSource {
+		private final int pageCount;
+		private final AtomicInteger reads = new AtomicInteger();
+		private final CountDownLatch[] read;
+		private AtomicInteger consumed;
+		private int maxAhead;
+		private int failingPage = -1;
+
+		private FakePageSource(int pageCount) {
+			this.pageCount = pageCount;
+			this.read = new CountDownLatch[pageCount];
+			for (int i = 0; i < pageCount; i++) {
+				read[i] = new CountDownLatch(1);
+			}
+		}
+
+		@Override
+		public int getPageCount() {
+			return pageCount;
+		}
+
+		@Override
+		public BufferedImage readPage(int pageIndex) throws IOException {
+			if (pageIndex == failingPage) {
+				throw new IOException("page " + pageIndex + " unreadable");
+			}
+			if (consumed != null) {
+				assertTrue("page " + pageIndex + " read with " + consumed.get() + " pages consumed",
+						pageIndex < consumed.get() + maxAhead);
+			}
+			reads.incrementAndGet();
+			read[pageIndex].countDown();
+			return new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+		}
+
+		private boolean awaitRead(int pageIndex) throws InterruptedException {
+			return read[pageIndex].await(10, TimeUnit.SECONDS);
+		}
+
+		@Override
+		public float getResolution(int pageIndex) {
+			return 0;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/**
+	 * Keeps the futures of the submitted tasks, in submission order.
+	 */
+	private static class RecordingExecutor extends ThreadPoolExecutor {
+		private final List<Future<?>> futures = Collections.synchronizedList(new ArrayList<>());
+
+		private RecordingExecutor(int threads) {
+			super(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+		}
+
+		@Override
+		protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+			RunnableFuture<T> future = super.newTaskFor(callable);
+			futures.add(future);
+			return future;
+		}
+
+		private List<Future<?>> getFutures() {
+			synchronized (futures) {
+				return new ArrayList<>(futures);
+			}
+		}
+	}
+}
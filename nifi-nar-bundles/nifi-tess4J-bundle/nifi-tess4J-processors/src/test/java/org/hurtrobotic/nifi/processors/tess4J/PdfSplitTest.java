@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.junit.Test;
+
+public class PdfSplitTest {
+
+	@Test
+	public void testChunkRanges() {
+		assertRanges(PdfSplit.chunkRanges(7, 3), 1, 3, 4, 6, 7, 7);
+		assertRanges(PdfSplit.chunkRanges(6, 3), 1, 3, 4, 6);
+		assertRanges(PdfSplit.chunkRanges(2, 5), 1, 2);
+		assertRanges(PdfSplit.chunkRanges(3, 1), 1, 1, 2, 2, 3, 3);
+		assertRanges(PdfSplit.chunkRanges(0, 3));
+	}
+
+	@Test
+	public void testParseRanges() {
+		assertRanges(PdfSplit.parseRanges("1-2,3,4-", 6), 1, 2, 3, 3, 4, 6);
+		assertRanges(PdfSplit.parseRanges(" 2 , 5-5 ,", 5), 2, 2, 5, 5);
+		assertRanges(PdfSplit.parseRanges("1-", 4), 1, 4);
+		assertRanges(PdfSplit.parseRanges("4-", 4), 4, 4);
+		assertRanges(PdfSplit.parseRanges("1-4", 4), 1, 4);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRangesNull() {
+		PdfSplit.parseRanges(null, 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRangesBlank() {
+		PdfSplit.parseRanges("  ", 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRangesOnlySeparators() {
+		PdfSplit.parseRanges(",", 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRangesInvalidToken() {
+		PdfSplit.parseRanges("1-2,a", 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRangesNegative() {
+		PdfSplit.parseRanges("-2", 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRangesPageZero() {
+		PdfSplit.parseRanges("0-2", 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRangesReversed() {
+		PdfSplit.parseRanges("3-2", 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRangesBeyondLastPage() {
+		PdfSplit.parseRanges("4-6", 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRangesOpenBeyondLastPage() {
+		PdfSplit.parseRanges("6-", 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRangesOverlapping() {
+		PdfSplit.parseRanges("1-3,3-5", 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRangesOutOfOrder() {
+		PdfSplit.parseRanges("4-5,1-2", 5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseRangesDuplicated() {
+		PdfSplit.parseRanges("2,2", 5);
+	}
+
+	@Test
+	public void testSizeRanges() throws IOException {
+		try (PDDocument document = createDocument(40, 60, 30, 10, 100)) {
+			// a range ends before the page which would exceed the target size
+			assertRanges(PdfSplit.sizeRanges(document, 100), 1, 2, 3, 4, 5, 5);
+			assertRanges(PdfSplit.sizeRanges(document, 99), 1, 1, 2, 3, 4, 4, 5, 5);
+			assertRanges(PdfSplit.sizeRanges(document, 240), 1, 5);
+			assertRanges(PdfSplit.sizeRanges(document, 239), 1, 4, 5, 5);
+		}
+	}
+
+	@Test
+	public void testSizeRangesPageBiggerThanTarget() throws IOException {
+		try (PDDocument document = createDocument(10, 500, 10)) {
+			assertRanges(PdfSplit.sizeRanges(document, 100), 1, 1, 2, 2, 3, 3);
+		}
+	}
+
+	@Test
+	public void testSizeRangesEmptyDocument() throws IOException {
+		try (PDDocument document = new PDDocument()) {
+			assertRanges(PdfSplit.sizeRanges(document, 100));
+		}
+	}
+
+	/**
+	 * @param contentSizes
+	 *            length of the content stream of each page
+	 */
+	private static PDDocument createDocument(int... contentSizes) throws IOException {
+		PDDocument document = new PDDocument();
+		for (int contentSize : contentSizes) {
+			PDPage page = new PDPage();
+			PDStream contents = new PDStream(document);
+			try (OutputStream out = contents.createOutputStream()) {
+				out.write(new byte[contentSize]);
+			}
+			page.setContents(contents);
+			document.addPage(page);
+		}
+		return document;
+	}
+
+	/**
+	 * @param bounds
+	 *            start and end of each expected range
+	 */
+	private static void assertRanges(List<int[]> ranges, int... bounds) {
+		assertEquals(bounds.length / 2, ranges.size());
+		for (int i = 0; i < ranges.size(); i++) {
+			assertArrayEquals(new int[] { bounds[2 * i], bounds[2 * i + 1] }, ranges.get(i));
+		}
+	}
+}
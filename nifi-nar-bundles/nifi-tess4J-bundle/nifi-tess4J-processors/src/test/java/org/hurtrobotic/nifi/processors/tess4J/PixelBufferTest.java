@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.hurtrobotic.nifi.processors.tess4J;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class PixelBufferTest {
+	private final PixelBuffer pixels = new PixelBuffer();
+
+	@Test
+	public void testBinaryPackedMostSignificantBitFirst() {
+		// 10 pixels per row, 2 bytes per line with 6 bits of padding
+		BufferedImage image = new BufferedImage(10, 2, BufferedImage.TYPE_BYTE_BINARY);
+		WritableRaster raster = image.getRaster();
+		// 1 is white in the default palette
+		raster.setSample(0, 0, 0, 1);
+		raster.setSample(7, 0, 0, 1);
+		raster.setSample(8, 0, 0, 1);
+		raster.setSample(9, 1, 0, 1);
+
+		ByteBuffer buffer = pixels.load(image);
+
+		assertEquals(1, pixels.getBitsPerPixel());
+		assertEquals(4, pixels.getSize());
+		assertArrayEquals(new byte[] { (byte) 0x81, (byte) 0x80, 0x00, 0x40 }, toArray(buffer));
+	}
+
+	@Test
+	public void testBinaryInvertedPalette() {
+		IndexColorModel whiteIsZero = new IndexColorModel(1, 2, new byte[] { (byte) 255, 0 },
+				new byte[] { (byte) 255, 0 }, new byte[] { (byte) 255, 0 });
+		BufferedImage image = new BufferedImage(3, 1, BufferedImage.TYPE_BYTE_BINARY, whiteIsZero);
+		WritableRaster raster = image.getRaster();
+		raster.setSample(0, 0, 0, 0);
+		raster.setSample(1, 0, 0, 1);
+		raster.setSample(2, 0, 0, 0);
+
+		ByteBuffer buffer = pixels.load(image);
+
+		// white pixels are still 1 for Tesseract
+		assertArrayEquals(new byte[] { (byte) 0xA0 }, toArray(buffer));
+	}
+
+	@Test
+	public void testBinaryRowPaddingOnByteBoundary() {
+		BufferedImage image = new BufferedImage(8, 3, BufferedImage.TYPE_BYTE_BINARY);
+		image.getRaster().setSample(7, 2, 0, 1);
+
+		ByteBuffer buffer = pixels.load(image);
+
+		assertEquals(3, pixels.getSize());
+		assertArrayEquals(new byte[] { 0x00, 0x00, 0x01 }, toArray(buffer));
+	}
+
+	@Test
+	public void testGrayCopied() {
+		BufferedImage image = new BufferedImage(3, 2, BufferedImage.TYPE_BYTE_GRAY);
+		image.getRaster().setPixels(0, 0, 3, 2, new int[] { 0, 10, 20, 200, 254, 255 });
+
+		ByteBuffer buffer = pixels.load(image);
+
+		assertEquals(8, pixels.getBitsPerPixel());
+		assertEquals(6, pixels.getSize());
+		assertArrayEquals(new byte[] { 0, 10, 20, (byte) 200, (byte) 254, (byte) 255 }, toArray(buffer));
+	}
+
+	@Test
+	public void testColorToLuminance() {
+		BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_ARGB);
+		image.setRGB(0, 0, 0xFFFF0000);
+		image.setRGB(1, 0, 0xFFFFFFFF);
+		image.setRGB(0, 1, 0xFF000000);
+		// transparent black is blended with white
+		image.setRGB(1, 1, 0x00000000);
+
+		ByteBuffer buffer = pixels.load(image);
+
+		assertEquals(8, pixels.getBitsPerPixel());
+		assertArrayEquals(new byte[] { 76, (byte) 255, 0, (byte) 255 }, toArray(buffer));
+	}
+
+	@Test
+	public void testBufferReused() {
+		ByteBuffer large = pixels.load(new BufferedImage(20, 20, BufferedImage.TYPE_BYTE_GRAY));
+		BufferedImage small = new BufferedImage(2, 1, BufferedImage.TYPE_BYTE_GRAY);
+		small.getRaster().setPixels(0, 0, 2, 1, new int[] { 1, 2 });
+
+		ByteBuffer buffer = pixels.load(small);
+
+		assertEquals(large, buffer);
+		assertEquals(0, buffer.position());
+		assertEquals(2, buffer.limit());
+		assertArrayEquals(new byte[] { 1, 2 }, toArray(buffer));
+	}
+
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+}